@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to apply a config push of many keys to one node, until a 
+ * registered listener has received all events: one {@code put()} per
+ * key versus a single {@code putAll()}.
+ *
+ * @author Addicticks
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchPutBenchmark {
+
+    @Param({"1000"})
+    public int keys;
+
+    private TemporaryPreferences node;
+    private final AtomicInteger delivered = new AtomicInteger();
+    private Map<String, String>[] pushes;
+    private int counter;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        node = (TemporaryPreferences) new TemporaryPreferences(null, "").node("com/reuters/rfa");
+        node.addPreferenceChangeListener(evt -> delivered.incrementAndGet());
+        pushes = new Map[2];
+        for (int p = 0; p < pushes.length; p++) {
+            pushes[p] = new LinkedHashMap<>();
+            for (int i = 0; i < keys; i++) {
+                pushes[p].put("key" + i, "value" + i + "-" + p);
+            }
+        }
+    }
+
+    private void awaitDelivery(int expected) {
+        while (delivered.get() < expected) {
+            Thread.yield();
+        }
+    }
+
+    @Benchmark
+    public void put() {
+        int expected = delivered.get() + keys;
+        for (Map.Entry<String, String> entry : pushes[counter++ & 1].entrySet()) {
+            node.put(entry.getKey(), entry.getValue());
+        }
+        awaitDelivery(expected);
+    }
+
+    @Benchmark
+    public void putAll() {
+        int expected = delivered.get() + keys;
+        node.putAll(pushes[counter++ & 1]);
+        awaitDelivery(expected);
+    }
+}
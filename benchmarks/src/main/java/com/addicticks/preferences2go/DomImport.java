@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.Preferences;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Import of preferences using a DOM, which is the way the JDK does it and
+ * the way {@link XmlSupport} used to do it. Kept as the baseline which
+ * the streaming import is benchmarked against.
+ *
+ * @author Josh Bloch and Mark Reinhold (original authors)
+ * @author Addicticks
+ */
+final class DomImport {
+
+    private DomImport() {
+    }
+
+    /**
+     * Import preferences from the specified input stream using a DOM.
+     *
+     * @throws IOException if reading from the specified output stream results
+     * in an <tt>IOException</tt>.
+     * @throws InvalidPreferencesFormatException Data on input stream does not
+     * constitute a valid XML document with the mandated document type.
+     */
+    static void importPreferences(InputStream is, Preferences userRoot, Preferences systemRoot)
+            throws IOException, InvalidPreferencesFormatException {
+        try {
+            Document doc = loadPrefsDoc(is);
+            String xmlVersion
+                    = doc.getDocumentElement().getAttribute("EXTERNAL_XML_VERSION");
+            XmlSupport.checkVersion(xmlVersion);
+
+            Element xmlRoot = (Element) doc.getDocumentElement().
+                    getChildNodes().item(0);
+            Preferences prefsRoot
+                    = (xmlRoot.getAttribute("type").equals("user")
+                    ? userRoot : systemRoot);
+            ImportSubtree(prefsRoot, xmlRoot);
+        } catch (SAXException e) {
+            throw new InvalidPreferencesFormatException(e);
+        }
+    }
+
+    /**
+     * Load an XML document from specified input stream, which must have the
+     * requisite DTD URI.
+     */
+    private static Document loadPrefsDoc(InputStream in)
+            throws SAXException, IOException {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setIgnoringElementContentWhitespace(true);
+        dbf.setValidating(true);
+        dbf.setCoalescing(true);
+        dbf.setIgnoringComments(true);
+        try {
+            DocumentBuilder db = dbf.newDocumentBuilder();
+            db.setEntityResolver(new XmlSupport.Resolver());
+            db.setErrorHandler(new XmlSupport.EH());
+            return db.parse(new InputSource(in));
+        } catch (ParserConfigurationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Recursively traverse the specified preferences node and store the
+     * described preferences into the system or current user preferences tree,
+     * as appropriate.
+     */
+    private static void ImportSubtree(Preferences prefsNode, Element xmlNode) {
+        NodeList xmlKids = xmlNode.getChildNodes();
+        int numXmlKids = xmlKids.getLength();
+
+        Preferences[] prefsKids;
+
+        // Import any preferences at this node
+        Element firstXmlKid = (Element) xmlKids.item(0);
+        ImportPrefs(prefsNode, firstXmlKid);
+        prefsKids = new Preferences[numXmlKids - 1];
+
+        // Get involved children
+        for (int i = 1; i < numXmlKids; i++) {
+            Element xmlKid = (Element) xmlKids.item(i);
+            prefsKids[i - 1] = prefsNode.node(xmlKid.getAttribute("name"));
+        }
+
+        // import children
+        for (int i = 1; i < numXmlKids; i++) {
+            ImportSubtree(prefsKids[i - 1], (Element) xmlKids.item(i));
+        }
+    }
+
+    /**
+     * Import the preferences described by the specified XML element (a map from
+     * a preferences document) into the specified preferences node.
+     */
+    private static void ImportPrefs(Preferences prefsNode, Element map) {
+        NodeList entries = map.getChildNodes();
+        for (int i = 0, numEntries = entries.getLength(); i < numEntries; i++) {
+            Element entry = (Element) entries.item(i);
+            prefsNode.put(entry.getAttribute("key"),
+                    entry.getAttribute("value"));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+/**
+ * Compares the retained heap per node and per entry of the default
+ * storage with that of the compact storage. Run with:
+ * 
+ * <pre>
+ *   java -cp target/benchmarks.jar com.addicticks.preferences2go.FootprintBenchmark [nodes]
+ * </pre>
+ * 
+ * <p>
+ * Unlike the JMH benchmarks this reports heap usage, which JMH does not
+ * measure.
+ *
+ * @author Addicticks
+ */
+public class FootprintBenchmark {
+
+    private static final int ENTRIES_PER_NODE = 4;
+
+    public static void main(String[] args) {
+        int nodes = (args.length > 0) ? Integer.parseInt(args[0]) : 20_000;
+        System.out.println("Nodes: " + nodes + ", entries per node: " + ENTRIES_PER_NODE);
+        for (int round = 0; round < 3; round++) {
+            run("Default storage", nodes, false);
+            run("Compact storage", nodes, true);
+        }
+    }
+
+    private static void run(String name, int nodes, boolean compactStorage) {
+        long base = usedHeap();
+        TemporaryPreferences emptyTree = buildTree(nodes, compactStorage, 0);
+        long withoutEntries = usedHeap() - base;
+        emptyTree.get("x", null); // keep reachable
+        emptyTree = null;
+
+        base = usedHeap();
+        TemporaryPreferences fullTree = buildTree(nodes, compactStorage, ENTRIES_PER_NODE);
+        long withEntries = usedHeap() - base;
+        fullTree.get("x", null); // keep reachable
+
+        System.out.printf("%s : %6.1f bytes/node, %6.1f bytes/entry%n", name,
+                (double) withoutEntries / nodes,
+                (double) (withEntries - withoutEntries) / (nodes * ENTRIES_PER_NODE));
+    }
+
+    /**
+     * Builds a tree the same way the importer would, i.e. with a new
+     * String instance for every key and value.
+     */
+    private static TemporaryPreferences buildTree(int nodes, boolean compactStorage, int entriesPerNode) {
+        TemporaryPreferences root = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.USER, new TreeContext(compactStorage));
+        for (int n = 0; n < nodes; n++) {
+            TemporaryPreferences node = (TemporaryPreferences) root.node(new String("Namespace" + (n / 100))).node(new String("Connection" + (n % 100)));
+            for (int e = 0; e < entriesPerNode; e++) {
+                node.put(new String("key" + e), new String("trep" + (n % 8) + "-ldn, trep" + (n % 4) + "-ldn"));
+            }
+        }
+        return root;
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads and writes on a single node, shared by all benchmark threads.
+ * Use JMH's {@code -t} option to vary the number of threads, for example
+ * {@code -t 1}, {@code -t 4} and {@code -t max}. The {@code mixed} group
+ * runs three readers against one writer.
+ *
+ * @author Addicticks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetPutBenchmark {
+
+    @Param({"false", "true"})
+    public boolean compactStorage;
+
+    private Preferences node;
+    private final String[] values = new String[16];
+
+    @Setup
+    public void setUp() {
+        TemporaryPreferences root = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.USER, new TreeContext(compactStorage));
+        node = root.node("/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+        node.put("connectionType", "RSSL");
+        node.put("serverList", "trep1-ldn, trep2-ldn");
+        node.put("portNumber", "14002");
+        node.put("compressionEnabled", "true");
+        for (int i = 0; i < values.length; i++) {
+            values[i] = "value" + i;
+        }
+    }
+
+    @Benchmark
+    public String get() {
+        return node.get("serverList", null);
+    }
+
+    @Benchmark
+    public int getInt() {
+        return node.getInt("portNumber", 0);
+    }
+
+    @Benchmark
+    public boolean getBoolean() {
+        return node.getBoolean("compressionEnabled", false);
+    }
+
+    @Benchmark
+    public void put(Counter counter) {
+        node.put("counter", values[counter.next() & 15]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public String mixedGet() {
+        return node.get("serverList", null);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedPut(Counter counter) {
+        node.put("serverList", values[counter.next() & 15]);
+    }
+
+    @State(Scope.Thread)
+    public static class Counter {
+
+        private int i;
+
+        int next() {
+            return i++;
+        }
+    }
+}
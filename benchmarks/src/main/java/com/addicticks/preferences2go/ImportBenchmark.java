@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.InvalidPreferencesFormatException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Import of a generated Preferences XML file. Run with {@code -prof gc}
+ * to see allocation.
+ *
+ * @author Addicticks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class ImportBenchmark {
+
+    public enum Importer {
+        /** The JDK's way: build a DOM, then import it */
+        DOM,
+        /** Streaming import into preference nodes */
+        STREAMING,
+        /** Streaming import into NodeData, for lazy node creation */
+        LAZY
+    }
+
+    @Param({"1000", "100000", "1000000"})
+    public int entries;
+
+    @Param
+    public Importer importer;
+
+    private Path xmlFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        xmlFile = Files.createTempFile("pref2go-bench", ".xml");
+        new PrefsTreeGenerator(10, 4).writeXml(xmlFile, entries);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(xmlFile);
+    }
+
+    @Benchmark
+    public Object importPreferences() throws IOException, InvalidPreferencesFormatException {
+        TemporaryPreferences userRoot = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.USER);
+        TemporaryPreferences systemRoot = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.SYSTEM);
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(xmlFile))) {
+            switch (importer) {
+                case DOM:
+                    DomImport.importPreferences(is, userRoot, systemRoot);
+                    break;
+                case STREAMING:
+                    XmlSupport.importPreferences(is, userRoot, systemRoot);
+                    break;
+                default:
+                    NodeData.Builder userData = new NodeData.Builder("");
+                    XmlSupport.importPreferences(is, userData, new NodeData.Builder(""));
+                    userRoot.attach(userData.build());
+                    break;
+            }
+        }
+        return userRoot;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares import time and peak heap of the streaming importer against
+ * the DOM based importer. Run with:
+ * 
+ * <pre>
+ *   java -cp target/benchmarks.jar com.addicticks.preferences2go.ImportHeapBenchmark [entries]
+ * </pre>
+ * 
+ * <p>
+ * Unlike the JMH benchmarks this reports heap usage, which JMH does not
+ * measure.
+ *
+ * @author Addicticks
+ */
+public class ImportHeapBenchmark {
+
+    private interface Importer {
+        void importPreferences(InputStream is, TemporaryPreferences userRoot, TemporaryPreferences systemRoot) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 200_000;
+        Path file = Files.createTempFile("pref2go-bench", ".xml");
+        try {
+            new PrefsTreeGenerator(10, 4).writeXml(file, entries);
+            System.out.println("Entries: " + entries + ", file size: " + Files.size(file) + " bytes");
+            for (int round = 0; round < 3; round++) {
+                run("DOM      ", file, DomImport::importPreferences);
+                run("Streaming", file, XmlSupport::importPreferences);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void run(String name, Path file, Importer importer) throws Exception {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long baseline = heapPeak();
+        long start = System.nanoTime();
+        TemporaryPreferences userRoot = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.USER);
+        TemporaryPreferences systemRoot = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.SYSTEM);
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
+            importer.importPreferences(is, userRoot, systemRoot);
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        System.out.printf("%s : %6d ms, peak heap %6d MB%n", name, millis, (heapPeak() - baseline) / (1024 * 1024));
+    }
+
+    private static long heapPeak() {
+        long sum = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                sum += pool.getPeakUsage().getUsed();
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency from a {@code put()} until every registered listener has
+ * received the corresponding event.
+ *
+ * @author Addicticks
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerBenchmark {
+
+    @Param({"1", "10"})
+    public int listeners;
+
+    private Preferences node;
+    private PreferenceChangeListener[] registered;
+    private volatile int delivered;
+    private final String[] values = new String[16];
+    private int counter;
+
+    @Setup
+    public void setUp() {
+        node = new TemporaryPreferences(null, "").node("com/reuters/rfa");
+        registered = new PreferenceChangeListener[listeners];
+        for (int i = 0; i < listeners; i++) {
+            registered[i] = evt -> {
+                synchronized (this) {
+                    delivered++;
+                }
+            };
+            node.addPreferenceChangeListener(registered[i]);
+        }
+        for (int i = 0; i < values.length; i++) {
+            values[i] = "value" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (PreferenceChangeListener listener : registered) {
+            node.removePreferenceChangeListener(listener);
+        }
+    }
+
+    @Benchmark
+    public void putAndAwaitDelivery() {
+        int expected = delivered + listeners;
+        node.put("serverList", values[counter++ & 15]);
+        while (delivered < expected) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.InvalidPreferencesFormatException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Import of a number of equally sized Preferences XML files, which are 
+ * parsed in parallel. Compare with {@code files=1} to see how close the
+ * time is to that of a single file.
+ *
+ * @author Addicticks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class MultiFileImportBenchmark {
+
+    @Param({"100000"})
+    public int entriesPerFile;
+
+    @Param({"1", "4", "8"})
+    public int files;
+
+    private final List<Path> xmlFiles = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws IOException {
+        for (int i = 0; i < files; i++) {
+            Path xmlFile = Files.createTempFile("pref2go-bench", ".xml");
+            new PrefsTreeGenerator(10, 4).writeXml(xmlFile, entriesPerFile);
+            xmlFiles.add(xmlFile);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (Path xmlFile : xmlFiles) {
+            Files.delete(xmlFile);
+        }
+        xmlFiles.clear();
+    }
+
+    @Benchmark
+    public Object importPreferences() throws IOException, InvalidPreferencesFormatException {
+        TemporaryPreferences userRoot = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.USER);
+        TemporaryPreferences systemRoot = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.SYSTEM);
+        XmlSupport.importPreferences(xmlFiles, NodeSink.of(userRoot), NodeSink.of(systemRoot));
+        return userRoot;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookup of existing nodes by absolute path, and existence checks, in
+ * a generated tree. Use JMH's {@code -t} option to vary the number of
+ * threads.
+ *
+ * @author Addicticks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeLookupBenchmark {
+
+    /**
+     * Number of entries in the tree. Determines the depth of the tree.
+     */
+    @Param({"1000", "100000"})
+    public int entries;
+
+    /**
+     * Length of an additional chain of nodes below the first leaf.
+     */
+    @Param({"0", "8"})
+    public int extraDepth;
+
+    private Preferences root;
+    private String path;
+    private String missingPath;
+
+    @Setup
+    public void setUp() {
+        TemporaryPreferences userRoot = new TemporaryPreferences(null, "");
+        PrefsTreeGenerator generator = new PrefsTreeGenerator(10, 4);
+        generator.populate(NodeSink.of(userRoot), entries);
+        StringBuilder sb = new StringBuilder(generator.firstLeafPath(entries));
+        for (int i = 0; i < extraDepth; i++) {
+            sb.append("/level").append(i);
+        }
+        path = sb.toString();
+        missingPath = path + "/missing";
+        userRoot.node(path);
+        root = userRoot;
+    }
+
+    @Benchmark
+    public Preferences nodeAbsolute() {
+        return root.node(path);
+    }
+
+    @Benchmark
+    public boolean nodeExists() throws BackingStoreException {
+        return root.nodeExists(path);
+    }
+
+    @Benchmark
+    public boolean nodeExistsMissing() throws BackingStoreException {
+        return root.nodeExists(missingPath);
+    }
+}
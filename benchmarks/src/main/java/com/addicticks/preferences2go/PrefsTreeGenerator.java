@@ -0,0 +1,221 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+
+/**
+ * Generates preference trees of a given size, shaped like RFA
+ * configuration trees: namespaces containing connections, each with 
+ * a handful of entries. Keys and many values repeat across nodes, as they
+ * do in real configurations.
+ * 
+ * <p>
+ * The same tree can be written as a Preferences XML file or be put
+ * directly into a {@link NodeSink}, so that any storage or parser can be
+ * measured against the same data.
+ *
+ * @author Addicticks
+ */
+class PrefsTreeGenerator {
+
+    private final int fanOut;
+    private final int entriesPerNode;
+
+    /**
+     * @param fanOut number of children per non-leaf node
+     * @param entriesPerNode number of entries per leaf node
+     */
+    PrefsTreeGenerator(int fanOut, int entriesPerNode) {
+        this.fanOut = fanOut;
+        this.entriesPerNode = entriesPerNode;
+    }
+
+    /**
+     * Receives the generated tree.
+     */
+    private interface Visitor {
+
+        void startNode(String name);
+
+        void entry(String key, String value);
+
+        void endNode();
+    }
+
+    /**
+     * Writes a tree with (at least) the given number of entries to a file.
+     */
+    void writeXml(Path file, int totalEntries) throws IOException {
+        try (Writer w = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+            w.write("<!DOCTYPE preferences SYSTEM \"http://java.sun.com/dtd/preferences.dtd\">\n");
+            w.write("<preferences EXTERNAL_XML_VERSION=\"1.0\">\n");
+            w.write("<root type=\"user\">\n<map/>\n");
+            try {
+                generate(totalEntries, new Visitor() {
+                    private boolean mapOpen = false;
+
+                    @Override
+                    public void startNode(String name) {
+                        closeMap();
+                        write("<node name=\"" + name + "\">\n");
+                        write("<map>\n");
+                        mapOpen = true;
+                    }
+
+                    @Override
+                    public void entry(String key, String value) {
+                        write("<entry key=\"" + key + "\" value=\"" + value + "\"/>\n");
+                    }
+
+                    @Override
+                    public void endNode() {
+                        closeMap();
+                        write("</node>\n");
+                    }
+
+                    private void closeMap() {
+                        if (mapOpen) {
+                            write("</map>\n");
+                            mapOpen = false;
+                        }
+                    }
+
+                    private void write(String s) {
+                        try {
+                            w.write(s);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            w.write("</root>\n</preferences>\n");
+        }
+    }
+
+    /**
+     * Puts a tree with (at least) the given number of entries into a sink.
+     */
+    void populate(NodeSink root, int totalEntries) {
+        ArrayDeque<NodeSink> path = new ArrayDeque<>();
+        path.push(root);
+        generate(totalEntries, new Visitor() {
+            @Override
+            public void startNode(String name) {
+                path.push(path.peek().child(name));
+            }
+
+            @Override
+            public void entry(String key, String value) {
+                path.peek().put(key, value);
+            }
+
+            @Override
+            public void endNode() {
+                path.pop();
+            }
+        });
+    }
+
+    /**
+     * Returns the absolute path of the first leaf node of a generated tree.
+     */
+    String firstLeafPath(int totalEntries) {
+        StringBuilder sb = new StringBuilder();
+        int depth = depth(totalEntries);
+        String prefix = "";
+        for (int level = depth; level >= 1; level--) {
+            sb.append('/').append(nodeName(level, prefix, 0));
+            prefix = prefix + "0_";
+        }
+        return sb.toString();
+    }
+
+    private int depth(int totalEntries) {
+        int leaves = leaves(totalEntries);
+        int depth = 1;
+        long capacity = fanOut;
+        while (capacity < leaves) {
+            capacity *= fanOut;
+            depth++;
+        }
+        return depth;
+    }
+
+    private int leaves(int totalEntries) {
+        return Math.max(1, (totalEntries + entriesPerNode - 1) / entriesPerNode);
+    }
+
+    private void generate(int totalEntries, Visitor visitor) {
+        generateLevel(visitor, depth(totalEntries), new int[]{leaves(totalEntries)}, "");
+    }
+
+    private void generateLevel(Visitor visitor, int depth, int[] leavesLeft, String prefix) {
+        for (int i = 0; i < fanOut && leavesLeft[0] > 0; i++) {
+            visitor.startNode(nodeName(depth, prefix, i));
+            if (depth == 1) {
+                for (int e = 0; e < entriesPerNode; e++) {
+                    visitor.entry(keyName(e), value(e, i));
+                }
+                leavesLeft[0]--;
+            } else {
+                generateLevel(visitor, depth - 1, leavesLeft, prefix + i + "_");
+            }
+            visitor.endNode();
+        }
+    }
+
+    private static String nodeName(int depth, String prefix, int i) {
+        return (depth == 1 ? "Connection" : "Namespace") + prefix + i;
+    }
+
+    private static String keyName(int e) {
+        switch (e) {
+            case 0:
+                return "connectionType";
+            case 1:
+                return "serverList";
+            case 2:
+                return "portNumber";
+            default:
+                return "key" + e;
+        }
+    }
+
+    private static String value(int e, int i) {
+        switch (e) {
+            case 0:
+                return "RSSL";
+            case 1:
+                return "trep" + (i % 8) + "-ldn, trep" + (i % 8 + 1) + "-ldn";
+            case 2:
+                return Integer.toString(14002 + (i % 4));
+            default:
+                return "value" + e + "_" + i;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The pretty printing done on startup when {@code pref2go.printPref} is
+ * set. The text goes to a reused buffer, so the allocation seen with
+ * {@code -prof gc} is that of the printing itself.
+ *
+ * @author Addicticks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class PrettyPrintBenchmark {
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    private TemporaryPreferences root;
+    private final StringBuilder out = new StringBuilder();
+
+    @Setup
+    public void setUp() {
+        root = new TemporaryPreferences(null, "");
+        new PrefsTreeGenerator(10, 4).populate(NodeSink.of(root), entries);
+    }
+
+    @Benchmark
+    public int prettyPrint() throws IOException {
+        out.setLength(0);
+        root.printSubtree(out, null);
+        return out.length();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Creation of a {@link TemporaryPreferencesFactory}, i.e. the work done
+ * when {@code java.util.prefs.Preferences} is initialized, for the
+ * different ways of loading.
+ *
+ * @author Addicticks
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class StartupBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int entries;
+
+    /**
+     * Comma separated list of properties set to "true", or "none".
+     */
+    @Param({"none", "pref2go.lazyLoad", "pref2go.compactStorage", "cache", "cache,pref2go.lazyLoad"})
+    public String options;
+
+    private Path dir;
+    private Properties properties;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pref2go-bench");
+        Path xmlFile = dir.resolve("prefs.xml");
+        new PrefsTreeGenerator(10, 4).writeXml(xmlFile, entries);
+        properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, xmlFile.toString());
+        for (String option : options.split(",")) {
+            if (option.equals("cache")) {
+                properties.setProperty(TemporaryPreferencesFactory.KEY_CACHE_FILE, dir.resolve("prefs.cache").toString());
+            } else if (!option.equals("none")) {
+                properties.setProperty(option, "true");
+            }
+        }
+        // Makes sure the cache, if any, is compiled
+        new TemporaryPreferencesFactory(properties);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(dir.resolve("prefs.xml"));
+        Files.deleteIfExists(dir.resolve("prefs.cache"));
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public TemporaryPreferencesFactory createFactory() throws Exception {
+        return new TemporaryPreferencesFactory(properties);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Compares factory startup time and retained heap when loading from the 
+ * XML file with when loading from the binary cache, both eagerly and 
+ * lazily. 
+ * Run with:
+ * 
+ * <pre>
+ *   java -cp target/benchmarks.jar com.addicticks.preferences2go.StartupHeapBenchmark [entries]
+ * </pre>
+ * 
+ * <p>
+ * Unlike the JMH benchmarks this reports heap usage, which JMH does not
+ * measure.
+ *
+ * @author Addicticks
+ */
+public class StartupHeapBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 200_000;
+        Path dir = Files.createTempDirectory("pref2go-bench");
+        Path xmlFile = dir.resolve("prefs.xml");
+        Path cacheFile = dir.resolve("prefs.cache");
+        try {
+            new PrefsTreeGenerator(10, 4).writeXml(xmlFile, entries);
+            System.out.println("Entries: " + entries + ", file size: " + Files.size(xmlFile) + " bytes");
+
+            Properties xmlOnly = new Properties();
+            xmlOnly.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, xmlFile.toString());
+            Properties withCache = new Properties();
+            withCache.putAll(xmlOnly);
+            withCache.setProperty(TemporaryPreferencesFactory.KEY_CACHE_FILE, cacheFile.toString());
+            Properties lazyXml = new Properties();
+            lazyXml.putAll(xmlOnly);
+            lazyXml.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, "true");
+            Properties lazyCache = new Properties();
+            lazyCache.putAll(withCache);
+            lazyCache.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, "true");
+
+            // Compile the cache
+            new TemporaryPreferencesFactory(withCache);
+            System.out.println("Cache file size: " + Files.size(cacheFile) + " bytes");
+
+            for (int round = 0; round < 5; round++) {
+                run("XML         ", xmlOnly);
+                run("Cache       ", withCache);
+                run("XML (lazy)  ", lazyXml);
+                run("Cache (lazy)", lazyCache);
+            }
+        } finally {
+            Files.deleteIfExists(xmlFile);
+            Files.deleteIfExists(cacheFile);
+            Files.delete(dir);
+        }
+    }
+
+    private static void run(String name, Properties props) throws Exception {
+        long before = usedHeap();
+        long start = System.nanoTime();
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(props);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        long retained = usedHeap() - before;
+        System.out.printf("%s : %6d ms, retained heap %6d MB%n", name, millis, retained / (1024 * 1024));
+        factory.userRoot().node("Namespace0/Namespace0_0"); // keep reachable
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Binary cache of a preference tree. The cache is a compiled form of 
+ * a preferences XML file which is a lot faster to load than the XML file
+ * itself because it needs no parsing or validation.
+ * 
+ * <p>
+ * The cache is keyed by the content hash of the source it was compiled
+ * from, so that a stale cache is never used.
+ * 
+ * <p>
+ * File layout (all integers are big-endian):
+ * <pre>
+ *   int      magic
+ *   int      format version
+ *   byte[32] SHA-256 of source
+ *   int      number of strings,  then per string: int length, UTF-8 bytes
+ *   int      number of nodes,    then per node:   int parent node, int name string
+ *   int      number of entries,  then per entry:  int node, int key string, int value string
+ * </pre>
+ * Node 0 is the user root and node 1 is the system root. Any other node
+ * appears after its parent. Every distinct string is stored only once.
+ *
+ * @author Addicticks
+ */
+class BinaryCache {
+
+    private static final Logger LOGGER = Logger.getLogger(BinaryCache.class.getName());
+
+    private static final int MAGIC = 0x50324743; // "P2GC"
+    private static final int FORMAT_VERSION = 1;
+    static final int HASH_LENGTH = 32;
+    private static final int USER_ROOT = 0;
+    private static final int SYSTEM_ROOT = 1;
+
+    private BinaryCache() {
+    }
+
+    /**
+     * Calculates the content hash of a file.
+     */
+    static byte[] hash(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream is = Files.newInputStream(file)) {
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                digest.update(buf, 0, n);
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Calculates the content hash of a list of files. The order of the
+     * files matters. For a single file it's the same as 
+     * {@link #hash(Path)}.
+     */
+    static byte[] hash(List<Path> files) throws IOException {
+        if (files.size() == 1) {
+            return hash(files.get(0));
+        }
+        MessageDigest digest = newDigest();
+        for (Path file : files) {
+            digest.update(hash(file));
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256
+            throw new AssertionError(ex);
+        }
+    }
+
+    /**
+     * Loads the cache file into the given roots, if the cache file exists
+     * and was compiled from a source with the given hash.
+     * 
+     * <p>
+     * The cache is fully validated before anything is put into the
+     * roots, so if this method returns {@code false} the roots have not
+     * been touched.
+     *
+     * @return true if the cache was loaded, false if the cache does not
+     * exist, is stale or is unreadable.
+     */
+    static boolean load(Path cacheFile, byte[] expectedHash, NodeSink userRoot, NodeSink systemRoot) throws IOException {
+        Tables tables;
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+                LOGGER.log(Level.FINE, "Cache file \"{0}\" has unknown format. Ignoring.", cacheFile);
+                return false;
+            }
+            byte[] hash = new byte[HASH_LENGTH];
+            buf.get(hash);
+            if (!Arrays.equals(hash, expectedHash)) {
+                LOGGER.log(Level.FINE, "Cache file \"{0}\" is stale. Ignoring.", cacheFile);
+                return false;
+            }
+            tables = Tables.read(buf);
+        } catch (NoSuchFileException ex) {
+            return false;
+        } catch (BufferUnderflowException | IllegalArgumentException ex) {
+            LOGGER.log(Level.WARNING, "Cache file \"" + cacheFile + "\" is corrupt. Ignoring.", ex);
+            return false;
+        }
+        tables.copyTo(userRoot, systemRoot);
+        return true;
+    }
+
+    /**
+     * The string, node and entry tables of a compiled tree, that is the
+     * part of the file which follows the hash.
+     */
+    static final class Tables {
+
+        private final String[] strings;
+        private final int[] nodeParents;
+        private final int[] nodeNames;
+        private final int[] entries;
+
+        private Tables(String[] strings, int[] nodeParents, int[] nodeNames, int[] entries) {
+            this.strings = strings;
+            this.nodeParents = nodeParents;
+            this.nodeNames = nodeNames;
+            this.entries = entries;
+        }
+
+        /**
+         * Reads and validates the tables.
+         * 
+         * @throws BufferUnderflowException if the tables are truncated
+         * @throws IllegalArgumentException if the tables are corrupt
+         */
+        static Tables read(ByteBuffer buf) {
+            String[] strings = readStrings(buf);
+            int nodeCount = readCount(buf, 8);
+            if (nodeCount <= SYSTEM_ROOT) {
+                throw new IllegalArgumentException("Invalid count " + nodeCount);
+            }
+            int[] nodeParents = new int[nodeCount];
+            int[] nodeNames = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                nodeParents[i] = buf.getInt();
+                nodeNames[i] = buf.getInt();
+                if (i > SYSTEM_ROOT && (nodeParents[i] < 0 || nodeParents[i] >= i || nodeNames[i] < 0 || nodeNames[i] >= strings.length)) {
+                    throw new IllegalArgumentException("Invalid node " + i);
+                }
+            }
+            int[] entries = new int[readCount(buf, 12) * 3];
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = buf.getInt();
+                int limit = (i % 3 == 0) ? nodeCount : strings.length;
+                if (entries[i] < 0 || entries[i] >= limit) {
+                    throw new IllegalArgumentException("Invalid entry " + (i / 3));
+                }
+            }
+            return new Tables(strings, nodeParents, nodeNames, entries);
+        }
+
+        /**
+         * Copies the trees into the given roots.
+         */
+        void copyTo(NodeSink userRoot, NodeSink systemRoot) {
+            NodeSink[] nodes = new NodeSink[nodeParents.length];
+            nodes[USER_ROOT] = userRoot;
+            nodes[SYSTEM_ROOT] = systemRoot;
+            for (int i = SYSTEM_ROOT + 1; i < nodes.length; i++) {
+                nodes[i] = nodes[nodeParents[i]].child(strings[nodeNames[i]]);
+            }
+            for (int i = 0; i < entries.length; i += 3) {
+                nodes[entries[i]].put(strings[entries[i + 1]], strings[entries[i + 2]]);
+            }
+        }
+
+        /**
+         * Compiles the given roots into tables.
+         */
+        static void write(DataOutputStream out, NodeData userRoot, NodeData systemRoot) throws IOException {
+            Compiler compiler = new Compiler();
+            int userRootIdx = compiler.addNode(-1, null);
+            int systemRootIdx = compiler.addNode(-1, null);
+            compiler.addSubtree(userRoot, userRootIdx);
+            compiler.addSubtree(systemRoot, systemRootIdx);
+
+            out.writeInt(compiler.strings.size());
+            for (String s : compiler.strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(compiler.nodes.size() / 2);
+            for (int i : compiler.nodes) {
+                out.writeInt(i);
+            }
+            out.writeInt(compiler.entries.size() / 3);
+            for (int i : compiler.entries) {
+                out.writeInt(i);
+            }
+        }
+    }
+
+    private static int readCount(ByteBuffer buf, int bytesPerItem) {
+        int count = buf.getInt();
+        if (count < 0 || (long) count * bytesPerItem > buf.remaining()) {
+            throw new IllegalArgumentException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    private static String[] readStrings(ByteBuffer buf) {
+        String[] strings = new String[readCount(buf, 4)];
+        byte[] scratch = new byte[256];
+        for (int i = 0; i < strings.length; i++) {
+            int len = readCount(buf, 1);
+            if (len > scratch.length) {
+                scratch = new byte[Math.max(len, scratch.length * 2)];
+            }
+            buf.get(scratch, 0, len);
+            strings[i] = new String(scratch, 0, len, StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    /**
+     * Compiles the given roots into a cache file. The file is written 
+     * to a temporary file first and then renamed, so that readers never
+     * see a partially written cache.
+     */
+    static void write(Path cacheFile, byte[] hash, NodeData userRoot, NodeData systemRoot) throws IOException {
+        Path dir = cacheFile.toAbsolutePath().getParent();
+        Path tmpFile = Files.createTempFile(dir, cacheFile.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.write(hash);
+                Tables.write(out, userRoot, systemRoot);
+            }
+            try {
+                Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    /**
+     * Flattens a tree into string, node and entry tables.
+     */
+    private static class Compiler {
+
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final List<Integer> nodes = new ArrayList<>();
+        private final List<Integer> entries = new ArrayList<>();
+
+        private int string(String s) {
+            Integer idx = stringIndex.get(s);
+            if (idx == null) {
+                idx = strings.size();
+                strings.add(s);
+                stringIndex.put(s, idx);
+            }
+            return idx;
+        }
+
+        private int addNode(int parent, String name) {
+            int nodeIdx = nodes.size() / 2;
+            nodes.add(parent);
+            nodes.add((name == null) ? -1 : string(name));
+            return nodeIdx;
+        }
+
+        private void addSubtree(NodeData node, int nodeIdx) {
+            for (int i = 0; i < node.entryCount(); i++) {
+                entries.add(nodeIdx);
+                entries.add(string(node.key(i)));
+                entries.add(string(node.value(i)));
+            }
+            for (int i = 0; i < node.childCount(); i++) {
+                NodeData kid = node.child(i);
+                addSubtree(kid, addNode(nodeIdx, kid.name()));
+            }
+        }
+    }
+}
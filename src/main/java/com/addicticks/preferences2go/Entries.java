@@ -0,0 +1,307 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The preference entries (key/value pairs) of a single node.
+ * 
+ * <p>
+ * Implementations allow reads from any thread without locking. Writes
+ * are always done while holding the node's lock and therefore need no
+ * synchronization amongst themselves.
+ *
+ * @author Addicticks
+ */
+abstract class Entries {
+
+    /**
+     * Returns the value for the key, or <tt>null</tt>.
+     */
+    abstract String get(String key);
+
+    /**
+     * Associates the value with the key.
+     * @return the previous value or <tt>null</tt>
+     */
+    abstract String put(String key, String value);
+
+    /**
+     * Removes the key.
+     * @return the previous value or <tt>null</tt>
+     */
+    abstract String remove(String key);
+
+    abstract String[] keys();
+
+    abstract int size();
+
+    abstract void clear();
+
+    /**
+     * Entries backed by a concurrent hash map.
+     */
+    static final class Hash extends Entries {
+
+        private final ConcurrentHashMap<String, String> map = new ConcurrentHashMap<>();
+
+        @Override
+        String get(String key) {
+            return map.get(key);
+        }
+
+        @Override
+        String put(String key, String value) {
+            return map.put(key, value);
+        }
+
+        @Override
+        String remove(String key) {
+            return map.remove(key);
+        }
+
+        @Override
+        String[] keys() {
+            return map.keySet().toArray(new String[map.size()]);
+        }
+
+        @Override
+        int size() {
+            return map.size();
+        }
+
+        @Override
+        void clear() {
+            map.clear();
+        }
+    }
+
+    /**
+     * Memory-lean entries. Small nodes (the vast majority) keep their 
+     * entries in an array of alternating keys and values which is
+     * replaced, never modified, on write. Once a node grows beyond
+     * {@link #MAX_ARRAY_ENTRIES} entries it switches to a concurrent hash
+     * map.
+     */
+    static final class Compact extends Entries {
+
+        static final int MAX_ARRAY_ENTRIES = 8;
+        private static final Object[] EMPTY = new Object[0];
+
+        /**
+         * Either an {@code Object[]} of alternating keys and values or a
+         * {@code ConcurrentHashMap<String,String>}.
+         */
+        private volatile Object state = EMPTY;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        String get(String key) {
+            Object s = state;
+            if (s instanceof Object[]) {
+                Object[] kv = (Object[]) s;
+                for (int i = 0; i < kv.length; i += 2) {
+                    if (kv[i] == key || kv[i].equals(key)) {
+                        return (String) kv[i + 1];
+                    }
+                }
+                return null;
+            }
+            return ((ConcurrentHashMap<String, String>) s).get(key);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        String put(String key, String value) {
+            Object s = state;
+            if (!(s instanceof Object[])) {
+                return ((ConcurrentHashMap<String, String>) s).put(key, value);
+            }
+            Object[] kv = (Object[]) s;
+            int idx = indexOf(kv, key);
+            if (idx >= 0) {
+                Object[] copy = kv.clone();
+                copy[idx + 1] = value;
+                state = copy;
+                return (String) kv[idx + 1];
+            }
+            if (kv.length / 2 < MAX_ARRAY_ENTRIES) {
+                Object[] copy = Arrays.copyOf(kv, kv.length + 2);
+                copy[kv.length] = key;
+                copy[kv.length + 1] = value;
+                state = copy;
+            } else {
+                ConcurrentHashMap<String, String> map = new ConcurrentHashMap<>();
+                for (int i = 0; i < kv.length; i += 2) {
+                    map.put((String) kv[i], (String) kv[i + 1]);
+                }
+                map.put(key, value);
+                state = map;
+            }
+            return null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        String remove(String key) {
+            Object s = state;
+            if (!(s instanceof Object[])) {
+                return ((ConcurrentHashMap<String, String>) s).remove(key);
+            }
+            Object[] kv = (Object[]) s;
+            int idx = indexOf(kv, key);
+            if (idx < 0) {
+                return null;
+            }
+            Object[] copy = (kv.length == 2) ? EMPTY : new Object[kv.length - 2];
+            System.arraycopy(kv, 0, copy, 0, idx);
+            System.arraycopy(kv, idx + 2, copy, idx, kv.length - idx - 2);
+            state = copy;
+            return (String) kv[idx + 1];
+        }
+
+        private static int indexOf(Object[] kv, String key) {
+            for (int i = 0; i < kv.length; i += 2) {
+                if (kv[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        String[] keys() {
+            Object s = state;
+            if (s instanceof Object[]) {
+                Object[] kv = (Object[]) s;
+                String[] keys = new String[kv.length / 2];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = (String) kv[i * 2];
+                }
+                return keys;
+            }
+            ConcurrentHashMap<String, String> map = (ConcurrentHashMap<String, String>) s;
+            return map.keySet().toArray(new String[map.size()]);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        int size() {
+            Object s = state;
+            if (s instanceof Object[]) {
+                return ((Object[]) s).length / 2;
+            }
+            return ((ConcurrentHashMap<String, String>) s).size();
+        }
+
+        @Override
+        void clear() {
+            state = EMPTY;
+        }
+
+        /**
+         * Returns true if the entries are kept in the array rather than
+         * in a map.
+         */
+        boolean isArray() {
+            return state instanceof Object[];
+        }
+    }
+
+    /**
+     * Entries which share the arrays of a {@link NodeData} until the first
+     * write, when they are copied into entries of their own. Used by 
+     * forked trees, see {@link TemporaryPreferences#fork()}, so that a 
+     * fork only holds copies of the entries it has changed.
+     */
+    static final class Shared extends Entries {
+
+        private final TreeContext context;
+
+        /**
+         * Either the {@code NodeData} whose entries are shared or the
+         * {@code Entries} they have been copied to.
+         */
+        private volatile Object state;
+
+        Shared(NodeData data, TreeContext context) {
+            this.state = data;
+            this.context = context;
+        }
+
+        private Entries own() {
+            Object s = state;
+            if (s instanceof Entries) {
+                return (Entries) s;
+            }
+            NodeData data = (NodeData) s;
+            Entries copy = context.newEntries();
+            for (int i = 0; i < data.entryCount(); i++) {
+                copy.put(data.key(i), data.value(i));
+            }
+            state = copy;
+            return copy;
+        }
+
+        @Override
+        String get(String key) {
+            Object s = state;
+            return (s instanceof NodeData) ? ((NodeData) s).get(key) : ((Entries) s).get(key);
+        }
+
+        @Override
+        String put(String key, String value) {
+            return own().put(key, value);
+        }
+
+        @Override
+        String remove(String key) {
+            Object s = state;
+            if (s instanceof NodeData && ((NodeData) s).get(key) == null) {
+                return null;
+            }
+            return own().remove(key);
+        }
+
+        @Override
+        String[] keys() {
+            Object s = state;
+            if (s instanceof Entries) {
+                return ((Entries) s).keys();
+            }
+            NodeData data = (NodeData) s;
+            String[] keys = new String[data.entryCount()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = data.key(i);
+            }
+            return keys;
+        }
+
+        @Override
+        int size() {
+            Object s = state;
+            return (s instanceof NodeData) ? ((NodeData) s).entryCount() : ((Entries) s).size();
+        }
+
+        @Override
+        void clear() {
+            state = context.newEntries();
+        }
+    }
+}
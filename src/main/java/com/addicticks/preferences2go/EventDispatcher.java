@@ -0,0 +1,384 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.EventListener;
+import java.util.EventObject;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+/**
+ * Delivers the {@link PreferenceChangeEvent}s and {@link NodeChangeEvent}s
+ * of the nodes of a tree to their listeners.
+ * 
+ * <p>
+ * Unlike {@code AbstractPreferences}, which delivers all events of the JVM
+ * one after the other on a single thread, every registered listener has
+ * its own queue of events which is drained by a task on an 
+ * {@link Executor}. A slow listener therefore only delays its own events.
+ * A listener which is registered with several nodes, or as both kinds of
+ * listener, still has a single queue, so it receives its events in order,
+ * one at a time. 
+ * 
+ * <p>
+ * Preference change events are coalesced per node and key: if a listener
+ * hasn't yet received the event for a key of a node when the key changes 
+ * again, it only receives the latest value, in the position of the earlier
+ * event. The queue of a listener which can't keep up therefore never holds
+ * more than one event per key of the nodes it listens to, and events are
+ * delivered at the rate at which the listener consumes them.
+ * 
+ * <p>
+ * A listener which throws does not prevent delivery of later events.
+ *
+ * @author Addicticks
+ */
+final class EventDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(EventDispatcher.class.getName());
+
+    /**
+     * Maximum number of events delivered to a listener before its task
+     * yields the thread to the tasks of other listeners.
+     */
+    static final int MAX_EVENTS_PER_RUN = 64;
+
+    private final Executor executor;
+    private final PreferencesMetrics metrics;
+
+    /**
+     * Registrations by listener, compared by identity. Guarded by this.
+     */
+    private final Map<EventListener, Registration> registrations = new IdentityHashMap<>();
+
+    /**
+     * @param executor runs the delivery tasks, or <tt>null</tt> for 
+     * {@link #defaultExecutor()}.
+     * @param metrics where to record dispatch metrics, or <tt>null</tt>
+     */
+    EventDispatcher(Executor executor, PreferencesMetrics metrics) {
+        this.executor = (executor != null) ? executor : defaultExecutor();
+        this.metrics = metrics;
+    }
+
+    private static final class DefaultExecutorHolder {
+
+        static final ExecutorService EXECUTOR = newThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Returns the executor shared by all dispatchers which haven't been
+     * given an executor of their own.
+     */
+    static Executor defaultExecutor() {
+        return DefaultExecutorHolder.EXECUTOR;
+    }
+
+    /**
+     * Creates a pool of daemon threads. Threads which have been idle for
+     * a while are ended.
+     */
+    static ExecutorService newThreadPool(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "Preferences2Go event dispatcher " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Creates an executor which starts a virtual thread for each task, or
+     * returns <tt>null</tt> if the Java platform doesn't have virtual
+     * threads.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Registers a preference change listener or a node change listener
+     * with a node. The same registration is returned each time the same 
+     * listener is registered, until it has been released as many times.
+     * 
+     * @return the registration, to which events are offered 
+     */
+    synchronized Registration register(EventListener listener) {
+        Registration registration = registrations.computeIfAbsent(listener, Registration::new);
+        registration.references++;
+        return registration;
+    }
+
+    /**
+     * Releases a registration when its listener is removed from a node, or
+     * the node is removed. Events which are already queued are still 
+     * delivered.
+     */
+    synchronized void release(Registration registration) {
+        registration.references--;
+        if (registration.references == 0) {
+            registrations.remove(registration.listener);
+        }
+    }
+
+    /**
+     * Offers a preference change event to each of the registrations.
+     */
+    void dispatch(Registration[] registrations, PreferenceChangeEvent event) {
+        for (Registration registration : registrations) {
+            registration.offer(new ChangeKey(event), new Pending(event, true, timestamp()));
+        }
+    }
+
+    /**
+     * Offers preference change events, in the given order, to each of the
+     * registrations. Each registration is only scheduled once.
+     */
+    void dispatch(Registration[] registrations, List<PreferenceChangeEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        long timestamp = timestamp();
+        for (Registration registration : registrations) {
+            synchronized (registration) {
+                for (PreferenceChangeEvent event : events) {
+                    registration.add(new ChangeKey(event), new Pending(event, true, timestamp));
+                }
+            }
+            registration.schedule();
+        }
+    }
+
+    /**
+     * Offers a node change event to each of the registrations.
+     * 
+     * @param added true if the child was added, false if it was removed
+     */
+    void dispatch(Registration[] registrations, NodeChangeEvent event, boolean added) {
+        for (Registration registration : registrations) {
+            // Node events are never coalesced
+            registration.offer(new Object(), new Pending(event, added, timestamp()));
+        }
+    }
+
+    private long timestamp() {
+        return (metrics != null) ? System.nanoTime() : 0;
+    }
+
+    /**
+     * An event which is yet to be delivered.
+     */
+    static final class Pending {
+
+        final EventObject event;
+        final boolean added;
+        long enqueuedNanos;
+
+        Pending(EventObject event, boolean added, long enqueuedNanos) {
+            this.event = event;
+            this.added = added;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * Identifies the preference change events which replace each other:
+     * those for the same key of the same node.
+     */
+    private static final class ChangeKey {
+
+        private final Preferences node;
+        private final String key;
+
+        ChangeKey(PreferenceChangeEvent event) {
+            this.node = event.getNode();
+            this.key = event.getKey();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ChangeKey)) {
+                return false;
+            }
+            ChangeKey other = (ChangeKey) obj;
+            return node == other.node && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(node) + key.hashCode();
+        }
+    }
+
+    /**
+     * A listener together with its queue of events. The queue is drained
+     * by a task which is scheduled when the queue becomes non-empty.
+     */
+    final class Registration implements Runnable {
+
+        final EventListener listener;
+
+        /**
+         * Number of times the listener is registered. Guarded by the 
+         * dispatcher.
+         */
+        private int references;
+
+        // Guarded by this
+        private final LinkedHashMap<Object, Pending> pending = new LinkedHashMap<>();
+        private boolean scheduled;
+        private boolean cancelled;
+
+        Registration(EventListener listener) {
+            this.listener = listener;
+        }
+
+        private void deliver(Pending next) {
+            if (next.event instanceof PreferenceChangeEvent) {
+                ((PreferenceChangeListener) listener).preferenceChange((PreferenceChangeEvent) next.event);
+            } else if (next.added) {
+                ((NodeChangeListener) listener).childAdded((NodeChangeEvent) next.event);
+            } else {
+                ((NodeChangeListener) listener).childRemoved((NodeChangeEvent) next.event);
+            }
+        }
+
+        void offer(Object coalesceKey, Pending event) {
+            synchronized (this) {
+                add(coalesceKey, event);
+            }
+            schedule();
+        }
+
+        /**
+         * Adds an event to the queue, replacing the event with the same
+         * key. Must be called while holding the registration's lock.
+         */
+        void add(Object coalesceKey, Pending event) {
+            if (cancelled) {
+                return;
+            }
+            Pending replaced = pending.put(coalesceKey, event);
+            if (metrics != null) {
+                if (replaced != null) {
+                    event.enqueuedNanos = replaced.enqueuedNanos;
+                    metrics.recordEventCoalesced();
+                } else {
+                    metrics.recordEventQueued();
+                }
+            }
+        }
+
+        void schedule() {
+            synchronized (this) {
+                if (scheduled || pending.isEmpty()) {
+                    return;
+                }
+                scheduled = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                LOGGER.log(Level.FINE, "Event dispatcher has been shut down, dropping events", ex);
+                cancel();
+            }
+        }
+
+        /**
+         * Drops the events of one kind from the given node which are not
+         * yet delivered.
+         * 
+         * @param nodeEvents true for node change events, false for 
+         * preference change events
+         */
+        synchronized void drop(Preferences node, boolean nodeEvents) {
+            int size = pending.size();
+            pending.values().removeIf(p -> p.event.getSource() == node 
+                    && (p.event instanceof NodeChangeEvent) == nodeEvents);
+            if (metrics != null) {
+                metrics.recordEventsDropped(size - pending.size());
+            }
+        }
+
+        /**
+         * Drops the events not yet delivered and accepts no more.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            if (metrics != null) {
+                metrics.recordEventsDropped(pending.size());
+            }
+            pending.clear();
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_EVENTS_PER_RUN; i++) {
+                Pending next;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                    Iterator<Pending> it = pending.values().iterator();
+                    next = it.next();
+                    it.remove();
+                }
+                if (metrics != null) {
+                    metrics.recordEventDelivered(System.nanoTime() - next.enqueuedNanos);
+                }
+                try {
+                    deliver(next);
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "Listener " + listener + " threw an exception", ex);
+                }
+            }
+            // Let other listeners have a go
+            synchronized (this) {
+                scheduled = false;
+            }
+            schedule();
+        }
+    }
+}
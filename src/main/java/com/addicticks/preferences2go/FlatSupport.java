@@ -0,0 +1,390 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.prefs.InvalidPreferencesFormatException;
+
+/**
+ * Loader for preferences in a flat, line-oriented format, which is a lot
+ * cheaper to parse than XML. Files with the extension {@value #EXTENSION}
+ * are in this format. Each line (UTF-8) is one of:
+ * <pre>
+ *   /absolute/node/path:key=value   a preference
+ *   /absolute/node/path             a node without preferences
+ *   [user] or [system]              the tree of the lines that follow
+ *   # comment
+ * </pre>
+ * Lines before the first {@code [user]} or {@code [system]} are in the
+ * user tree. Empty lines are ignored. A backslash escapes the character
+ * following it, so {@code \:} is a colon in a node name, {@code \=} an
+ * equals sign in a key and {@code \\} a backslash, while {@code \n},
+ * {@code \r} and {@code \t} are a newline, carriage return and tab. When
+ * a preference appears more than once, the last one wins. Names, keys
+ * and values are subject to the same limits as those of
+ * {@link java.util.prefs.Preferences}, and a node name can't contain a
+ * slash, not even an escaped one.
+ *
+ * <p>
+ * The file is memory-mapped and decoded in small pieces. Nodes are looked
+ * up only for the part of a line's path which differs from the path of
+ * the previous line, so a file where preferences of the same node are
+ * on consecutive lines is parsed with little more than the strings of the
+ * keys and values. Large files are split at line ends into chunks which
+ * are parsed in parallel on the common {@link ForkJoinPool}.
+ *
+ * @author Addicticks
+ */
+final class FlatSupport {
+
+    /**
+     * File name extension of files in this format.
+     */
+    static final String EXTENSION = ".flat";
+
+    /**
+     * Files are only split into chunks of at least this size.
+     */
+    static final int MIN_CHUNK_BYTES = 1 << 20;
+
+    private static final int BUFFER_CHARS = 8192;
+
+    private static final int LEAD = 0;
+    private static final int USER = 1;
+    private static final int SYSTEM = 2;
+
+    private FlatSupport() {
+    }
+
+    /**
+     * Returns true if the file is in the flat format, judging by its name.
+     */
+    static boolean isFlatFile(Path file) {
+        Path name = file.getFileName();
+        return name != null && name.toString().toLowerCase(Locale.ROOT).endsWith(EXTENSION);
+    }
+
+    /**
+     * Import preferences from the specified file into the specified
+     * sinks. If the file is invalid, the preferences which were imported
+     * up until the point of the error may remain in the sinks.
+     */
+    static void importPreferences(Path file, NodeSink userRoot, NodeSink systemRoot) throws IOException, InvalidPreferencesFormatException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File \"" + file + "\" is too large");
+            }
+            ByteBuffer bytes = (size == 0) ? ByteBuffer.allocate(0) : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int chunks = (int) Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_CHUNK_BYTES);
+            importPreferences(bytes, Math.max(1, chunks), userRoot, systemRoot);
+        }
+    }
+
+    /**
+     * Import preferences from the bytes, split into the given number of
+     * chunks which are parsed in parallel.
+     */
+    static void importPreferences(ByteBuffer bytes, int chunks, NodeSink userRoot, NodeSink systemRoot) throws IOException, InvalidPreferencesFormatException {
+        if (chunks <= 1) {
+            new Parser(userRoot, userRoot, systemRoot).parse(bytes);
+        } else {
+            List<ForkJoinTask<Parser>> tasks = new ArrayList<>(chunks);
+            int start = bytes.position();
+            for (int i = 1; i <= chunks && start < bytes.limit(); i++) {
+                int end = (i == chunks) ? bytes.limit() : lineEnd(bytes, start + (bytes.limit() - start) / (chunks - i + 1));
+                ByteBuffer chunk = bytes.duplicate();
+                chunk.position(start);
+                chunk.limit(end);
+                tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                    Parser parser = new Parser(new NodeData.Builder(""), new NodeData.Builder(""), new NodeData.Builder(""));
+                    parser.parse(chunk);
+                    return parser;
+                }));
+                start = end;
+            }
+            // In file order, so later lines override earlier ones. The lines
+            // before the first header of a chunk belong to the tree of the
+            // last header of the chunks before.
+            NodeSink userSink = XmlSupport.withoutEnd(userRoot);
+            NodeSink systemSink = XmlSupport.withoutEnd(systemRoot);
+            int section = USER;
+            for (ForkJoinTask<Parser> task : tasks) {
+                Parser parser = XmlSupport.join(task);
+                parser.data(LEAD).copyTo((section == USER) ? userSink : systemSink);
+                parser.data(USER).copyTo(userSink);
+                parser.data(SYSTEM).copyTo(systemSink);
+                if (parser.section != LEAD) {
+                    section = parser.section;
+                }
+            }
+        }
+        userRoot.end();
+        systemRoot.end();
+    }
+
+    /**
+     * Returns the position following the first line end at or after
+     * {@code from}. A line end byte is never part of a multi-byte
+     * character in UTF-8.
+     */
+    private static int lineEnd(ByteBuffer bytes, int from) {
+        for (int i = from; i < bytes.limit(); i++) {
+            if (bytes.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return bytes.limit();
+    }
+
+    /**
+     * Parses lines into sinks. Keeps the path of the previous line and the
+     * sinks of the nodes on it.
+     */
+    private static final class Parser {
+
+        private final NodeSink[] roots;
+        private int section = LEAD;
+
+        private char[] path = new char[128];
+        private int pathLength = -1;
+        private int pathSection;
+        // End of each name in path, and the sinks of the nodes along it
+        // with the root at index 0
+        private int[] nameEnds = new int[16];
+        private int depth;
+        private NodeSink[] nodes = new NodeSink[17];
+
+        Parser(NodeSink lead, NodeSink user, NodeSink system) {
+            this.roots = new NodeSink[]{lead, user, system};
+        }
+
+        NodeData data(int section) {
+            return ((NodeData.Builder) roots[section]).build();
+        }
+
+        void parse(ByteBuffer bytes) throws IOException, InvalidPreferencesFormatException {
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+            CharBuffer chars = CharBuffer.allocate(BUFFER_CHARS);
+            while (true) {
+                CoderResult result = decoder.decode(bytes, chars, true);
+                if (result.isError()) {
+                    result.throwException();
+                }
+                boolean done = result.isUnderflow();
+                if (done) {
+                    decoder.flush(chars);
+                }
+                chars.flip();
+                char[] a = chars.array();
+                int lineStart = chars.position();
+                for (int i = lineStart; i < chars.limit(); i++) {
+                    if (a[i] == '\n') {
+                        line(a, lineStart, i);
+                        lineStart = i + 1;
+                    }
+                }
+                if (done) {
+                    if (lineStart < chars.limit()) {
+                        line(a, lineStart, chars.limit());
+                    }
+                    return;
+                }
+                chars.position(lineStart);
+                if (lineStart == 0 && chars.limit() == chars.capacity()) {
+                    // A line longer than the buffer
+                    CharBuffer bigger = CharBuffer.allocate(chars.capacity() * 2);
+                    bigger.put(chars);
+                    chars = bigger;
+                } else {
+                    chars.compact();
+                }
+            }
+        }
+
+        private void line(char[] a, int start, int end) throws InvalidPreferencesFormatException {
+            if (end > start && a[end - 1] == '\r') {
+                end--;
+            }
+            if (start == end || a[start] == '#') {
+                return;
+            }
+            if (a[start] == '[') {
+                String header = new String(a, start, end - start);
+                if (header.equals("[user]")) {
+                    section = USER;
+                } else if (header.equals("[system]")) {
+                    section = SYSTEM;
+                } else {
+                    throw invalid(a, start, end);
+                }
+                return;
+            }
+            if (a[start] != '/') {
+                throw invalid(a, start, end);
+            }
+            int pathEnd = findUnescaped(a, start, end, ':');
+            try {
+                NodeSink node = node(a, start, pathEnd);
+                if (node == null) {
+                    throw invalid(a, start, end);
+                }
+                if (pathEnd == end) {
+                    return;
+                }
+                int keyEnd = findUnescaped(a, pathEnd + 1, end, '=');
+                if (keyEnd == end) {
+                    throw invalid(a, start, end);
+                }
+                node.put(unescape(a, pathEnd + 1, keyEnd), unescape(a, keyEnd + 1, end));
+            } catch (IllegalArgumentException ex) {
+                // An invalid name, key or value
+                InvalidPreferencesFormatException invalid = invalid(a, start, end);
+                invalid.initCause(ex);
+                throw invalid;
+            }
+        }
+
+        /**
+         * Returns the sink of the node with the given path, reusing the
+         * sinks of the previous line's path as far as the paths are the
+         * same. Returns <tt>null</tt> if the path is invalid.
+         */
+        private NodeSink node(char[] a, int start, int end) {
+            int length = end - start;
+            if (pathSection == section && length == pathLength && equals(a, start, path, 0, length)) {
+                return nodes[depth];
+            }
+            boolean same = (pathSection == section && pathLength >= 0);
+            if (path.length < length) {
+                path = Arrays.copyOf(path, Math.max(length, path.length * 2));
+            }
+            nodes[0] = roots[section];
+            int newDepth = 0;
+            int nameStart = 1;
+            int prevNameStart = 1;
+            if (length == 1) {
+                // The root
+                same = false;
+            }
+            while (length > 1 && nameStart <= length) {
+                int nameEnd = findUnescaped(a, start + nameStart, end, '/') - start;
+                if (nameEnd == nameStart) {
+                    // Empty name
+                    pathLength = -1;
+                    return null;
+                }
+                if (same && newDepth < depth && nameEnds[newDepth] - prevNameStart == nameEnd - nameStart
+                        && equals(a, start + nameStart, path, prevNameStart, nameEnd - nameStart)) {
+                    // Same as on the previous line
+                } else {
+                    same = false;
+                    if (newDepth + 1 >= nodes.length) {
+                        nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                        nameEnds = Arrays.copyOf(nameEnds, nodes.length - 1);
+                    }
+                    nodes[newDepth + 1] = nodes[newDepth].child(unescape(a, start + nameStart, start + nameEnd));
+                    nameEnds[newDepth] = nameEnd;
+                }
+                prevNameStart = nameEnds[newDepth] + 1;
+                newDepth++;
+                nameStart = nameEnd + 1;
+            }
+            System.arraycopy(a, start, path, 0, length);
+            pathLength = length;
+            pathSection = section;
+            depth = newDepth;
+            return nodes[depth];
+        }
+
+        private static boolean equals(char[] a, int aStart, char[] b, int bStart, int length) {
+            for (int i = 0; i < length; i++) {
+                if (a[aStart + i] != b[bStart + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int findUnescaped(char[] a, int start, int end, char c) {
+            for (int i = start; i < end; i++) {
+                if (a[i] == '\\') {
+                    i++;
+                } else if (a[i] == c) {
+                    return i;
+                }
+            }
+            return end;
+        }
+
+        private static String unescape(char[] a, int start, int end) {
+            int backslash = end;
+            for (int i = start; i < end; i++) {
+                if (a[i] == '\\') {
+                    backslash = i;
+                    break;
+                }
+            }
+            if (backslash == end) {
+                return new String(a, start, end - start);
+            }
+            StringBuilder sb = new StringBuilder(end - start);
+            sb.append(a, start, backslash - start);
+            for (int i = backslash; i < end; i++) {
+                char c = a[i];
+                if (c == '\\' && i + 1 < end) {
+                    c = a[++i];
+                    switch (c) {
+                        case 'n':
+                            c = '\n';
+                            break;
+                        case 'r':
+                            c = '\r';
+                            break;
+                        case 't':
+                            c = '\t';
+                            break;
+                        default:
+                    }
+                }
+                sb.append(c);
+            }
+            return sb.toString();
+        }
+
+        private static InvalidPreferencesFormatException invalid(char[] a, int start, int end) {
+            return new InvalidPreferencesFormatException("Invalid line \""
+                    + new String(a, start, Math.min(end - start, 200)) + "\"");
+        }
+    }
+}
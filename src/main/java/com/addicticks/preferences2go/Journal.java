@@ -0,0 +1,675 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.Preferences;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the changes made to the preference trees. 
+ * Together with the XML file from which the trees were loaded (the base)
+ * the journal gives the current state of the trees.
+ * 
+ * <p>
+ * Changes are encoded while holding the lock of the changed node and
+ * handed over to the journal's own thread, which appends all changes 
+ * which have accumulated since its last write in one go (group commit).
+ * Depending on the {@link Sync} policy the file is then forced to disk.
+ * {@link #flush(TemporaryPreferences)} waits until all changes made before
+ * the call have been written (and forced, unless the policy is
+ * {@link Sync#NEVER}).
+ * 
+ * <p>
+ * When the journal has grown past a threshold it is compacted: it's 
+ * replaced by a journal which holds only the net differences between the
+ * base and the current trees.
+ * 
+ * <p>
+ * When the base is reloaded, see {@link #rebase(NodeData, NodeData)}, the
+ * changes which the reload makes to the trees are not recorded, as they
+ * are part of the new base. Instead the journal is compacted against the
+ * reloaded base, so that it doesn't hold runtime changes which the 
+ * reload has overwritten.
+ * 
+ * <p>
+ * File format: a header ({@code MAGIC}, {@code FORMAT_VERSION}) followed 
+ * by records. Each record is the length of the payload, the payload and 
+ * a CRC32 of the payload. The payload is the operation, the tree type,
+ * the absolute path of the node and, depending on the operation, key and
+ * value. Strings are stored as length and UTF-8 bytes. A record which is
+ * incomplete or fails the CRC check, e.g. because of a crash while
+ * writing, ends the journal.
+ *
+ * @author Addicticks
+ */
+class Journal implements TreeObserver, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(Journal.class.getName());
+
+    static final int MAGIC = 0x50324A4C; // "P2JL"
+    static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_ADD_NODE = 3;
+    private static final byte OP_REMOVE_NODE = 4;
+
+    /**
+     * When the journal file is forced to disk.
+     */
+    enum Sync {
+        /** After every write, i.e. once per group of changes */
+        ALWAYS,
+        /** Only on {@code flush()}, {@code sync()} and close */
+        FLUSH,
+        /** Never, it's left to the operating system */
+        NEVER
+    }
+
+    /**
+     * How long to wait before trying again after a failed write.
+     */
+    private static final long RETRY_MILLIS = 1000;
+
+    private final TemporaryPreferences userRoot;
+    private final TemporaryPreferences systemRoot;
+    private final Path file;
+    private final XmlFileList baseFiles;
+    private final Sync sync;
+    private final long compactBytes;
+    private final Thread thread;
+
+    /**
+     * Only accessed by the journal's thread, and by {@link #close()} once
+     * the thread has ended.
+     */
+    private FileChannel channel;
+
+    // Guarded by this
+    private List<byte[]> pending = new ArrayList<>();
+    private long enqueued;
+
+    private final Object monitor = new Object();
+    // Guarded by monitor
+    private long written;
+    private long failed = -1;
+    private Exception failure;
+
+    private volatile boolean syncRequested;
+    private volatile boolean closing;
+
+    /**
+     * The thread whose changes are currently not recorded, see 
+     * {@link #suspend()}.
+     */
+    private volatile Thread suspended;
+
+    /**
+     * The reloaded base to compact against, see {@link #rebase(NodeData, NodeData)}.
+     */
+    private final AtomicReference<NodeData[]> rebase = new AtomicReference<>();
+
+    /**
+     * Journal size at which to compact next. Only accessed by the
+     * journal's thread.
+     */
+    private long nextCompaction;
+
+    /**
+     * Opens the journal for appending and starts its thread. The journal
+     * must have been replayed first, see {@link #replay(Path, Preferences, Preferences)},
+     * and must be registered as an observer of the trees to be notified
+     * of changes.
+     * 
+     * @param userRoot the root of the user tree
+     * @param systemRoot the root of the system tree
+     * @param file the journal file
+     * @param validLength the length of the valid part of the file, as
+     * returned by {@code replay()}. Anything beyond is discarded.
+     * @param baseFiles the XML files which the journal is relative to
+     * @param sync when to force the journal to disk
+     * @param compactBytes the size of the journal at which it is compacted
+     */
+    Journal(TemporaryPreferences userRoot, TemporaryPreferences systemRoot, 
+            Path file, long validLength, XmlFileList baseFiles, Sync sync, long compactBytes) throws IOException {
+        this.userRoot = userRoot;
+        this.systemRoot = systemRoot;
+        this.file = file.toAbsolutePath();
+        this.baseFiles = baseFiles;
+        this.sync = sync;
+        this.compactBytes = compactBytes;
+        this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (validLength < HEADER_SIZE) {
+            channel.truncate(0);
+            channel.write(header(), 0);
+            channel.position(HEADER_SIZE);
+        } else {
+            channel.truncate(validLength);
+            channel.position(validLength);
+        }
+        this.nextCompaction = compactBytes;
+        this.thread = new Thread(this::run, "Preferences2Go journal");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+        return header;
+    }
+
+    /**
+     * Applies the changes recorded in the journal to the trees.
+     * 
+     * @return the length of the valid part of the journal, or 0 if there is 
+     * no journal or it isn't valid at all.
+     */
+    static long replay(Path file, Preferences userRoot, Preferences systemRoot) throws IOException, BackingStoreException {
+        ByteBuffer buf;
+        try {
+            // Not mapped, as a mapped file cannot be truncated on all platforms
+            buf = ByteBuffer.wrap(Files.readAllBytes(file));
+        } catch (NoSuchFileException ex) {
+            return 0;
+        }
+        if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+            LOGGER.log(Level.WARNING, "Journal \"{0}\" is not valid and is ignored", file);
+            return 0;
+        }
+        int records = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            int start = buf.position();
+            ByteBuffer payload;
+            try {
+                int length = buf.getInt();
+                if (length <= 0 || length > buf.remaining() - 4) {
+                    buf.position(start);
+                    break;
+                }
+                payload = buf.slice();
+                payload.limit(length);
+                buf.position(buf.position() + length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != buf.getInt()) {
+                    buf.position(start);
+                    break;
+                }
+            } catch (BufferUnderflowException ex) {
+                buf.position(start);
+                break;
+            }
+            apply(payload, userRoot, systemRoot);
+            records++;
+        }
+        if (buf.hasRemaining()) {
+            LOGGER.log(Level.WARNING, "Journal \"{0}\" ends with an incomplete record which is discarded", file);
+        }
+        LOGGER.log(Level.FINE, "{0} change(s) replayed from journal \"{1}\"", new Object[]{records, file});
+        return buf.position();
+    }
+
+    private static void apply(ByteBuffer payload, Preferences userRoot, Preferences systemRoot) throws BackingStoreException {
+        byte op = payload.get();
+        Preferences root = (payload.get() == 0) ? userRoot : systemRoot;
+        String path = readString(payload);
+        switch (op) {
+            case OP_PUT:
+                root.node(path).put(readString(payload), readString(payload));
+                break;
+            case OP_REMOVE:
+                if (root.nodeExists(path)) {
+                    root.node(path).remove(readString(payload));
+                }
+                break;
+            case OP_ADD_NODE:
+                root.node(path);
+                break;
+            case OP_REMOVE_NODE:
+                if (root.nodeExists(path)) {
+                    root.node(path).removeNode();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown journal operation " + op);
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a change as a record.
+     */
+    private static byte[] record(byte op, boolean userNode, String path, String key, String value) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0); // length, filled in below
+            out.writeByte(op);
+            out.writeByte(userNode ? 0 : 1);
+            writeString(out, path);
+            if (key != null) {
+                writeString(out, key);
+            }
+            if (value != null) {
+                writeString(out, value);
+            }
+            out.writeInt(0); // crc, filled in below
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            int length = record.capacity() - 8;
+            record.putInt(0, length);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 4, length);
+            record.putInt(4 + length, (int) crc.getValue());
+            return record.array();
+        } catch (IOException ex) {
+            // Cannot happen with a ByteArrayOutputStream
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Stops recording the changes which the current thread makes to the
+     * trees, until {@link #resume()}. Changes made by other threads 
+     * meanwhile are still recorded.
+     */
+    void suspend() {
+        suspended = Thread.currentThread();
+    }
+
+    /**
+     * Records changes again after {@link #suspend()}.
+     */
+    void resume() {
+        suspended = null;
+    }
+
+    /**
+     * Tells the journal that the base has been reloaded and that the
+     * reloaded version has been applied to the trees. The journal is
+     * compacted against the given trees, so that afterwards it holds only
+     * the differences between them and the current trees.
+     * 
+     * @param userBase the reloaded user tree
+     * @param systemBase the reloaded system tree
+     */
+    void rebase(NodeData userBase, NodeData systemBase) {
+        rebase.set(new NodeData[]{userBase, systemBase});
+        LockSupport.unpark(thread);
+    }
+
+    private boolean isSuspended() {
+        return suspended == Thread.currentThread();
+    }
+
+    private void enqueue(byte[] record) {
+        synchronized (this) {
+            pending.add(record);
+            enqueued++;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void put(TemporaryPreferences node, String key, String value) {
+        if (isSuspended()) {
+            return;
+        }
+        enqueue(record(OP_PUT, node.isUserNode(), node.absolutePath(), key, value));
+    }
+
+    @Override
+    public void remove(TemporaryPreferences node, String key) {
+        if (isSuspended()) {
+            return;
+        }
+        enqueue(record(OP_REMOVE, node.isUserNode(), node.absolutePath(), key, null));
+    }
+
+    @Override
+    public void nodeAdded(TemporaryPreferences node) {
+        if (isSuspended()) {
+            return;
+        }
+        enqueue(record(OP_ADD_NODE, node.isUserNode(), node.absolutePath(), null, null));
+    }
+
+    @Override
+    public void nodeRemoved(TemporaryPreferences node) {
+        if (isSuspended()) {
+            return;
+        }
+        enqueue(record(OP_REMOVE_NODE, node.isUserNode(), node.absolutePath(), null, null));
+    }
+
+    @Override
+    public void flush(TemporaryPreferences node) throws BackingStoreException {
+        long target;
+        synchronized (this) {
+            target = enqueued;
+        }
+        synchronized (monitor) {
+            while (written < target) {
+                if (failed >= target) {
+                    throw new BackingStoreException(failure);
+                }
+                if (!thread.isAlive()) {
+                    throw new BackingStoreException("Journal \"" + file + "\" has been closed");
+                }
+                syncRequested = true;
+                LockSupport.unpark(thread);
+                try {
+                    monitor.wait(100);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new BackingStoreException(ex);
+                }
+            }
+        }
+    }
+
+    private void run() {
+        // Number of changes appended to the file, not necessarily forced
+        long appended = 0;
+        while (true) {
+            List<byte[]> batch;
+            long last;
+            synchronized (this) {
+                batch = pending;
+                last = enqueued;
+                pending = new ArrayList<>();
+            }
+            try {
+                if (!batch.isEmpty()) {
+                    try {
+                        append(batch);
+                    } catch (IOException ex) {
+                        synchronized (this) {
+                            // Try again later
+                            batch.addAll(pending);
+                            pending = batch;
+                        }
+                        throw ex;
+                    }
+                    appended = last;
+                }
+                if (appended > written()) {
+                    boolean force = (sync == Sync.ALWAYS) || (sync == Sync.FLUSH && (syncRequested || closing));
+                    if (force || sync == Sync.NEVER) {
+                        syncRequested = false;
+                        if (force) {
+                            channel.force(false);
+                        }
+                        synchronized (monitor) {
+                            written = appended;
+                            monitor.notifyAll();
+                        }
+                    }
+                }
+                NodeData[] rebased = rebase.getAndSet(null);
+                if (rebased != null) {
+                    compact(rebased[0], rebased[1]);
+                } else if (!batch.isEmpty() && !closing && channel.position() >= nextCompaction) {
+                    compact(null, null);
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Could not write to journal \"" + file + "\"", ex);
+                synchronized (monitor) {
+                    failed = last;
+                    failure = ex;
+                    monitor.notifyAll();
+                }
+                if (closing) {
+                    return;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS));
+                continue;
+            }
+            if (batch.isEmpty()) {
+                if (closing) {
+                    return;
+                }
+                LockSupport.park(this);
+            }
+        }
+    }
+
+    private long written() {
+        synchronized (monitor) {
+            return written;
+        }
+    }
+
+    /**
+     * Appends records to the journal. If that fails, the journal is 
+     * truncated to where it was, so that it never ends with an
+     * incomplete record followed by complete ones.
+     */
+    private void append(List<byte[]> records) throws IOException {
+        long position = channel.position();
+        try {
+            appendAt(records);
+        } catch (IOException ex) {
+            try {
+                channel.truncate(position);
+                channel.position(position);
+            } catch (IOException ex2) {
+                ex.addSuppressed(ex2);
+            }
+            throw ex;
+        }
+    }
+
+    private void appendAt(List<byte[]> records) throws IOException {
+        int size = 0;
+        for (byte[] record : records) {
+            size += record.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        for (byte[] record : records) {
+            buf.put(record);
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Replaces the journal by one which holds only the differences 
+     * between the base and the current trees. Runs on the journal's 
+     * thread, so changes made meanwhile are simply queued and appended to
+     * the new journal afterwards. Such changes may already be reflected in
+     * the new journal, which is harmless because replaying them again 
+     * gives the same result.
+     * 
+     * @param userBase the base user tree, or <tt>null</tt> to read the
+     * base from the XML files
+     * @param systemBase the base system tree, or <tt>null</tt> to read the
+     * base from the XML files
+     */
+    private void compact(NodeData userBase, NodeData systemBase) {
+        long before = 0;
+        Path tmpFile = null;
+        try {
+            before = channel.position();
+            if (userBase == null) {
+                NodeData.Builder userData = new NodeData.Builder("");
+                NodeData.Builder systemData = new NodeData.Builder("");
+                XmlSupport.importPreferences(baseFiles.resolve(), userData, systemData);
+                userBase = userData.build();
+                systemBase = systemData.build();
+            }
+
+            List<byte[]> records = new ArrayList<>();
+            diff(records, true, "/", userBase, userRoot);
+            diff(records, false, "/", systemBase, systemRoot);
+
+            tmpFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (FileChannel fc = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+                fc.write(header());
+                for (byte[] record : records) {
+                    fc.write(ByteBuffer.wrap(record));
+                }
+                fc.force(false);
+            }
+            try {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            channel.close();
+            channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            nextCompaction = Math.max(compactBytes, channel.size() * 2);
+            LOGGER.log(Level.FINE, "Journal \"{0}\" compacted from {1} to {2} bytes", new Object[]{file, before, channel.size()});
+        } catch (IOException | InvalidPreferencesFormatException | RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "Could not compact journal \"" + file + "\"", ex);
+            nextCompaction = before * 2;
+        } finally {
+            if (tmpFile != null) {
+                try {
+                    Files.deleteIfExists(tmpFile);
+                } catch (IOException ex) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the records needed to turn {@code base} into {@code current}.
+     * Both are either {@code TemporaryPreferences}, {@code NodeData} or
+     * <tt>null</tt> for a node which doesn't exist.
+     */
+    private static void diff(List<byte[]> records, boolean userNode, String path, Object base, Object current) {
+        if (current == null) {
+            records.add(record(OP_REMOVE_NODE, userNode, path, null, null));
+            return;
+        }
+        if (base == null) {
+            records.add(record(OP_ADD_NODE, userNode, path, null, null));
+        }
+        Map<String, String> baseEntries = entries(base);
+        Map<String, String> currentEntries = entries(current);
+        for (String key : baseEntries.keySet()) {
+            if (!currentEntries.containsKey(key)) {
+                records.add(record(OP_REMOVE, userNode, path, key, null));
+            }
+        }
+        for (Map.Entry<String, String> entry : currentEntries.entrySet()) {
+            if (!entry.getValue().equals(baseEntries.get(entry.getKey()))) {
+                records.add(record(OP_PUT, userNode, path, entry.getKey(), entry.getValue()));
+            }
+        }
+        TreeMap<String, Object> baseChildren = children(base);
+        TreeMap<String, Object> currentChildren = children(current);
+        for (String name : baseChildren.keySet()) {
+            if (!currentChildren.containsKey(name)) {
+                diff(records, userNode, childPath(path, name), baseChildren.get(name), null);
+            }
+        }
+        for (Map.Entry<String, Object> child : currentChildren.entrySet()) {
+            Object baseChild = baseChildren.get(child.getKey());
+            diff(records, userNode, childPath(path, child.getKey()), baseChild, child.getValue());
+        }
+    }
+
+    private static String childPath(String path, String name) {
+        return path.equals("/") ? path + name : path + "/" + name;
+    }
+
+    private static Map<String, String> entries(Object node) {
+        Map<String, String> entries = new HashMap<>();
+        if (node instanceof TemporaryPreferences) {
+            ((TemporaryPreferences) node).exportEntries(entries::put);
+        } else if (node != null) {
+            NodeData data = (NodeData) node;
+            for (int i = 0; i < data.entryCount(); i++) {
+                entries.put(data.key(i), data.value(i));
+            }
+        }
+        return entries;
+    }
+
+    private static TreeMap<String, Object> children(Object node) {
+        if (node instanceof TemporaryPreferences) {
+            return ((TemporaryPreferences) node).children();
+        }
+        TreeMap<String, Object> children = new TreeMap<>();
+        if (node != null) {
+            NodeData data = (NodeData) node;
+            for (int i = 0; i < data.childCount(); i++) {
+                children.put(data.child(i).name(), data.child(i));
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Writes pending changes and closes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
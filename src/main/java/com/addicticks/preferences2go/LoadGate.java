@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Makes access to preference nodes wait while the trees are being loaded
+ * in the background.
+ * 
+ * <p>
+ * Access to a node waits until the node and all of its descendants have 
+ * been loaded, which may be long before the whole load has completed. 
+ * Whether a node is a part of the loaded data is only known once its 
+ * parent has been loaded, so access to a node which is not (yet) loaded
+ * waits until one of its ancestors has been. How soon a subtree is 
+ * complete depends on the loader: only loaders which call 
+ * {@link NodeSink#end()} report completed subtrees, for others everything
+ * waits for the whole load.
+ * 
+ * <p>
+ * If the load fails, all access from then on throws {@code IllegalStateException}.
+ * The loader thread itself is never made to wait.
+ *
+ * @author Addicticks
+ */
+final class LoadGate {
+
+    private final Thread loader;
+    private final Set<String> completedUser = ConcurrentHashMap.newKeySet();
+    private final Set<String> completedSystem = ConcurrentHashMap.newKeySet();
+    private final Object monitor = new Object();
+    private volatile boolean done;
+    private volatile Throwable failure;
+
+    /**
+     * @param loader the thread which loads the trees
+     */
+    LoadGate(Thread loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Waits until the node with the given absolute path is loaded or known 
+     * not to be a part of the loaded data.
+     * 
+     * @throws IllegalStateException if the load has failed.
+     */
+    void await(TemporaryPreferences.TreeType treeType, String absolutePath) {
+        if (Thread.currentThread() == loader) {
+            return;
+        }
+        Set<String> completed = (treeType == TemporaryPreferences.TreeType.SYSTEM) ? completedSystem : completedUser;
+        awaitUntil(() -> isLoaded(completed, absolutePath));
+    }
+
+    /**
+     * Waits until the whole load has completed.
+     * 
+     * @throws IllegalStateException if the load has failed.
+     */
+    void awaitDone() {
+        if (Thread.currentThread() == loader) {
+            return;
+        }
+        awaitUntil(this::isDone);
+    }
+
+    private void awaitUntil(BooleanSupplier condition) {
+        boolean interrupted = false;
+        try {
+            while (!condition.getAsBoolean()) {
+                synchronized (monitor) {
+                    if (!condition.getAsBoolean()) {
+                        try {
+                            monitor.wait();
+                        } catch (InterruptedException ex) {
+                            interrupted = true;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean isDone() {
+        Throwable f = failure;
+        if (f != null) {
+            throw new IllegalStateException("Preferences could not be loaded", f);
+        }
+        return done;
+    }
+
+    private boolean isLoaded(Set<String> completed, String absolutePath) {
+        if (isDone()) {
+            return true;
+        }
+        String path = absolutePath;
+        while (true) {
+            if (completed.contains(path)) {
+                return true;
+            }
+            int slash = path.lastIndexOf('/');
+            if (slash <= 0) {
+                return path.length() > 1 && completed.contains("/");
+            }
+            path = path.substring(0, slash);
+        }
+    }
+
+    /**
+     * Returns a sink which reports to this gate when a subtree written
+     * to {@code sink} is complete.
+     * 
+     * @param sink sink for the root of a tree
+     */
+    NodeSink track(NodeSink sink, TemporaryPreferences.TreeType treeType) {
+        return track(sink, (treeType == TemporaryPreferences.TreeType.SYSTEM) ? completedSystem : completedUser, "/");
+    }
+
+    private NodeSink track(NodeSink sink, Set<String> completed, String path) {
+        return new NodeSink() {
+            @Override
+            public NodeSink child(String name) {
+                return track(sink.child(name), completed, path.equals("/") ? path + name : path + "/" + name);
+            }
+
+            @Override
+            public void put(String key, String value) {
+                sink.put(key, value);
+            }
+
+            @Override
+            public void end() {
+                sink.end();
+                completed.add(path);
+                synchronized (monitor) {
+                    monitor.notifyAll();
+                }
+            }
+        };
+    }
+
+    /**
+     * Called when the load has completed successfully.
+     */
+    void done() {
+        done = true;
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * Called when the load has failed.
+     */
+    void failed(Throwable cause) {
+        failure = cause;
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+}
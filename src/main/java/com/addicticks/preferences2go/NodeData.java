@@ -0,0 +1,295 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable, compact representation of a preference node and its
+ * subtree. This is the form in which loaded preferences are kept until
+ * they are turned into {@link TemporaryPreferences} nodes.
+ * 
+ * <p>
+ * Entries are sorted by key and children are sorted by name. Since the
+ * class is immutable, a changed tree can share all unchanged subtrees 
+ * with the original, see {@link #withEntry(String, String)} and friends.
+ *
+ * @author Addicticks
+ */
+final class NodeData {
+
+    private static final String[] NO_STRINGS = new String[0];
+    private static final NodeData[] NO_CHILDREN = new NodeData[0];
+
+    private final String name;
+    private final String[] keys;
+    private final String[] values;
+    private final NodeData[] children;
+
+    private NodeData(String name, String[] keys, String[] values, NodeData[] children) {
+        this.name = name;
+        this.keys = keys;
+        this.values = values;
+        this.children = children;
+    }
+
+    /**
+     * Name of the node, relative to its parent. 
+     * Empty string for a root node.
+     */
+    String name() {
+        return name;
+    }
+
+    int entryCount() {
+        return keys.length;
+    }
+
+    String key(int i) {
+        return keys[i];
+    }
+
+    String value(int i) {
+        return values[i];
+    }
+
+    int childCount() {
+        return children.length;
+    }
+
+    NodeData child(int i) {
+        return children[i];
+    }
+
+    /**
+     * Number of entries of this node and all of its descendants.
+     */
+    int totalEntryCount() {
+        int count = keys.length;
+        for (NodeData kid : children) {
+            count += kid.totalEntryCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the value for the key, or <tt>null</tt> if there is none.
+     */
+    String get(String key) {
+        int i = Arrays.binarySearch(keys, key);
+        return (i >= 0) ? values[i] : null;
+    }
+
+    /**
+     * Returns the child with the given name, or <tt>null</tt> if there
+     * is none.
+     */
+    NodeData child(String childName) {
+        int i = indexOfChild(childName);
+        return (i >= 0) ? children[i] : null;
+    }
+
+    private int indexOfChild(String childName) {
+        int low = 0;
+        int high = children.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = children[mid].name.compareTo(childName);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Returns a node without entries or children.
+     */
+    static NodeData empty(String name) {
+        return new NodeData(name, NO_STRINGS, NO_STRINGS, NO_CHILDREN);
+    }
+
+    /**
+     * Returns a node with the given entries and children. The children
+     * must be sorted by name.
+     */
+    static NodeData of(String name, SortedMap<String, String> entries, List<NodeData> children) {
+        String[] keys = entries.isEmpty() ? NO_STRINGS : entries.keySet().toArray(new String[entries.size()]);
+        String[] values = entries.isEmpty() ? NO_STRINGS : entries.values().toArray(new String[entries.size()]);
+        NodeData[] kids = children.isEmpty() ? NO_CHILDREN : children.toArray(new NodeData[children.size()]);
+        return new NodeData(name, keys, values, kids);
+    }
+
+    /**
+     * Returns a copy of this node with the entry added or replaced, or
+     * this node if it already has the entry.
+     */
+    NodeData withEntry(String key, String value) {
+        int i = Arrays.binarySearch(keys, key);
+        if (i >= 0) {
+            if (values[i].equals(value)) {
+                return this;
+            }
+            String[] newValues = values.clone();
+            newValues[i] = value;
+            return new NodeData(name, keys, newValues, children);
+        }
+        int at = -(i + 1);
+        return new NodeData(name, insert(keys, at, key), insert(values, at, value), children);
+    }
+
+    /**
+     * Returns a copy of this node without the entry, or this node if it
+     * doesn't have the entry.
+     */
+    NodeData withoutEntry(String key) {
+        int i = Arrays.binarySearch(keys, key);
+        if (i < 0) {
+            return this;
+        }
+        return new NodeData(name, delete(keys, i), delete(values, i), children);
+    }
+
+    /**
+     * Returns a copy of this node with the child added or replaced, or
+     * this node if it already has the very same child.
+     */
+    NodeData withChild(NodeData kid) {
+        int i = indexOfChild(kid.name);
+        if (i >= 0) {
+            if (children[i] == kid) {
+                return this;
+            }
+            NodeData[] newChildren = children.clone();
+            newChildren[i] = kid;
+            return new NodeData(name, keys, values, newChildren);
+        }
+        int at = -(i + 1);
+        return new NodeData(name, keys, values, insert(children, at, kid));
+    }
+
+    /**
+     * Returns a copy of this node without the named child, or this node
+     * if it doesn't have the child.
+     */
+    NodeData withoutChild(String childName) {
+        int i = indexOfChild(childName);
+        if (i < 0) {
+            return this;
+        }
+        return new NodeData(name, keys, values, delete(children, i));
+    }
+
+    private static <T> T[] insert(T[] array, int at, T element) {
+        T[] result = Arrays.copyOf(array, array.length + 1);
+        System.arraycopy(array, at, result, at + 1, array.length - at);
+        result[at] = element;
+        return result;
+    }
+
+    private static <T> T[] delete(T[] array, int at) {
+        T[] result = Arrays.copyOf(array, array.length - 1);
+        System.arraycopy(array, at + 1, result, at, array.length - at - 1);
+        return result;
+    }
+
+    /**
+     * Copies this node and its subtree into the given sink.
+     */
+    void copyTo(NodeSink sink) {
+        for (int i = 0; i < keys.length; i++) {
+            sink.put(keys[i], values[i]);
+        }
+        for (NodeData kid : children) {
+            kid.copyTo(sink.child(kid.name));
+        }
+        sink.end();
+    }
+
+    /**
+     * Builds a {@link NodeData} tree. Putting a key twice or creating 
+     * a child twice has the same effect as on a preference node, and 
+     * so have invalid names, keys and values.
+     */
+    static class Builder implements NodeSink {
+
+        private final String name;
+        private final TreeContext context;
+        private final Map<String, String> entries = new TreeMap<>();
+        private final Map<String, Builder> children = new TreeMap<>();
+
+        Builder(String name) {
+            this(name, null);
+        }
+
+        /**
+         * @param name name of the node
+         * @param context if not <tt>null</tt>, names, keys and values are
+         * de-duplicated according to the settings of this context
+         */
+        Builder(String name, TreeContext context) {
+            this.name = name;
+            this.context = context;
+        }
+
+        private String intern(String s) {
+            return (context != null) ? context.intern(s) : s;
+        }
+
+        @Override
+        public Builder child(String childName) {
+            return children.computeIfAbsent(childName, n -> new Builder(intern(NodeSink.checkName(n)), context));
+        }
+
+        @Override
+        public void put(String key, String value) {
+            NodeSink.checkEntry(key, value);
+            entries.put(intern(key), intern(value));
+        }
+
+        NodeData build() {
+            String[] keys = NO_STRINGS;
+            String[] values = NO_STRINGS;
+            if (!entries.isEmpty()) {
+                keys = new String[entries.size()];
+                values = new String[entries.size()];
+                int i = 0;
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    keys[i] = entry.getKey();
+                    values[i] = entry.getValue();
+                    i++;
+                }
+            }
+            NodeData[] kids = NO_CHILDREN;
+            if (!children.isEmpty()) {
+                kids = new NodeData[children.size()];
+                int i = 0;
+                for (Builder kid : children.values()) {
+                    kids[i++] = kid.build();
+                }
+            }
+            return new NodeData(name, keys, values, kids);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the number of loaded entries held in memory within a budget by
+ * evicting the data of cold nodes to a {@link SpillFile}.
+ *
+ * <p>
+ * Only nodes which were created from loaded data and have not been changed
+ * since are candidates. Evicting such a node moves its entries and its
+ * children which are yet to be created to the spill file, while the
+ * node itself stays in the tree. The data is read back the next time the
+ * node is accessed, see {@link TemporaryPreferences#evict(SpillFile)}.
+ *
+ * <p>
+ * Candidates are kept in a clock: a node which has been accessed since
+ * the hand last passed it gets another round, others are evicted. The
+ * clock is swept on the evictor's own daemon thread, which holds the lock
+ * of one node at a time.
+ *
+ * @author Addicticks
+ */
+final class NodeEvictor implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(NodeEvictor.class.getName());
+
+    private final long maxResidentEntries;
+    private final SpillFile spillFile;
+    private final ConcurrentLinkedQueue<TemporaryPreferences> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicLong residentEntries = new AtomicLong();
+    private final Semaphore wakeup = new Semaphore(0);
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Creates and starts an evictor.
+     *
+     * @param maxResidentEntries the budget
+     * @param spillFile where evicted data is kept
+     */
+    NodeEvictor(long maxResidentEntries, SpillFile spillFile) {
+        this.maxResidentEntries = maxResidentEntries;
+        this.spillFile = spillFile;
+        this.thread = new Thread(this::run, "Preferences2Go evictor");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Adds a node which has become a candidate for eviction.
+     *
+     * @param weight number of entries of the node, including those of its
+     * children which are yet to be created
+     */
+    void admit(TemporaryPreferences node, int weight) {
+        clock.add(node);
+        if (residentEntries.addAndGet(weight) > maxResidentEntries) {
+            wakeup.release();
+        }
+    }
+
+    /**
+     * Changes the number of resident entries without adding a node.
+     */
+    void adjust(int delta) {
+        residentEntries.addAndGet(delta);
+    }
+
+    /**
+     * Reads back the data of an evicted node.
+     */
+    NodeData read(long offset) throws IOException {
+        return spillFile.read(offset);
+    }
+
+    /**
+     * Number of entries of candidate nodes which are held in memory.
+     */
+    long residentEntries() {
+        return residentEntries.get();
+    }
+
+    private void run() {
+        // Not stopped by interrupting, which could happen in the middle of a write
+        while (!closed) {
+            wakeup.acquireUninterruptibly();
+            wakeup.drainPermits();
+            if (!closed) {
+                sweep();
+            }
+        }
+    }
+
+    /**
+     * Evicts nodes until within budget. Each node is visited at most
+     * twice, so nodes which are all in use don't keep the hand spinning.
+     */
+    void sweep() {
+        int visits = clock.size() * 2;
+        while (residentEntries.get() > maxResidentEntries && visits-- > 0) {
+            TemporaryPreferences node = clock.poll();
+            if (node == null) {
+                return;
+            }
+            int freed;
+            try {
+                freed = node.evict(spillFile);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "Could not write to spill file. Stopped evicting until more is loaded.", ex);
+                clock.add(node);
+                return;
+            }
+            if (freed < 0) {
+                // Recently used, try again next round
+                clock.add(node);
+            } else {
+                residentEntries.addAndGet(-freed);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        wakeup.release();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        spillFile.close();
+    }
+}
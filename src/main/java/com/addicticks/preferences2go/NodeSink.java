@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.prefs.Preferences;
+
+/**
+ * Receiver of a preference tree which is being loaded. This allows
+ * the loaders ({@link XmlSupport}, {@link BinaryCache}) to either create
+ * preference nodes directly or to build a {@link NodeData} tree. Both 
+ * reject the names, keys and values which {@link Preferences} rejects,
+ * so a file is either valid or invalid however it's loaded.
+ *
+ * @author Addicticks
+ */
+interface NodeSink {
+
+    /**
+     * Returns the sink for the child node with the given name,
+     * creating it if it doesn't already exist.
+     *
+     * @throws IllegalArgumentException if the name is not valid, see
+     * {@link #checkName(String)}
+     */
+    NodeSink child(String name);
+
+    /**
+     * Associates the specified value with the specified key in this node.
+     *
+     * @throws IllegalArgumentException if the key or value is not valid,
+     * see {@link #checkEntry(String, String)}
+     */
+    void put(String key, String value);
+
+    /**
+     * Called when everything has been put into this node and its 
+     * descendants. Loaders which cannot tell when that is don't call it.
+     */
+    default void end() {
+    }
+
+    /**
+     * Returns a sink which puts everything directly into a preference
+     * tree. If the tree de-duplicates strings, the names, keys and values
+     * put into the sink are pooled, see {@link StringPool}.
+     */
+    static NodeSink of(Preferences node) {
+        TreeContext context = (node instanceof TemporaryPreferences) ? ((TemporaryPreferences) node).context() : null;
+        return new NodeSink() {
+            @Override
+            public NodeSink child(String name) {
+                // node() would take a name with a slash as a path
+                return of(node.node(intern(checkName(name))));
+            }
+
+            @Override
+            public void put(String key, String value) {
+                checkEntry(key, value);
+                node.put(intern(key), intern(value));
+            }
+
+            private String intern(String s) {
+                return (context != null) ? context.intern(s) : s;
+            }
+        };
+    }
+
+    /**
+     * Checks that a node name is not empty, contains no slash and is no 
+     * longer than {@link Preferences#MAX_NAME_LENGTH}.
+     *
+     * @return the name
+     * @throws IllegalArgumentException if it isn't
+     */
+    static String checkName(String name) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Node name is empty");
+        }
+        if (name.length() > Preferences.MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Node name " + name + " too long");
+        }
+        if (name.indexOf('/') != -1) {
+            throw new IllegalArgumentException("Node name " + name + " contains '/'");
+        }
+        return name;
+    }
+
+    /**
+     * Checks a key and value as {@link Preferences#put(String, String)} 
+     * does: neither may be <tt>null</tt>, be longer than 
+     * {@link Preferences#MAX_KEY_LENGTH} or 
+     * {@link Preferences#MAX_VALUE_LENGTH} or contain the code point U+0000.
+     *
+     * @throws NullPointerException if the key or value is <tt>null</tt>
+     * @throws IllegalArgumentException if the key or value is invalid
+     */
+    static void checkEntry(String key, String value) {
+        if (key == null) {
+            throw new NullPointerException("Key is null.");
+        }
+        if (value == null) {
+            throw new NullPointerException("Value is null.");
+        }
+        if (key.length() > Preferences.MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key too long: " + key);
+        }
+        if (value.length() > Preferences.MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Value too long: " + value);
+        }
+        if (key.indexOf('\u0000') != -1) {
+            throw new IllegalArgumentException("Key contains code point U+0000");
+        }
+        if (value.indexOf('\u0000') != -1) {
+            throw new IllegalArgumentException("Value contains code point U+0000");
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Secondary indexes of the user and system trees which answer the queries
+ * of {@link PreferencesQuery} without walking the trees. Kept up to date
+ * with the changes made to the live trees, including nodes which are yet
+ * to be created from loaded data.
+ *
+ * <p>
+ * Per tree there is a sorted index of the absolute paths of all nodes,
+ * which also holds the names of each node's keys, and an index from key
+ * name to the paths of the nodes which have the key and its value there.
+ * Both are concurrent maps, so queries take no locks and the observer
+ * methods only contend with queries and changes of the same key.
+ *
+ * @author Addicticks
+ */
+final class PathIndex implements TreeObserver {
+
+    /**
+     * The indexes of one tree.
+     */
+    static final class Tree {
+
+        /**
+         * Absolute path of every node to the names of its keys.
+         */
+        final ConcurrentSkipListMap<String, Set<String>> paths = new ConcurrentSkipListMap<>();
+
+        /**
+         * Key name to absolute path of the nodes with the key, to the
+         * value.
+         */
+        final ConcurrentHashMap<String, ConcurrentHashMap<String, String>> keys = new ConcurrentHashMap<>();
+
+        private void addNode(String path) {
+            paths.putIfAbsent(path, Collections.emptySet());
+        }
+
+        private void put(String path, String key, String value) {
+            Set<String> keyNames = paths.get(path);
+            if (keyNames == null || keyNames.isEmpty()) {
+                // Replaces the shared empty set. The keys of a node are 
+                // only changed while holding the node's lock.
+                keyNames = ConcurrentHashMap.newKeySet();
+                paths.put(path, keyNames);
+            }
+            keyNames.add(key);
+            keys.compute(key, (k, nodes) -> {
+                if (nodes == null) {
+                    nodes = new ConcurrentHashMap<>();
+                }
+                nodes.put(path, value);
+                return nodes;
+            });
+        }
+
+        private void remove(String path, String key) {
+            Set<String> keyNames = paths.get(path);
+            if (keyNames != null) {
+                keyNames.remove(key);
+            }
+            keys.computeIfPresent(key, (k, nodes) -> {
+                nodes.remove(path);
+                return nodes.isEmpty() ? null : nodes;
+            });
+        }
+
+        /**
+         * Removes the node and anything left of its descendants.
+         */
+        private void removeNode(String path) {
+            removeKeys(path, paths.remove(path));
+            NavigableMap<String, Set<String>> descendants = descendants(path);
+            for (Map.Entry<String, Set<String>> node; (node = descendants.pollFirstEntry()) != null;) {
+                removeKeys(node.getKey(), node.getValue());
+            }
+        }
+
+        private void removeKeys(String path, Set<String> keyNames) {
+            if (keyNames != null) {
+                for (String key : keyNames) {
+                    remove(path, key);
+                }
+            }
+        }
+
+        /**
+         * Returns the paths of the descendants of the node with the given
+         * path, sorted.
+         */
+        NavigableMap<String, Set<String>> descendants(String path) {
+            if (path.equals("/")) {
+                return paths.tailMap("/", false);
+            }
+            // '0' is the character following '/'
+            return paths.subMap(path + "/", true, path + "0", false);
+        }
+
+        /**
+         * Returns the paths which start with the given prefix, sorted.
+         */
+        NavigableMap<String, Set<String>> withPrefix(String prefix) {
+            if (prefix.isEmpty()) {
+                return paths;
+            }
+            char last = prefix.charAt(prefix.length() - 1);
+            if (last == Character.MAX_VALUE) {
+                return paths.tailMap(prefix, true);
+            }
+            return paths.subMap(prefix, true, prefix.substring(0, prefix.length() - 1) + (char) (last + 1), false);
+        }
+
+        private void capture(Object node, String path) {
+            addNode(path);
+            if (node instanceof TemporaryPreferences) {
+                ((TemporaryPreferences) node).exportEntries((key, value) -> put(path, key, value));
+                for (Map.Entry<String, Object> child : ((TemporaryPreferences) node).children().entrySet()) {
+                    capture(child.getValue(), childPath(path, child.getKey()));
+                }
+            } else {
+                NodeData data = (NodeData) node;
+                for (int i = 0; i < data.entryCount(); i++) {
+                    put(path, data.key(i), data.value(i));
+                }
+                for (int i = 0; i < data.childCount(); i++) {
+                    capture(data.child(i), childPath(path, data.child(i).name()));
+                }
+            }
+        }
+
+        private static String childPath(String path, String name) {
+            return path.equals("/") ? "/" + name : path + "/" + name;
+        }
+    }
+
+    private final Tree user = new Tree();
+    private final Tree system = new Tree();
+
+    // Changes reported before start() has finished, guarded by this
+    private volatile List<Runnable> early = new ArrayList<>();
+
+    /**
+     * Indexes the live trees. The index must have been registered as an
+     * observer of the trees before, so that changes made meanwhile aren't
+     * lost. Such changes may already be reflected in what is indexed,
+     * which is harmless because applying them again gives the same result.
+     */
+    void start(TemporaryPreferences liveUserRoot, TemporaryPreferences liveSystemRoot) {
+        user.capture(liveUserRoot, "/");
+        system.capture(liveSystemRoot, "/");
+        synchronized (this) {
+            for (Runnable change : early) {
+                change.run();
+            }
+            early = null;
+        }
+    }
+
+    /**
+     * Returns the indexes of the user or the system tree.
+     */
+    Tree tree(boolean userTree) {
+        return userTree ? user : system;
+    }
+
+    private void change(Runnable change) {
+        if (early != null) {
+            synchronized (this) {
+                if (early != null) {
+                    early.add(change);
+                    return;
+                }
+            }
+        }
+        change.run();
+    }
+
+    @Override
+    public void put(TemporaryPreferences node, String key, String value) {
+        Tree tree = tree(node.isUserNode());
+        String path = node.absolutePath();
+        change(() -> {
+            tree.addNode(path);
+            tree.put(path, key, value);
+        });
+    }
+
+    @Override
+    public void remove(TemporaryPreferences node, String key) {
+        Tree tree = tree(node.isUserNode());
+        String path = node.absolutePath();
+        change(() -> tree.remove(path, key));
+    }
+
+    @Override
+    public void nodeAdded(TemporaryPreferences node) {
+        Tree tree = tree(node.isUserNode());
+        String path = node.absolutePath();
+        change(() -> tree.addNode(path));
+    }
+
+    @Override
+    public void nodeRemoved(TemporaryPreferences node) {
+        Tree tree = tree(node.isUserNode());
+        String path = node.absolutePath();
+        change(() -> tree.removeNode(path));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.prefs.Preferences;
+import java.util.prefs.PreferenceChangeEvent;
+
+/**
+ * Changes to any number of nodes of a tree which are applied together.
+ * Obtained from {@link TemporaryPreferences#batch()}. Node path names are
+ * relative to that node or absolute, as for {@link Preferences#node(String)}.
+ * 
+ * <pre>
+ *     ((TemporaryPreferences) Preferences.userRoot()).batch()
+ *             .put("com/acme/connection", "serverList", "srv3")
+ *             .put("com/acme/connection", "connectionType", "SSL")
+ *             .apply();
+ * </pre>
+ * 
+ * <p>
+ * Compared to making the changes one by one, each node's lock is only
+ * acquired once, and registered listeners receive a single 
+ * {@link PreferenceChangeEvent} per changed key, carrying the final value.
+ * With {@link TemporaryPreferencesFactory#KEY_SNAPSHOTS} the changes 
+ * appear in {@link PreferencesSnapshot}s all at once. Readers of the nodes
+ * themselves may however see the changes to one node before those to another.
+ * 
+ * <p>
+ * A batch is not thread safe and is not cleared by {@link #apply()}.
+ *
+ * @author Addicticks
+ */
+public final class PreferencesBatch {
+
+    private final TemporaryPreferences origin;
+
+    /**
+     * Changes by node path name. A <tt>null</tt> value means remove.
+     */
+    private final Map<String, Map<String, String>> changes = new LinkedHashMap<>();
+
+    PreferencesBatch(TemporaryPreferences origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * Associates the value with the key in the given node. The node is 
+     * created when the batch is applied if it doesn't exist.
+     *
+     * @throws NullPointerException if path name, key or value is <tt>null</tt>.
+     * @throws IllegalArgumentException if key or value is too long.
+     * @return this batch
+     */
+    public PreferencesBatch put(String pathName, String key, String value) {
+        if (value == null) {
+            throw new NullPointerException("Value is null.");
+        }
+        checkKey(key);
+        if (value.length() > Preferences.MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Value too long: " + value);
+        }
+        if (value.indexOf('\u0000') != -1) {
+            throw new IllegalArgumentException("Value contains code point U+0000");
+        }
+        node(pathName).put(key, value);
+        return this;
+    }
+
+    /**
+     * Associates the values with the keys in the given node.
+     *
+     * @see #put(String, String, String) 
+     * @return this batch
+     */
+    public PreferencesBatch putAll(String pathName, Map<String, String> entries) {
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            put(pathName, entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * Removes the value associated with the key in the given node.
+     *
+     * @throws NullPointerException if path name or key is <tt>null</tt>.
+     * @return this batch
+     */
+    public PreferencesBatch remove(String pathName, String key) {
+        checkKey(key);
+        node(pathName).put(key, null);
+        return this;
+    }
+
+    private Map<String, String> node(String pathName) {
+        if (pathName == null) {
+            throw new NullPointerException("Path name is null.");
+        }
+        return changes.computeIfAbsent(pathName, p -> new LinkedHashMap<>());
+    }
+
+    private static void checkKey(String key) {
+        if (key == null) {
+            throw new NullPointerException("Key is null.");
+        }
+        if (key.length() > Preferences.MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key too long: " + key);
+        }
+        if (key.indexOf('\u0000') != -1) {
+            throw new IllegalArgumentException("Key contains code point U+0000");
+        }
+    }
+
+    /**
+     * Checks a path name by the rules of {@link Preferences#node(String)},
+     * without creating any nodes.
+     */
+    private static void checkPath(String pathName) {
+        if (pathName.isEmpty() || pathName.equals("/")) {
+            return;
+        }
+        int start = (pathName.charAt(0) == '/') ? 1 : 0;
+        while (true) {
+            int end = pathName.indexOf('/', start);
+            int length = ((end < 0) ? pathName.length() : end) - start;
+            if (length == 0) {
+                throw new IllegalArgumentException((end < 0) ? "Path ends with slash" : "Consecutive slashes in path");
+            }
+            if (length > Preferences.MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Node name " + pathName.substring(start, start + length) + " too long");
+            }
+            if (end < 0) {
+                return;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Applies the changes, in the order in which they were added to the
+     * batch, node by node. 
+     *
+     * @throws IllegalArgumentException if a path name is invalid. No 
+     * nodes are created and no preferences are changed in that case.
+     * @throws IllegalStateException if a node (or an ancestor) has been
+     * removed with the {@link Preferences#removeNode()} method. Changes to
+     * the nodes before it in the batch have been applied in that case.
+     */
+    public void apply() {
+        for (String pathName : changes.keySet()) {
+            checkPath(pathName);
+        }
+        Map<TemporaryPreferences, Map<String, String>> byNode = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, String>> entry : changes.entrySet()) {
+            TemporaryPreferences node = (TemporaryPreferences) origin.node(entry.getKey());
+            byNode.computeIfAbsent(node, n -> new LinkedHashMap<>()).putAll(entry.getValue());
+        }
+        TreeContext context = origin.context();
+        SnapshotPublisher snapshots = context.snapshots();
+        if (snapshots != null) {
+            snapshots.beginGroup();
+        }
+        try {
+            for (Map.Entry<TemporaryPreferences, Map<String, String>> entry : byNode.entrySet()) {
+                entry.getKey().apply(entry.getValue());
+            }
+        } finally {
+            if (snapshots != null) {
+                snapshots.endGroup();
+            }
+        }
+    }
+}
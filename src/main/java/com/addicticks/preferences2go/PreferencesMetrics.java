@@ -0,0 +1,387 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.prefs.Preferences;
+
+/**
+ * Runtime metrics of the preference trees of a factory. 
+ * 
+ * <p>
+ * All counters are {@link LongAdder}s so that recording from many threads
+ * does not contend. Hot keys are found by sampling reads, which keeps the
+ * cost on the read path to a counter increment and a random number for all
+ * but a small fraction of reads.
+ *
+ * @author Addicticks
+ */
+final class PreferencesMetrics implements PreferencesMetricsMXBean {
+
+    static final String OBJECT_NAME = "com.addicticks.preferences2go:type=PreferencesMetrics";
+
+    /**
+     * One in this many reads is recorded for the hot keys.
+     */
+    static final int SAMPLE_RATE = 64;
+
+    /**
+     * Maximum number of distinct preferences tracked for the hot keys.
+     * Preferences first read after this limit is reached are not tracked.
+     */
+    static final int MAX_TRACKED_KEYS = 10_000;
+
+    /**
+     * Number of preferences returned by {@link #getHotKeys()}.
+     */
+    static final int TOP_N = 20;
+
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder removes = new LongAdder();
+    private final LongAdder nodesCreated = new LongAdder();
+    private final LongAdder nodesRemoved = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> sampledReads = new ConcurrentHashMap<>();
+
+    private final LongAdder imports = new LongAdder();
+    private volatile long lastImportMillis = -1;
+    private volatile long lastImportNodes;
+    private volatile long lastImportEntries;
+
+    private final LongAdder eventsDelivered = new LongAdder();
+    private final LongAdder eventsCoalesced = new LongAdder();
+    private final LongAdder eventsPending = new LongAdder();
+    private final LongAdder dispatchLagNanos = new LongAdder();
+    private final LongAccumulator maxDispatchLagNanos = new LongAccumulator(Math::max, 0);
+
+    private final LongAdder nodesEvicted = new LongAdder();
+    private final LongAdder nodesRestored = new LongAdder();
+
+    void recordGet(Preferences node, String key) {
+        gets.increment();
+        if (ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) {
+            String path = node.absolutePath();
+            String name = path.equals("/") ? path + key : path + "/" + key;
+            LongAdder count = sampledReads.get(name);
+            if (count == null) {
+                if (sampledReads.size() >= MAX_TRACKED_KEYS) {
+                    return;
+                }
+                count = sampledReads.computeIfAbsent(name, k -> new LongAdder());
+            }
+            count.increment();
+        }
+    }
+
+    void recordPut(boolean newEntry) {
+        puts.increment();
+        if (newEntry) {
+            entries.increment();
+        }
+    }
+
+    void recordRemove(boolean removed) {
+        removes.increment();
+        if (removed) {
+            entries.decrement();
+        }
+    }
+
+    void recordNodeCreated() {
+        nodesCreated.increment();
+    }
+
+    /**
+     * @param entryCount number of entries the node had
+     */
+    void recordNodeRemoved(int entryCount) {
+        nodesRemoved.increment();
+        entries.add(-entryCount);
+    }
+
+    /**
+     * Records an event which was queued for delivery to a listener.
+     */
+    void recordEventQueued() {
+        eventsPending.increment();
+    }
+
+    /**
+     * Records an event which replaced an event still queued for delivery
+     * to a listener.
+     */
+    void recordEventCoalesced() {
+        eventsCoalesced.increment();
+    }
+
+    /**
+     * Records the delivery of a queued event to a listener.
+     * 
+     * @param lagNanos time from when the event was queued until delivery
+     */
+    void recordEventDelivered(long lagNanos) {
+        eventsDelivered.increment();
+        eventsPending.decrement();
+        dispatchLagNanos.add(lagNanos);
+        maxDispatchLagNanos.accumulate(lagNanos);
+    }
+
+    /**
+     * Records queued events which will not be delivered, because the
+     * listener was removed.
+     */
+    void recordEventsDropped(int count) {
+        eventsPending.add(-count);
+    }
+
+    /**
+     * Records the eviction of the data of a node to the spill file.
+     */
+    void recordNodeEvicted() {
+        nodesEvicted.increment();
+    }
+
+    /**
+     * Records the data of an evicted node being read back.
+     */
+    void recordNodeRestored() {
+        nodesRestored.increment();
+    }
+
+    /**
+     * Records entries which were added to a node by loading rather
+     * than by {@code put()}.
+     */
+    void recordEntriesLoaded(int entryCount) {
+        entries.add(entryCount);
+    }
+
+    @Override
+    public long getGetCount() {
+        return gets.sum();
+    }
+
+    @Override
+    public long getPutCount() {
+        return puts.sum();
+    }
+
+    @Override
+    public long getRemoveCount() {
+        return removes.sum();
+    }
+
+    @Override
+    public long getNodesCreatedCount() {
+        return nodesCreated.sum();
+    }
+
+    @Override
+    public long getNodesRemovedCount() {
+        return nodesRemoved.sum();
+    }
+
+    @Override
+    public long getNodeCount() {
+        return nodesCreated.sum() - nodesRemoved.sum();
+    }
+
+    @Override
+    public long getEntryCount() {
+        return entries.sum();
+    }
+
+    @Override
+    public long getImportCount() {
+        return imports.sum();
+    }
+
+    @Override
+    public long getLastImportMillis() {
+        return lastImportMillis;
+    }
+
+    @Override
+    public long getLastImportNodeCount() {
+        return lastImportNodes;
+    }
+
+    @Override
+    public long getLastImportEntryCount() {
+        return lastImportEntries;
+    }
+
+    @Override
+    public long getEventsDeliveredCount() {
+        return eventsDelivered.sum();
+    }
+
+    @Override
+    public long getEventsCoalescedCount() {
+        return eventsCoalesced.sum();
+    }
+
+    @Override
+    public long getEventsPendingCount() {
+        return eventsPending.sum();
+    }
+
+    @Override
+    public double getAverageDispatchLagMillis() {
+        long delivered = eventsDelivered.sum();
+        return (delivered == 0) ? 0 : dispatchLagNanos.sum() / (delivered * 1e6);
+    }
+
+    @Override
+    public double getMaxDispatchLagMillis() {
+        return maxDispatchLagNanos.get() / 1e6;
+    }
+
+    @Override
+    public void resetMaxDispatchLag() {
+        maxDispatchLagNanos.reset();
+    }
+
+    @Override
+    public long getNodesEvictedCount() {
+        return nodesEvicted.sum();
+    }
+
+    @Override
+    public long getNodesRestoredCount() {
+        return nodesRestored.sum();
+    }
+
+    @Override
+    public String[] getHotKeys() {
+        List<Map.Entry<String, Long>> counts = new ArrayList<>(sampledReads.size());
+        for (Map.Entry<String, LongAdder> e : sampledReads.entrySet()) {
+            counts.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().sum()));
+        }
+        counts.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        int n = Math.min(TOP_N, counts.size());
+        String[] hotKeys = new String[n];
+        for (int i = 0; i < n; i++) {
+            hotKeys[i] = counts.get(i).getKey() + " : " + (counts.get(i).getValue() * SAMPLE_RATE);
+        }
+        return hotKeys;
+    }
+
+    @Override
+    public void resetHotKeys() {
+        sampledReads.clear();
+    }
+
+    /**
+     * Measures a single import. Use {@link #startImport(PreferencesMetrics)}.
+     */
+    static final class ImportRecorder {
+
+        private final PreferencesMetrics metrics;
+        private final long startNanos = System.nanoTime();
+        private long nodes;
+        private long entries;
+
+        private ImportRecorder(PreferencesMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /**
+         * Returns a sink which counts what is written to {@code sink}. 
+         * Nodes are counted once, even if a loader visits them several
+         * times, e.g. when merging files.
+         */
+        NodeSink count(NodeSink sink) {
+            if (metrics == null) {
+                return sink;
+            }
+            return count(sink, new Visited());
+        }
+
+        private NodeSink count(NodeSink sink, Visited visited) {
+            return new NodeSink() {
+                @Override
+                public NodeSink child(String name) {
+                    return count(sink.child(name), visited.child(name));
+                }
+
+                @Override
+                public void put(String key, String value) {
+                    entries++;
+                    sink.put(key, value);
+                }
+
+                @Override
+                public void end() {
+                    sink.end();
+                }
+            };
+        }
+
+        /**
+         * A node which has been visited by the import, with the children
+         * which have been visited so far.
+         */
+        private final class Visited {
+
+            private Map<String, Visited> children;
+
+            Visited child(String name) {
+                if (children == null) {
+                    children = new HashMap<>();
+                }
+                Visited child = children.get(name);
+                if (child == null) {
+                    child = new Visited();
+                    children.put(name, child);
+                    nodes++;
+                }
+                return child;
+            }
+        }
+
+        /**
+         * Records the import as completed.
+         */
+        void done() {
+            if (metrics != null) {
+                metrics.lastImportMillis = (System.nanoTime() - startNanos) / 1_000_000;
+                metrics.lastImportNodes = nodes;
+                metrics.lastImportEntries = entries;
+                metrics.imports.increment();
+            }
+        }
+    }
+
+    /**
+     * Starts measuring an import.
+     *
+     * @param metrics where to record the import, or <tt>null</tt> if
+     * metrics are not enabled, in which case nothing is recorded.
+     */
+    static ImportRecorder startImport(PreferencesMetrics metrics) {
+        return new ImportRecorder(metrics);
+    }
+}
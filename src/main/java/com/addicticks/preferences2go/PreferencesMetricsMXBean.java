@@ -0,0 +1,149 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+/**
+ * Management interface for the runtime metrics of the preference trees.
+ * Registered in the platform MBean server under the name
+ * {@value PreferencesMetrics#OBJECT_NAME} when
+ * {@link TemporaryPreferencesFactory#KEY_METRICS} is set.
+ *
+ * <p>
+ * Counters are cumulative since the factory was created. Node and entry
+ * counts only include nodes which have actually been created, i.e. not
+ * those still pending creation when {@link TemporaryPreferencesFactory#KEY_LAZY_LOAD}
+ * is used.
+ *
+ * @author Addicticks
+ */
+public interface PreferencesMetricsMXBean {
+
+    /**
+     * Number of values read, including those read by the typed getters.
+     */
+    long getGetCount();
+
+    /**
+     * Number of values written.
+     */
+    long getPutCount();
+
+    /**
+     * Number of values removed.
+     */
+    long getRemoveCount();
+
+    /**
+     * Number of nodes created, including the root nodes.
+     */
+    long getNodesCreatedCount();
+
+    /**
+     * Number of nodes removed.
+     */
+    long getNodesRemovedCount();
+
+    /**
+     * Number of nodes currently in the trees.
+     */
+    long getNodeCount();
+
+    /**
+     * Number of entries currently in the trees.
+     */
+    long getEntryCount();
+
+    /**
+     * Number of times preferences have been imported from file, including
+     * reloads.
+     */
+    long getImportCount();
+
+    /**
+     * Duration of the most recent import in milliseconds, or -1 if
+     * there has been no import.
+     */
+    long getLastImportMillis();
+
+    /**
+     * Number of distinct nodes read by the most recent import. A node
+     * which is in several of the merged files is counted once.
+     */
+    long getLastImportNodeCount();
+
+    /**
+     * Number of entries read by the most recent import.
+     */
+    long getLastImportEntryCount();
+
+    /**
+     * Number of events delivered to listeners. An event delivered to
+     * two listeners counts twice.
+     */
+    long getEventsDeliveredCount();
+
+    /**
+     * Number of events which were not delivered to a listener because 
+     * a later event for the same key replaced them while queued.
+     */
+    long getEventsCoalescedCount();
+
+    /**
+     * Number of events currently queued for delivery to listeners.
+     */
+    long getEventsPendingCount();
+
+    /**
+     * Average time in milliseconds from a change until a listener 
+     * received the event for it.
+     */
+    double getAverageDispatchLagMillis();
+
+    /**
+     * Longest time in milliseconds from a change until a listener received 
+     * the event for it, since start or since {@link #resetMaxDispatchLag()}.
+     */
+    double getMaxDispatchLagMillis();
+
+    /**
+     * Starts over measuring {@link #getMaxDispatchLagMillis()}.
+     */
+    void resetMaxDispatchLag();
+
+    /**
+     * Number of times the data of a cold node was evicted to the spill 
+     * file because the loaded data exceeded its memory budget.
+     */
+    long getNodesEvictedCount();
+
+    /**
+     * Number of times the data of an evicted node was read back from the
+     * spill file because the node was accessed.
+     */
+    long getNodesRestoredCount();
+
+    /**
+     * The most frequently read preferences, most frequent first, formatted
+     * as {@code "<absolute path>/<key> : <estimated number of reads>"}.
+     * Reads are sampled so the numbers are estimates.
+     */
+    String[] getHotKeys();
+
+    /**
+     * Forgets the reads recorded for {@link #getHotKeys()}.
+     */
+    void resetHotKeys();
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Finds the nodes of a preference tree by key, value or path without
+ * walking the tree. Obtained from {@link TemporaryPreferencesFactory#userQuery()}
+ * or {@link TemporaryPreferencesFactory#systemQuery()}. Requires system
+ * property {@link TemporaryPreferencesFactory#KEY_INDEX}.
+ *
+ * <p>
+ * Queries are answered from indexes which are kept up to date as the tree
+ * changes, and take no locks. Results are lazy streams of the absolute
+ * paths of the nodes found, which includes nodes which are yet to be
+ * created from loaded data. Get the node itself with
+ * {@link java.util.prefs.Preferences#node(String)}. A stream reflects
+ * the tree as it is while the stream is consumed, so nodes added or
+ * removed meanwhile may or may not be included.
+ *
+ * <p>
+ * Example: the connections of type RSSL are
+ * <pre>
+ *   factory.userQuery().nodesWithValue("connectionType", "RSSL")
+ * </pre>
+ * and the sessions of all namespaces are
+ * <pre>
+ *   factory.userQuery().nodesMatching("/com/reuters/rfa/*&#47;Sessions/*")
+ * </pre>
+ *
+ * @author Addicticks
+ */
+public final class PreferencesQuery {
+
+    private final PathIndex.Tree tree;
+
+    PreferencesQuery(PathIndex.Tree tree) {
+        this.tree = tree;
+    }
+
+    /**
+     * Returns the paths of the nodes which have a preference with the
+     * given key, in no particular order.
+     *
+     * @throws NullPointerException if <tt>key</tt> is <tt>null</tt>.
+     */
+    public Stream<String> nodesWithKey(String key) {
+        ConcurrentHashMap<String, String> nodes = tree.keys.get(key);
+        return (nodes == null) ? Stream.empty() : nodes.keySet().stream();
+    }
+
+    /**
+     * Returns the paths of the nodes where the given key has the given
+     * value, in no particular order.
+     *
+     * @throws NullPointerException if <tt>key</tt> or <tt>value</tt> is
+     * <tt>null</tt>.
+     */
+    public Stream<String> nodesWithValue(String key, String value) {
+        if (value == null) {
+            throw new NullPointerException("Null value");
+        }
+        ConcurrentHashMap<String, String> nodes = tree.keys.get(key);
+        return (nodes == null) ? Stream.empty() : nodes.entrySet().stream()
+                .filter(e -> value.equals(e.getValue()))
+                .map(Map.Entry::getKey);
+    }
+
+    /**
+     * Returns the paths of the node with the given absolute path, if it
+     * exists, and of all its descendants, sorted.
+     *
+     * @throws IllegalArgumentException if the path is not absolute or
+     * ends with a slash.
+     */
+    public Stream<String> nodesUnder(String absolutePath) {
+        checkPath(absolutePath);
+        Stream<String> descendants = tree.descendants(absolutePath).keySet().stream();
+        return tree.paths.containsKey(absolutePath)
+                ? Stream.concat(Stream.of(absolutePath), descendants) : descendants;
+    }
+
+    /**
+     * Returns the paths of the nodes whose absolute path matches the given
+     * pattern, sorted. In the pattern {@code *} matches any number of
+     * characters within a node name, {@code **} any number of characters
+     * including slashes, and {@code ?} a single character other than a
+     * slash. Only the nodes whose paths start with the part of the pattern
+     * before the first wildcard are looked at.
+     *
+     * @throws IllegalArgumentException if the pattern doesn't start with
+     * a slash.
+     */
+    public Stream<String> nodesMatching(String pattern) {
+        if (!pattern.startsWith("/")) {
+            throw new IllegalArgumentException("Pattern must be absolute: " + pattern);
+        }
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        int prefixEnd = -1;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c != '*' && c != '?') {
+                continue;
+            }
+            if (prefixEnd < 0) {
+                prefixEnd = i;
+            }
+            if (i > literalStart) {
+                regex.append(Pattern.quote(pattern.substring(literalStart, i)));
+            }
+            if (c == '?') {
+                regex.append("[^/]");
+            } else if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else {
+                regex.append("[^/]*");
+            }
+            literalStart = i + 1;
+        }
+        if (prefixEnd < 0) {
+            // No wildcards
+            return tree.paths.containsKey(pattern) ? Stream.of(pattern) : Stream.empty();
+        }
+        if (literalStart < pattern.length()) {
+            regex.append(Pattern.quote(pattern.substring(literalStart)));
+        }
+        Pattern compiled = Pattern.compile(regex.toString());
+        return tree.withPrefix(pattern.substring(0, prefixEnd)).keySet().stream()
+                .filter(path -> compiled.matcher(path).matches());
+    }
+
+    private static void checkPath(String absolutePath) {
+        if (!absolutePath.startsWith("/")) {
+            throw new IllegalArgumentException("Path must be absolute: " + absolutePath);
+        }
+        if (absolutePath.length() > 1 && absolutePath.endsWith("/")) {
+            throw new IllegalArgumentException("Path ends with slash");
+        }
+    }
+}
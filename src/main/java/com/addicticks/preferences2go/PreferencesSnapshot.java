@@ -0,0 +1,281 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+/**
+ * An immutable, consistent view of a preference node and its subtree, as
+ * they were at a point in time. Obtained from {@link TemporaryPreferences#snapshot()},
+ * {@link TemporaryPreferencesFactory#userSnapshot()} or
+ * {@link TemporaryPreferencesFactory#systemSnapshot()}. Requires system 
+ * property {@link TemporaryPreferencesFactory#KEY_SNAPSHOTS}.
+ * 
+ * <p>
+ * Unlike a {@link java.util.prefs.Preferences} node, a snapshot never 
+ * changes and reading from it takes no locks. All nodes reached from a 
+ * snapshot belong to the same version of the trees, so a reader never 
+ * sees only some of the changes made by a reload of 
+ * {@link TemporaryPreferencesFactory#KEY_XML_FILE}. To see later changes, 
+ * get a new snapshot.
+ * 
+ * <p>
+ * Path names are interpreted as by {@link java.util.prefs.Preferences#node(String)}.
+ * The typed getters parse values the same way as the corresponding
+ * methods of {@link java.util.prefs.Preferences}.
+ *
+ * @author Addicticks
+ */
+public final class PreferencesSnapshot {
+
+    private final SnapshotPublisher.Version version;
+    private final boolean userNode;
+    private final NodeData data;
+    private final String absolutePath;
+
+    PreferencesSnapshot(SnapshotPublisher.Version version, boolean userNode, NodeData data, String absolutePath) {
+        this.version = version;
+        this.userNode = userNode;
+        this.data = data;
+        this.absolutePath = absolutePath;
+    }
+
+    /**
+     * Returns the snapshot of the node with the given absolute path from
+     * {@code version}, or <tt>null</tt> if there is no such node.
+     */
+    static PreferencesSnapshot of(SnapshotPublisher.Version version, boolean userNode, String absolutePath) {
+        PreferencesSnapshot root = new PreferencesSnapshot(version, userNode,
+                userNode ? version.userRoot : version.systemRoot, "/");
+        return root.node(absolutePath);
+    }
+
+    /**
+     * Returns the version of the trees which this snapshot is a part of.
+     * A higher number means a later version.
+     */
+    public long version() {
+        return version.number;
+    }
+
+    /**
+     * Returns the name of the node, relative to its parent.
+     */
+    public String name() {
+        return data.name();
+    }
+
+    /**
+     * Returns the absolute path name of the node.
+     */
+    public String absolutePath() {
+        return absolutePath;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the node is in the user tree, 
+     * <tt>false</tt> if it's in the system tree.
+     */
+    public boolean isUserNode() {
+        return userNode;
+    }
+
+    /**
+     * Returns the value associated with the key, or {@code def} if there
+     * is none.
+     *
+     * @throws NullPointerException if <tt>key</tt> is <tt>null</tt>.
+     */
+    public String get(String key, String def) {
+        if (key == null) {
+            throw new NullPointerException("Null key");
+        }
+        String value = data.get(key);
+        return (value != null) ? value : def;
+    }
+
+    /**
+     * Returns the value associated with the key as an int, or {@code def} if
+     * there is none or it cannot be parsed.
+     */
+    public int getInt(String key, int def) {
+        String value = get(key, null);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException ex) {
+                // Ignore, return default
+            }
+        }
+        return def;
+    }
+
+    /**
+     * Returns the value associated with the key as a long, or {@code def} if
+     * there is none or it cannot be parsed.
+     */
+    public long getLong(String key, long def) {
+        String value = get(key, null);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException ex) {
+                // Ignore, return default
+            }
+        }
+        return def;
+    }
+
+    /**
+     * Returns the value associated with the key as a boolean, or {@code def}
+     * if there is none or it's neither "true" nor "false" (ignoring case).
+     */
+    public boolean getBoolean(String key, boolean def) {
+        String value = get(key, null);
+        if (value != null) {
+            if (value.equalsIgnoreCase("true")) {
+                return true;
+            } else if (value.equalsIgnoreCase("false")) {
+                return false;
+            }
+        }
+        return def;
+    }
+
+    /**
+     * Returns the value associated with the key as a float, or {@code def}
+     * if there is none or it cannot be parsed.
+     */
+    public float getFloat(String key, float def) {
+        String value = get(key, null);
+        if (value != null) {
+            try {
+                return Float.parseFloat(value);
+            } catch (NumberFormatException ex) {
+                // Ignore, return default
+            }
+        }
+        return def;
+    }
+
+    /**
+     * Returns the value associated with the key as a double, or {@code def}
+     * if there is none or it cannot be parsed.
+     */
+    public double getDouble(String key, double def) {
+        String value = get(key, null);
+        if (value != null) {
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException ex) {
+                // Ignore, return default
+            }
+        }
+        return def;
+    }
+
+    /**
+     * Returns the keys of the node's preferences, sorted.
+     */
+    public String[] keys() {
+        String[] keys = new String[data.entryCount()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = data.key(i);
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the names of the node's children, sorted.
+     */
+    public String[] childrenNames() {
+        String[] names = new String[data.childCount()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = data.child(i).name();
+        }
+        return names;
+    }
+
+    /**
+     * Returns the node with the given path name, relative to this node or
+     * absolute, or <tt>null</tt> if there is no such node in this snapshot.
+     *
+     * @throws IllegalArgumentException if the path name is invalid.
+     */
+    public PreferencesSnapshot node(String pathName) {
+        if (pathName.isEmpty()) {
+            return this;
+        }
+        if (pathName.endsWith("/") && !pathName.equals("/")) {
+            throw new IllegalArgumentException("Path ends with slash");
+        }
+        PreferencesSnapshot node = this;
+        String path = pathName;
+        if (pathName.startsWith("/")) {
+            node = new PreferencesSnapshot(version, userNode, userNode ? version.userRoot : version.systemRoot, "/");
+            path = pathName.substring(1);
+        }
+        NodeData current = node.data;
+        String currentPath = node.absolutePath;
+        int start = 0;
+        while (start < path.length()) {
+            int slash = path.indexOf('/', start);
+            int end = (slash < 0) ? path.length() : slash;
+            if (end == start) {
+                throw new IllegalArgumentException("Consecutive slashes in path");
+            }
+            String name = path.substring(start, end);
+            current = current.child(name);
+            if (current == null) {
+                return null;
+            }
+            currentPath = currentPath.equals("/") ? "/" + name : currentPath + "/" + name;
+            start = end + 1;
+        }
+        return (current == node.data) ? node : new PreferencesSnapshot(version, userNode, current, currentPath);
+    }
+
+    /**
+     * Returns <tt>true</tt> if the node with the given path name, relative 
+     * to this node or absolute, exists in this snapshot.
+     *
+     * @throws IllegalArgumentException if the path name is invalid.
+     */
+    public boolean nodeExists(String pathName) {
+        return node(pathName) != null;
+    }
+
+    /**
+     * Returns a modifiable copy of this node and its subtree as the root 
+     * of a new tree, in constant time. See 
+     * {@link TemporaryPreferences#fork()}.
+     */
+    public TemporaryPreferences fork() {
+        return TemporaryPreferences.forkRoot(data, 
+                userNode ? TemporaryPreferences.TreeType.USER : TemporaryPreferences.TreeType.SYSTEM, new TreeContext().fork());
+    }
+
+    /**
+     * The data of the node.
+     */
+    NodeData data() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return (userNode ? "User" : "System") + " Preference Snapshot Node: " + absolutePath 
+                + " (version " + version.number + ")";
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A preference tree in a memory-mapped file which is shared by all
+ * processes on a host. One process parses the preferences XML file and
+ * publishes the result; the other processes read it from the mapping
+ * instead of parsing the XML file themselves. The file is typically
+ * placed under {@code /dev/shm} so that it never touches disk.
+ *
+ * <p>
+ * Segment layout (all integers are big-endian):
+ * <pre>
+ *   int      magic
+ *   int      format version
+ *   long     sequence number
+ *   byte[32] SHA-256 of source
+ *   int      length of tables
+ *   ...      tables as in {@link BinaryCache}
+ * </pre>
+ * The sequence number is incremented before and after the segment is
+ * written, so it's odd while a write is in progress or if the writing
+ * process died half-way. Publishers hold an exclusive lock on the file, 
+ * which only serializes publishers. Readers take no lock; they check that
+ * the sequence number is even and unchanged after reading, as with a 
+ * seqlock. Other processes find out about a new version of the tree by 
+ * polling the sequence number, see {@link #watch(long, Runnable)}.
+ *
+ * <p>
+ * What is shared is the parsing, not the heap: each process decodes the
+ * published tables into its own {@link NodeData} and preference nodes,
+ * so it holds its own copy of the tree, as when loading from
+ * {@link BinaryCache}. Combined with lazy loading only the nodes a 
+ * process actually uses are created.
+ *
+ * @author Addicticks
+ */
+final class SharedSegment implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(SharedSegment.class.getName());
+
+    private static final int MAGIC = 0x50325348; // "P2SH"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int HASH_OFFSET = 16;
+    private static final int LENGTH_OFFSET = HASH_OFFSET + BinaryCache.HASH_LENGTH;
+    private static final int HEADER_LENGTH = LENGTH_OFFSET + 4;
+
+    /**
+     * Number of times a read is attempted while publishers keep changing
+     * the segment.
+     */
+    private static final int MAX_READ_ATTEMPTS = 5;
+
+    private final Path file;
+    private final FileChannel channel;
+    // Only one thread of this process may use the file lock at a time
+    private final ReentrantLock threadLock = new ReentrantLock();
+    private volatile MappedByteBuffer buf;
+    private volatile long knownSequence;
+    private Thread watcher;
+
+    /**
+     * Opens the segment, creating the file if it doesn't exist.
+     */
+    SharedSegment(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(HEADER_LENGTH, channel.size()));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * The current sequence number of the segment.
+     */
+    long sequence() {
+        return buf.getLong(SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Reads the published trees into the given roots, if they were
+     * published from a source with the given hash. No file lock is taken:
+     * the tables are decoded and then the sequence number is checked
+     * again, and if a publisher has changed the segment in the meantime
+     * the read is retried.
+     *
+     * <p>
+     * The segment is fully validated before anything is put into the
+     * roots, so if this method returns {@code false} the roots have not
+     * been touched.
+     *
+     * @param expectedHash hash of the source, or <tt>null</tt> to accept
+     * whatever has been published
+     * @return true if the trees were read, false if nothing has been
+     * published, or it's stale or unreadable.
+     */
+    boolean read(byte[] expectedHash, NodeSink userRoot, NodeSink systemRoot) throws IOException {
+        BinaryCache.Tables tables = null;
+        threadLock.lock();
+        try {
+            for (int attempt = 1; tables == null; attempt++) {
+                long sequence = sequence();
+                if (buf.getInt(0) != MAGIC || buf.getInt(4) != FORMAT_VERSION || (sequence & 1) != 0) {
+                    LOGGER.log(Level.FINE, "Shared segment \"{0}\" holds no complete tree.", file);
+                    return false;
+                }
+                try {
+                    byte[] hash = new byte[BinaryCache.HASH_LENGTH];
+                    ByteBuffer data = buf.duplicate();
+                    data.position(HASH_OFFSET);
+                    data.get(hash);
+                    if (expectedHash == null || Arrays.equals(hash, expectedHash)) {
+                        int length = data.getInt();
+                        if (length < 0 || HEADER_LENGTH + (long) length > channel.size()) {
+                            throw new IllegalArgumentException("Invalid length " + length);
+                        }
+                        if (HEADER_LENGTH + length > buf.capacity()) {
+                            // Grown by another process
+                            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                            data = buf.duplicate();
+                        }
+                        data.position(HEADER_LENGTH);
+                        data.limit(HEADER_LENGTH + length);
+                        tables = BinaryCache.Tables.read(data);
+                    } else if (sequence() == sequence) {
+                        LOGGER.log(Level.FINE, "Shared segment \"{0}\" is stale.", file);
+                        return false;
+                    }
+                } catch (BufferUnderflowException | IllegalArgumentException ex) {
+                    if (sequence() == sequence) {
+                        LOGGER.log(Level.WARNING, "Shared segment \"" + file + "\" is corrupt. Ignoring.", ex);
+                        // Don't try this version again
+                        knownSequence = sequence;
+                        return false;
+                    }
+                    // Garbage read while being written
+                }
+                if (sequence() != sequence) {
+                    tables = null;
+                    if (attempt == MAX_READ_ATTEMPTS) {
+                        LOGGER.log(Level.FINE, "Shared segment \"{0}\" kept changing while being read.", file);
+                        return false;
+                    }
+                } else {
+                    knownSequence = sequence;
+                }
+            }
+        } finally {
+            threadLock.unlock();
+        }
+        tables.copyTo(userRoot, systemRoot);
+        return true;
+    }
+
+    /**
+     * Takes the exclusive lock on the segment, waiting for other processes
+     * to release it. Trees are published through the returned lock.
+     */
+    Lock lock() throws IOException {
+        threadLock.lock();
+        try {
+            return new Lock(channel.lock());
+        } catch (IOException | RuntimeException ex) {
+            threadLock.unlock();
+            throw ex;
+        }
+    }
+
+    /**
+     * Exclusive lock on the segment.
+     */
+    final class Lock implements Closeable {
+
+        private final FileLock fileLock;
+
+        private Lock(FileLock fileLock) {
+            this.fileLock = fileLock;
+        }
+
+        /**
+         * Publishes the given trees, replacing what was published before.
+         *
+         * @param hash hash of the source the trees were loaded from
+         */
+        void publish(byte[] hash, NodeData userRoot, NodeData systemRoot) throws IOException {
+            SharedSegment.this.publish(hash, userRoot, systemRoot);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                fileLock.release();
+            } finally {
+                threadLock.unlock();
+            }
+        }
+    }
+
+    private void publish(byte[] hash, NodeData userRoot, NodeData systemRoot) throws IOException {
+        if (!threadLock.isHeldByCurrentThread()) {
+            throw new IllegalStateException("Segment is not locked");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            BinaryCache.Tables.write(out, userRoot, systemRoot);
+        }
+        byte[] tables = bytes.toByteArray();
+        if (HEADER_LENGTH + tables.length > buf.capacity()) {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_LENGTH + tables.length);
+        }
+        long sequence = sequence();
+        // Make the sequence odd while writing. If it's odd already the
+        // previous writer died half-way.
+        sequence = (sequence + 1) | 1;
+        buf.putLong(SEQUENCE_OFFSET, sequence);
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, FORMAT_VERSION);
+        ByteBuffer data = buf.duplicate();
+        data.position(HASH_OFFSET);
+        data.put(hash);
+        data.putInt(tables.length);
+        data.put(tables);
+        buf.putLong(SEQUENCE_OFFSET, sequence + 1);
+        knownSequence = sequence + 1;
+    }
+
+    /**
+     * Starts polling the sequence number. {@code onChange} is invoked on
+     * the watcher's own daemon thread whenever another process has
+     * published a new version.
+     *
+     * @param pollMillis time between polls
+     */
+    synchronized void watch(long pollMillis, Runnable onChange) {
+        watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(pollMillis);
+                    long sequence = sequence();
+                    if ((sequence & 1) == 0 && sequence != knownSequence) {
+                        // Retried on the next poll unless read
+                        try {
+                            onChange.run();
+                        } catch (RuntimeException ex) {
+                            LOGGER.log(Level.WARNING, "Error while processing change of shared segment \"" + file + "\"", ex);
+                        }
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // We're closing down
+            }
+        }, "Preferences2Go shared segment watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watcher != null) {
+            watcher.interrupt();
+            try {
+                watcher.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
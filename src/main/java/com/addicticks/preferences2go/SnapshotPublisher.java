@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps an immutable copy of the user and system trees up to date with
+ * the changes made to the live trees, and publishes it as a new
+ * {@link Version} after each change. Readers get the current version
+ * with a single volatile read, and a version never changes once
+ * published.
+ * 
+ * <p>
+ * Each change copies only the path from the changed node to the root,
+ * everything else is shared with the previous version (including the
+ * {@link NodeData} of nodes which are yet to be created from loaded data).
+ * Changes made between {@link #beginGroup()} and {@link #endGroup()} are
+ * published together, so readers see either none or all of them.
+ *
+ * @author Addicticks
+ */
+final class SnapshotPublisher implements TreeObserver {
+
+    /**
+     * An immutable version of both trees.
+     */
+    static final class Version {
+
+        final long number;
+        final NodeData userRoot;
+        final NodeData systemRoot;
+
+        Version(long number, NodeData userRoot, NodeData systemRoot) {
+            this.number = number;
+            this.userRoot = userRoot;
+            this.systemRoot = systemRoot;
+        }
+    }
+
+    private volatile Version current;
+
+    // Guarded by this
+    private NodeData userRoot;
+    private NodeData systemRoot;
+    private long number;
+    private int openGroups;
+    private boolean changed;
+    private List<Runnable> early = new ArrayList<>();
+
+    /**
+     * Creates the first version from the live trees. The publisher must
+     * have been registered as an observer of the trees before, so that
+     * changes made meanwhile aren't lost. Such changes may already be 
+     * reflected in the first version, which is harmless because applying
+     * them again gives the same result.
+     */
+    void start(TemporaryPreferences liveUserRoot, TemporaryPreferences liveSystemRoot) {
+        NodeData user = capture(liveUserRoot);
+        NodeData system = capture(liveSystemRoot);
+        synchronized (this) {
+            userRoot = user;
+            systemRoot = system;
+            List<Runnable> changes = early;
+            early = null;
+            for (Runnable change : changes) {
+                change.run();
+            }
+            publish();
+        }
+    }
+
+    /**
+     * Returns the current version, or <tt>null</tt> if there is none yet.
+     */
+    Version current() {
+        return current;
+    }
+
+    /**
+     * Starts a group of changes which are to be published together.
+     * Groups may be nested and may be started from different threads,
+     * in which case nothing is published until all of them have ended.
+     */
+    synchronized void beginGroup() {
+        openGroups++;
+    }
+
+    /**
+     * Ends a group of changes.
+     */
+    synchronized void endGroup() {
+        openGroups--;
+        if (openGroups == 0 && changed) {
+            publish();
+        }
+    }
+
+    /**
+     * Copies the data of a node and its subtree. Children which are yet to
+     * be created are shared rather than copied.
+     */
+    static NodeData capture(TemporaryPreferences node) {
+        TreeMap<String, String> entries = new TreeMap<>();
+        node.exportEntries(entries::put);
+        List<NodeData> children = new ArrayList<>();
+        for (Object child : node.children().values()) {
+            children.add((child instanceof NodeData) ? (NodeData) child : capture((TemporaryPreferences) child));
+        }
+        return NodeData.of(node.name(), entries, children);
+    }
+
+    @Override
+    public void put(TemporaryPreferences node, String key, String value) {
+        change(node, n -> n.withEntry(key, value));
+    }
+
+    @Override
+    public void remove(TemporaryPreferences node, String key) {
+        change(node, n -> n.withoutEntry(key));
+    }
+
+    @Override
+    public void nodeAdded(TemporaryPreferences node) {
+        change(node, n -> n);
+    }
+
+    @Override
+    public void nodeRemoved(TemporaryPreferences node) {
+        change(node, n -> null);
+    }
+
+    /**
+     * Applies a change to the node with the same path as {@code node}.
+     * Missing nodes on the way are created.
+     * 
+     * @param op returns the changed node, or <tt>null</tt> to remove it
+     */
+    private synchronized void change(TemporaryPreferences node, UnaryOperator<NodeData> op) {
+        boolean user = node.isUserNode();
+        String path = node.absolutePath();
+        if (early != null) {
+            early.add(() -> apply(user, path, op));
+            return;
+        }
+        apply(user, path, op);
+        if (openGroups == 0 && changed) {
+            publish();
+        }
+    }
+
+    private void apply(boolean user, String path, UnaryOperator<NodeData> op) {
+        String[] names = path.equals("/") ? new String[0] : path.substring(1).split("/");
+        NodeData root = user ? userRoot : systemRoot;
+        NodeData newRoot = apply(root, names, 0, op);
+        if (newRoot == null) {
+            // The root itself cannot be removed, only emptied
+            newRoot = NodeData.empty("");
+        }
+        if (newRoot != root) {
+            changed = true;
+            if (user) {
+                userRoot = newRoot;
+            } else {
+                systemRoot = newRoot;
+            }
+        }
+    }
+
+    private static NodeData apply(NodeData node, String[] names, int depth, UnaryOperator<NodeData> op) {
+        if (depth == names.length) {
+            return op.apply(node);
+        }
+        NodeData kid = node.child(names[depth]);
+        if (kid == null && op.apply(NodeData.empty(names[depth])) == null) {
+            // Removing a node which doesn't exist
+            return node;
+        }
+        NodeData newKid = apply((kid != null) ? kid : NodeData.empty(names[depth]), names, depth + 1, op);
+        if (newKid == null) {
+            return node.withoutChild(names[depth]);
+        }
+        return node.withChild(newKid);
+    }
+
+    private void publish() {
+        current = new Version(++number, userRoot, systemRoot);
+        changed = false;
+    }
+}
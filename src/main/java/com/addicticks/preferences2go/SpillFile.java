@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Append-only file holding the data of evicted preference nodes, see
+ * {@link NodeEvictor}. Each record is a {@link NodeData} tree. Records
+ * are never overwritten.
+ * 
+ * <p>
+ * Unlike a {@code FileChannel}, which is closed if a thread using it is
+ * interrupted, a {@code RandomAccessFile} is not affected by the interrupt
+ * status of the application's threads that read evicted nodes back.
+ *
+ * <p>
+ * Record layout: int length of the rest of the record, then recursively
+ * per node: name, int number of entries, key and value per entry, int
+ * number of children, the children. Strings are in modified UTF-8.
+ *
+ * @author Addicticks
+ */
+final class SpillFile implements Closeable {
+
+    private final Path file;
+    private final boolean temporary;
+    private final RandomAccessFile raf;
+
+    /**
+     * Creates the file, replacing any existing file.
+     *
+     * @param file the file, or <tt>null</tt> for a temporary file
+     */
+    SpillFile(Path file) throws IOException {
+        this.temporary = (file == null);
+        this.file = temporary ? Files.createTempFile("pref2go", ".spill") : file;
+        this.raf = new RandomAccessFile(this.file.toFile(), "rw");
+        raf.setLength(0);
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @return the offset of the record
+     */
+    synchronized long write(NodeData data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            write(out, data);
+        }
+        byte[] record = bytes.toByteArray();
+        int length = record.length - 4;
+        record[0] = (byte) (length >>> 24);
+        record[1] = (byte) (length >>> 16);
+        record[2] = (byte) (length >>> 8);
+        record[3] = (byte) length;
+        long offset = raf.length();
+        raf.seek(offset);
+        raf.write(record);
+        return offset;
+    }
+
+    private static void write(DataOutputStream out, NodeData data) throws IOException {
+        out.writeUTF(data.name());
+        out.writeInt(data.entryCount());
+        for (int i = 0; i < data.entryCount(); i++) {
+            out.writeUTF(data.key(i));
+            out.writeUTF(data.value(i));
+        }
+        out.writeInt(data.childCount());
+        for (int i = 0; i < data.childCount(); i++) {
+            write(out, data.child(i));
+        }
+    }
+
+    /**
+     * Reads the record at the given offset.
+     */
+    NodeData read(long offset) throws IOException {
+        byte[] record;
+        synchronized (this) {
+            raf.seek(offset);
+            record = new byte[raf.readInt()];
+            raf.readFully(record);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            return read(in);
+        }
+    }
+
+    private static NodeData read(DataInputStream in) throws IOException {
+        String name = in.readUTF();
+        TreeMap<String, String> entries = new TreeMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            entries.put(in.readUTF(), in.readUTF());
+        }
+        int childCount = in.readInt();
+        List<NodeData> children = new ArrayList<>(childCount);
+        for (int i = 0; i < childCount; i++) {
+            children.add(read(in));
+        }
+        return NodeData.of(name, entries, children);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        raf.close();
+        if (temporary) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of strings used for de-duplicating keys, values and node names,
+ * which tend to repeat a lot in large preference trees. Unlike
+ * {@link String#intern()} the pool is private to a preferences factory.
+ * 
+ * <p>
+ * Strings are never evicted from the pool. Therefore only strings which
+ * are loaded, e.g. from the XML file, are pooled and never those which 
+ * the application puts at runtime, which may be unique every time.
+ *
+ * @author Addicticks
+ */
+final class StringPool {
+
+    private final ConcurrentHashMap<String, String> pool = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the canonical representation of the string.
+     */
+    String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        String existing = pool.putIfAbsent(s, s);
+        return (existing == null) ? s : existing;
+    }
+
+    int size() {
+        return pool.size();
+    }
+}
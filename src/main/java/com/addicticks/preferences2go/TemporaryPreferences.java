@@ -15,13 +15,72 @@
  */
 package com.addicticks.preferences2go;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.prefs.AbstractPreferences;
 import java.util.prefs.BackingStoreException;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
 
 /**
  * Preferences that live only in memory.
  * 
+ * <p>
+ * Reads are lock-free: {@link #get(String, String)} and therefore also all of
+ * the typed getters ({@code getInt()}, {@code getBoolean()}, etc) which are
+ * implemented on top of it in {@code AbstractPreferences}, never acquire the
+ * node's lock. Writes retain the semantics of {@code AbstractPreferences},
+ * including the delivery of events to registered listeners.
+ * 
+ * <p>
+ * The typed getters ({@code getInt()}, {@code getLong()}, {@code getFloat()},
+ * {@code getDouble()} and {@code getBoolean()}) cache the parsed value so
+ * that repeated reads of an unchanged value neither parse nor allocate.
+ * 
+ * <p>
+ * A subtree can be attached to a node in the form of {@link NodeData}, 
+ * in which case the nodes of the subtree are only created when they are 
+ * first accessed. Such nodes are not considered new, meaning that no
+ * {@link java.util.prefs.NodeChangeEvent} is fired when they are created.
+ * 
+ * <p>
+ * All nodes of a tree are indexed by absolute path, so that 
+ * {@link #node(String)} and {@link #nodeExists(String)} with an absolute
+ * path are a single lookup rather than a walk from the root which takes
+ * the lock of every node on the way.
+ * 
+ * <p>
+ * While the tree is being loaded in the background, access to a node waits
+ * until the node has been loaded, see {@link LoadGate}.
+ * 
+ * <p>
+ * Many changes can be applied at once with {@link #putAll(Map)} or
+ * {@link #batch()}. This acquires the lock of each node only once and 
+ * delivers a single {@link PreferenceChangeEvent} per changed key.
+ * 
+ * <p>
+ * Events are delivered by the tree's own {@link EventDispatcher} rather 
+ * than by {@code AbstractPreferences}, so that a slow listener only delays
+ * its own events. 
+ * 
+ * <p>
+ * If the loaded data has a memory budget, the data of cold nodes which 
+ * haven't been changed since they were loaded may be evicted to disk by
+ * the {@link NodeEvictor}. The node itself stays in the tree and its data
+ * is read back on the next access.
+ * 
  * @see java.util.prefs.Preferences
  * @author Addicticks
  */
@@ -38,14 +97,76 @@ public class TemporaryPreferences extends AbstractPreferences {
     }
     private final TreeType treeType;
     
+    /**
+     * Settings and state shared by all nodes in the tree.
+     */
+    private final TreeContext context;
+    
     /**
      * Contains all the preference entries of this node. This is
      * effectively our backing store.
-     * AbstractPreferences (from which we inherit) take care of all 
-     * synchronization so there's no need to use a concurrent hash map
-     * here.
+     * Writes are synchronized by AbstractPreferences (from which we inherit)
+     * but reads are not, hence the need for a storage which allows
+     * reads without locking.
+     */
+    private final Entries entries;
+
+    /**
+     * Set when this node is removed. The corresponding flag in 
+     * AbstractPreferences can only be read while holding the node's lock,
+     * which we want to avoid on the read path.
+     */
+    private volatile boolean nodeRemoved = false;
+
+    /**
+     * Registered preference change and node change listeners. Copy-on-write,
+     * guarded by the node's lock. Listeners are not registered with 
+     * {@code AbstractPreferences} as events are delivered by the tree's 
+     * {@link EventDispatcher}.
+     */
+    private volatile EventDispatcher.Registration[] changeListeners = NO_LISTENERS;
+    private volatile EventDispatcher.Registration[] nodeListeners = NO_LISTENERS;
+
+    private static final EventDispatcher.Registration[] NO_LISTENERS = new EventDispatcher.Registration[0];
+
+    /**
+     * Children which have been loaded but for which no node has been
+     * created yet, or <tt>null</tt> if there are none. Guarded by the 
+     * node's lock.
+     */
+    private HashMap<String, NodeData> pendingKids;
+
+    /**
+     * Even while the entries and the children yet to be created are in
+     * memory, odd while they are evicted to the spill file. Only changed
+     * while holding the node's lock.
+     */
+    private volatile int residency;
+
+    /**
+     * Set on access, cleared by the {@link NodeEvictor} when it passes the
+     * node.
+     */
+    private volatile boolean referenced;
+
+    /**
+     * Eviction state, guarded by the node's lock. A node is evictable if
+     * its data is unchanged since it was loaded. {@code weight} is the 
+     * number of entries which the node has added to the evictor's count,
+     * and {@code spillOffset} the location of a spill record identical to
+     * the node's data, or -1.
+     */
+    private boolean evictable;
+    private int weight;
+    private long spillOffset = -1;
+
+    /**
+     * Parsed values from the typed getters, keyed by preference key.
+     * Created when first needed. Entries are removed when the key's value
+     * changes, but a cached value is anyway only used if it was parsed from
+     * the very same String instance as the current value.
      */
-    private final HashMap<String, String> entries = new HashMap<>();
+    private volatile ConcurrentHashMap<String, ParsedValue> parsedValues;
 
     /**
      * Creates a preference node with the specified parent and the specified name relative to its parent.
@@ -74,21 +195,461 @@ public class TemporaryPreferences extends AbstractPreferences {
      * 
      */
     public TemporaryPreferences(TemporaryPreferences parent, String name, TreeType treeType) {
-        super(parent, name);
+        this(parent, name, treeType, null);
+    }
+    
+    /**
+     * Creates a preference node with the specified parent and the specified name relative to its parent.
+     * 
+     * @param parent the parent of this preference node, or <tt>null</tt> if this is the root.
+     * @param name the name of this preference node, relative to its parent, or "" if this is the root.
+     * @param treeType either USER or SYSTEM. Ignored except on the root node.
+     * @param context settings and state shared by the nodes of the tree. Ignored
+     * except on the root node, where <tt>null</tt> means default settings.
+     */
+    TemporaryPreferences(TemporaryPreferences parent, String name, TreeType treeType, TreeContext context) {
+        this(parent, name, treeType, context, null);
+    }
+
+    /**
+     * Creates a preference node, from loaded data if {@code data} isn't
+     * <tt>null</tt>. The children of the data are created lazily.
+     */
+    private TemporaryPreferences(TemporaryPreferences parent, String name, TreeType treeType, TreeContext context, NodeData data) {
+        // Only names of loaded nodes are pooled, see StringPool
+        super(parent, (parent == null || data == null) ? name : parent.context.intern(name));
         
         // Any node is always new since nodes live only in memory.
-        newNode = true;
+        newNode = (data == null);
         
         if (parent != null) {
-            // Inherit tree type from parent
+            // Inherit tree type and context from parent
             this.treeType = parent.treeType;
+            this.context = parent.context;
         } else {
             if (treeType != null) {
                 this.treeType = treeType;
             } else {
                 this.treeType = TreeType.USER;
             }
+            this.context = (context != null) ? context : new TreeContext();
+        }
+        boolean shared = (data != null && this.context.sharesLoadedEntries());
+        this.entries = shared ? new Entries.Shared(data, this.context) : this.context.newEntries();
+        PreferencesMetrics metrics = this.context.metrics();
+        if (metrics != null) {
+            metrics.recordNodeCreated();
+        }
+        if (parent == null) {
+            // Other nodes are indexed by childSpi() once fully initialized.
+            this.context.nodeIndex(this.treeType).put(absolutePath(), this);
+        }
+        if (data != null) {
+            setData(data, shared);
+            evictable = true;
+        }
+    }
+
+    /**
+     * Creates a preference node from loaded data. The children of the
+     * node are created lazily.
+     */
+    private TemporaryPreferences(TemporaryPreferences parent, NodeData data) {
+        this(parent, data.name(), null, null, data);
+    }
+
+    /**
+     * @param entriesShared if true, the entries of {@code data} are 
+     * already in use by this node's {@link Entries.Shared}
+     */
+    private void setData(NodeData data, boolean entriesShared) {
+        if (!entriesShared) {
+            int added = 0;
+            for (int i = 0; i < data.entryCount(); i++) {
+                if (entries.put(context.intern(data.key(i)), context.intern(data.value(i))) == null) {
+                    added++;
+                }
+            }
+            PreferencesMetrics metrics = context.metrics();
+            if (metrics != null) {
+                metrics.recordEntriesLoaded(added);
+            }
+        }
+        if (data.childCount() > 0) {
+            if (pendingKids == null) {
+                pendingKids = new HashMap<>();
+                context.pendingKidsAdded();
+            }
+            for (int i = 0; i < data.childCount(); i++) {
+                pendingKids.put(data.child(i).name(), data.child(i));
+            }
+        }
+    }
+
+    /**
+     * Settings and state shared by all nodes in the tree.
+     */
+    TreeContext context() {
+        return context;
+    }
+
+    /**
+     * Attaches loaded data to this node. The entries of {@code data} are
+     * put into this node while the children of {@code data} become children
+     * of this node which will only be created when first accessed.
+     * 
+     * <p>
+     * Meant for loading a tree and therefore no events are fired. This
+     * node must not already have children with the same names as those
+     * in {@code data}.
+     */
+    void attach(NodeData data) {
+        synchronized (lock) {
+            boolean empty = (entries.size() == 0 && pendingKids == null);
+            setData(data, false);
+            NodeEvictor evictor = context.evictor();
+            if (evictor != null && empty && !evictable) {
+                evictable = true;
+                weight = data.totalEntryCount();
+                evictor.admit(this, weight);
+            }
+        }
+    }
+
+    /**
+     * Returns the value associated with the specified key in this preference
+     * node. Unlike the implementation in {@code AbstractPreferences} this method
+     * does not acquire the node's lock.
+     *
+     * @param key key whose associated value is to be returned.
+     * @param def the value to be returned in the event that this preference
+     * node has no value associated with <tt>key</tt>.
+     * @return the value associated with <tt>key</tt>, or <tt>def</tt> if no
+     * value is associated with <tt>key</tt>.
+     * @throws IllegalStateException if this node (or an ancestor) has been
+     * removed with the {@link #removeNode()} method.
+     * @throws NullPointerException if key is <tt>null</tt>. (A <tt>null</tt>
+     * default <i>is</i> permitted.)
+     */
+    @Override
+    public String get(String key, String def) {
+        if (key == null) {
+            throw new NullPointerException("Null key");
+        }
+        awaitLoaded();
+        if (nodeRemoved) {
+            throw new IllegalStateException("Node has been removed.");
+        }
+        int r = residency;
+        String value = entries.get(key);
+        if ((r & 1) != 0 || residency != r) {
+            // Evicted before or while reading
+            synchronized (lock) {
+                ensureResident();
+                value = entries.get(key);
+            }
+        } else if (!referenced) {
+            referenced = true;
+        }
+        PreferencesMetrics metrics = context.metrics();
+        if (metrics != null) {
+            metrics.recordGet(this, key);
+        }
+        return (value == null) ? def : value;
+    }
+
+    @Override
+    public int getInt(String key, int def) {
+        String value = get(key, null);
+        if (value == null) {
+            return def;
+        }
+        ParsedValue parsed = parsed(key, value, ParsedValue.INT);
+        return parsed.valid ? (int) parsed.bits : def;
+    }
+
+    @Override
+    public long getLong(String key, long def) {
+        String value = get(key, null);
+        if (value == null) {
+            return def;
         }
+        ParsedValue parsed = parsed(key, value, ParsedValue.LONG);
+        return parsed.valid ? parsed.bits : def;
+    }
+
+    @Override
+    public float getFloat(String key, float def) {
+        String value = get(key, null);
+        if (value == null) {
+            return def;
+        }
+        ParsedValue parsed = parsed(key, value, ParsedValue.FLOAT);
+        return parsed.valid ? Float.intBitsToFloat((int) parsed.bits) : def;
+    }
+
+    @Override
+    public double getDouble(String key, double def) {
+        String value = get(key, null);
+        if (value == null) {
+            return def;
+        }
+        ParsedValue parsed = parsed(key, value, ParsedValue.DOUBLE);
+        return parsed.valid ? Double.longBitsToDouble(parsed.bits) : def;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean def) {
+        String value = get(key, null);
+        if (value == null) {
+            return def;
+        }
+        ParsedValue parsed = parsed(key, value, ParsedValue.BOOLEAN);
+        return parsed.valid ? (parsed.bits != 0) : def;
+    }
+
+    /**
+     * Returns the parsed form of {@code value}, from the cache if possible.
+     */
+    private ParsedValue parsed(String key, String value, int kind) {
+        ConcurrentHashMap<String, ParsedValue> cache = parsedValues;
+        if (cache == null) {
+            // A race here is harmless, a value or two may have to be parsed again.
+            cache = new ConcurrentHashMap<>();
+            parsedValues = cache;
+        } else {
+            ParsedValue parsed = cache.get(key);
+            if (parsed != null && parsed.source == value && parsed.kind == kind) {
+                return parsed;
+            }
+        }
+        ParsedValue parsed = new ParsedValue(value, kind);
+        cache.put(key, parsed);
+        return parsed;
+    }
+
+    private void invalidateParsedValue(String key) {
+        ConcurrentHashMap<String, ParsedValue> cache = parsedValues;
+        if (cache != null) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Returns the named preference node. Unlike the implementation in 
+     * {@code AbstractPreferences} an existing node given by absolute path
+     * is found without acquiring the lock of any node.
+     *
+     * @param pathName the path name of the preference node to return.
+     * @return the specified preference node.
+     * @throws IllegalArgumentException if the path name is invalid.
+     * @throws IllegalStateException if this node (or an ancestor) has been
+     * removed with the {@link #removeNode()} method.
+     * @throws NullPointerException if path name is <tt>null</tt>.
+     */
+    @Override
+    public Preferences node(String pathName) {
+        awaitLoaded(pathName);
+        if (pathName.length() > 0 && pathName.charAt(0) == '/' && !nodeRemoved) {
+            TemporaryPreferences node = context.nodeIndex(treeType).get(pathName);
+            if (node != null) {
+                return node;
+            }
+        }
+        return super.node(pathName);
+    }
+
+    /**
+     * Returns true if the named preference node exists. Unlike the 
+     * implementation in {@code AbstractPreferences} a node given by 
+     * absolute path is looked up without acquiring the lock of any node.
+     *
+     * @param pathName the path name of the node whose existence is to be
+     * checked.
+     * @return true if the specified node exists.
+     * @throws BackingStoreException never.
+     * @throws IllegalArgumentException if the path name is invalid (i.e.,
+     * it contains multiple consecutive slash characters, or ends with a
+     * slash character and is more than one character long).
+     * @throws IllegalStateException if this node (or an ancestor) has been
+     * removed with the {@link #removeNode()} method and
+     * <tt>pathName</tt> is not the empty string (<tt>""</tt>).
+     * @throws NullPointerException if path name is <tt>null</tt>.
+     */
+    @Override
+    public boolean nodeExists(String pathName) throws BackingStoreException {
+        awaitLoaded(pathName);
+        if (pathName.length() > 0 && pathName.charAt(0) == '/' && !nodeRemoved) {
+            if (context.nodeIndex(treeType).containsKey(pathName)) {
+                return true;
+            }
+            if (!context.hasPendingKids() && isValidAbsolutePath(pathName)) {
+                return false;
+            }
+        }
+        return super.nodeExists(pathName);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        awaitLoaded();
+        super.put(key, value);
+    }
+
+    @Override
+    public void remove(String key) {
+        awaitLoaded();
+        super.remove(key);
+    }
+
+    @Override
+    public void clear() throws BackingStoreException {
+        awaitLoaded();
+        super.clear();
+    }
+
+    @Override
+    public String[] keys() throws BackingStoreException {
+        awaitLoaded();
+        return super.keys();
+    }
+
+    @Override
+    public String[] childrenNames() throws BackingStoreException {
+        awaitLoaded();
+        return super.childrenNames();
+    }
+
+    @Override
+    public void removeNode() throws BackingStoreException {
+        awaitLoaded();
+        super.removeNode();
+    }
+
+    /**
+     * Exports this node, but not its children, as specified by
+     * {@link Preferences#exportNode(OutputStream)}. Unlike the 
+     * implementation in {@code AbstractPreferences} the document is written
+     * as it's produced rather than built in memory first.
+     */
+    @Override
+    public void exportNode(OutputStream os) throws IOException, BackingStoreException {
+        awaitLoaded();
+        checkNotRemoved();
+        TreeWriter.writeXml(this, false, null, os);
+    }
+
+    /**
+     * Exports this node and its descendants as specified by
+     * {@link Preferences#exportSubtree(OutputStream)}. Unlike the 
+     * implementation in {@code AbstractPreferences} the document is written
+     * as the tree is walked rather than built in memory first, and nodes
+     * which are yet to be created are exported without being created.
+     */
+    @Override
+    public void exportSubtree(OutputStream os) throws IOException, BackingStoreException {
+        exportSubtree(os, null);
+    }
+
+    /**
+     * Same as {@link #exportSubtree(OutputStream)} but only the nodes whose
+     * absolute path starts with {@code pathPrefix} are exported with their
+     * preferences. Their ancestors are exported without preferences.
+     *
+     * @param os the output stream on which to emit the XML document.
+     * @param pathPrefix prefix of the absolute paths of the nodes to
+     * export, or <tt>null</tt> for all.
+     * @throws IOException if writing to the specified output stream
+     * results in an <tt>IOException</tt>.
+     * @throws IllegalStateException if this node (or an ancestor) has been
+     * removed with the {@link #removeNode()} method.
+     */
+    public void exportSubtree(OutputStream os, String pathPrefix) throws IOException {
+        awaitLoaded();
+        checkNotRemoved();
+        TreeWriter.writeXml(this, true, pathPrefix, os);
+    }
+
+    /**
+     * Writes this node and its descendants as human-readable text, one 
+     * line per preference, in the format used by 
+     * {@link TemporaryPreferencesFactory#KEY_PRINT_PREF}. The text is 
+     * written as the tree is walked and nodes which are yet to be created
+     * are written without being created.
+     *
+     * @param out where to write the text
+     * @param pathPrefix prefix of the absolute paths of the nodes to
+     * write, or <tt>null</tt> for all.
+     * @return false if nothing was written because there are no such 
+     * nodes with preferences or children
+     * @throws IOException if writing to {@code out} fails
+     * @throws IllegalStateException if this node (or an ancestor) has been
+     * removed with the {@link #removeNode()} method.
+     */
+    public boolean printSubtree(Appendable out, String pathPrefix) throws IOException {
+        awaitLoaded();
+        checkNotRemoved();
+        return TreeWriter.prettyPrint(this, pathPrefix, out);
+    }
+
+    private void checkNotRemoved() {
+        if (nodeRemoved) {
+            throw new IllegalStateException("Node has been removed.");
+        }
+    }
+
+    /**
+     * Waits until this node has been loaded, if the tree is being loaded
+     * in the background. Must be called without holding any node's lock
+     * as the loader needs them.
+     * 
+     * @throws IllegalStateException if loading has failed.
+     */
+    private void awaitLoaded() {
+        LoadGate gate = context.loadGate();
+        if (gate != null) {
+            gate.await(treeType, absolutePath());
+        }
+    }
+
+    /**
+     * Waits until the node with the given path, relative to this node or
+     * absolute, has been loaded or is known not to exist in the loaded data.
+     */
+    private void awaitLoaded(String pathName) {
+        LoadGate gate = context.loadGate();
+        if (gate != null) {
+            String path;
+            if (pathName.startsWith("/")) {
+                path = pathName;
+            } else if (pathName.isEmpty()) {
+                path = absolutePath();
+            } else {
+                path = absolutePath().equals("/") ? "/" + pathName : absolutePath() + "/" + pathName;
+            }
+            gate.await(treeType, path);
+        }
+    }
+
+    /**
+     * Returns true if the absolute path is one which {@code AbstractPreferences}
+     * accepts.
+     */
+    private static boolean isValidAbsolutePath(String pathName) {
+        if (pathName.length() == 1) {
+            return true;
+        }
+        int nameStart = 1;
+        for (int i = 1; i <= pathName.length(); i++) {
+            if (i == pathName.length() || pathName.charAt(i) == '/') {
+                int nameLength = i - nameStart;
+                if (nameLength == 0 || nameLength > MAX_NAME_LENGTH) {
+                    return false;
+                }
+                nameStart = i + 1;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -99,54 +660,618 @@ public class TemporaryPreferences extends AbstractPreferences {
 
     @Override
     protected String[] childrenNamesSpi() throws BackingStoreException {
-        // It is ok for this method to return an empty array because the
-        // method "need not return the names of any nodes already cached" 
+        // The method "need not return the names of any nodes already cached" 
         // and since our preferences live in memory they are indeed already
-        // cached.
-        return new String[0];
+        // cached. Only children which are yet to be created need to be
+        // returned.
+        ensureResident();
+        if (pendingKids == null) {
+            return new String[0];
+        }
+        return pendingKids.keySet().toArray(new String[pendingKids.size()]);
     }
 
     
     @Override
     protected AbstractPreferences childSpi(String childName) {
-        return new TemporaryPreferences(this, childName);
+        ensureResident();
+        TemporaryPreferences child = null;
+        if (pendingKids != null) {
+            NodeData data = pendingKids.remove(childName);
+            if (data != null) {
+                if (pendingKids.isEmpty()) {
+                    pendingKids = null;
+                    context.pendingKidsRemoved();
+                }
+                spillOffset = -1;
+                child = new TemporaryPreferences(this, data);
+                NodeEvictor evictor = context.evictor();
+                if (evictor != null) {
+                    // The child's entries move from this node's weight to the child's
+                    int childWeight = data.totalEntryCount();
+                    int moved = Math.min(weight, childWeight);
+                    weight -= moved;
+                    evictor.adjust(-moved);
+                    child.weight = childWeight;
+                    child.referenced = true;
+                    evictor.admit(child, childWeight);
+                }
+            }
+        }
+        if (child == null) {
+            child = new TemporaryPreferences(this, childName);
+            context.nodeIndex(treeType).put(child.absolutePath(), child);
+            context.fireNodeAdded(child);
+            enqueueNodeChange(child, true);
+        } else {
+            context.nodeIndex(treeType).put(child.absolutePath(), child);
+        }
+        return child;
+    }
+
+    /**
+     * Returns the named child if it exists. Only called by
+     * {@code AbstractPreferences} for children which are not yet cached.
+     * 
+     * <p>
+     * The default implementation creates a node (using {@code childSpi()}) 
+     * which is never cached, so we override it to make sure a child which 
+     * is yet to be created gets created only once.
+     */
+    @Override
+    protected AbstractPreferences getChild(String nodeName) throws BackingStoreException {
+        synchronized (lock) {
+            ensureResident();
+            if (pendingKids != null && pendingKids.containsKey(nodeName)) {
+                return (AbstractPreferences) node(nodeName);
+            }
+            return null;
+        }
     }
 
     @Override
     protected String[] keysSpi() throws BackingStoreException {
-        return entries.keySet().toArray(new String[entries.size()]);
+        ensureResident();
+        return entries.keys();
     }
 
     @Override
     protected String getSpi(String key) {
+        ensureResident();
         return entries.get(key);
     }
 
+    /**
+     * Evicts the data of this node to the spill file, unless the node has
+     * been accessed since the last call. Called by {@link NodeEvictor}.
+     * 
+     * @return -1 if the node remains a candidate for eviction, otherwise
+     * the number of entries which the evictor no longer needs to count for
+     * this node
+     */
+    int evict(SpillFile spillFile) throws IOException {
+        synchronized (lock) {
+            int freed = weight;
+            if (nodeRemoved || !evictable) {
+                weight = 0;
+                return freed;
+            }
+            if (referenced) {
+                referenced = false;
+                return -1;
+            }
+            if (spillOffset < 0) {
+                spillOffset = spillFile.write(capture());
+            }
+            residency++;
+            entries.clear();
+            // Still counted by the context as having pending kids
+            pendingKids = null;
+            parsedValues = null;
+            weight = 0;
+            PreferencesMetrics metrics = context.metrics();
+            if (metrics != null) {
+                metrics.recordNodeEvicted();
+            }
+            return freed;
+        }
+    }
+
+    /**
+     * Returns the entries and the children yet to be created of this node.
+     * Must be called while holding the node's lock.
+     */
+    private NodeData capture() {
+        TreeMap<String, String> captured = new TreeMap<>();
+        for (String key : entries.keys()) {
+            String value = entries.get(key);
+            if (value != null) {
+                captured.put(key, value);
+            }
+        }
+        List<NodeData> kids = new ArrayList<>();
+        if (pendingKids != null) {
+            kids.addAll(new TreeMap<>(pendingKids).values());
+        }
+        return NodeData.of(name(), captured, kids);
+    }
+
+    /**
+     * Returns true if the data of this node is currently evicted.
+     */
+    boolean isEvicted() {
+        return (residency & 1) != 0;
+    }
+
+    /**
+     * Reads the data of this node back from the spill file if it has been
+     * evicted. Must be called while holding the node's lock.
+     * 
+     * @throws IllegalStateException if the spill file cannot be read.
+     */
+    private void ensureResident() {
+        if (!isEvicted()) {
+            return;
+        }
+        NodeData data = spilledData();
+        for (int i = 0; i < data.entryCount(); i++) {
+            entries.put(context.intern(data.key(i)), context.intern(data.value(i)));
+        }
+        if (data.childCount() > 0) {
+            // The context kept counting this node as having pending kids
+            pendingKids = new HashMap<>();
+            for (int i = 0; i < data.childCount(); i++) {
+                pendingKids.put(data.child(i).name(), data.child(i));
+            }
+        }
+        residency++;
+        referenced = true;
+        weight = data.totalEntryCount();
+        context.evictor().admit(this, weight);
+        PreferencesMetrics metrics = context.metrics();
+        if (metrics != null) {
+            metrics.recordNodeRestored();
+        }
+    }
+
+    /**
+     * Reads the data of this evicted node from the spill file without 
+     * making it resident. Must be called while holding the node's lock.
+     */
+    private NodeData spilledData() {
+        try {
+            return context.evictor().read(spillOffset);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not read node \"" + absolutePath() + "\" from spill file", ex);
+        }
+    }
+
+    @Override
+    public void addPreferenceChangeListener(PreferenceChangeListener pcl) {
+        if (pcl == null) {
+            throw new NullPointerException("Change listener is null.");
+        }
+        synchronized (lock) {
+            if (isRemoved()) {
+                throw new IllegalStateException("Node has been removed.");
+            }
+            changeListeners = added(changeListeners, context.events().register(pcl));
+        }
+    }
+
+    @Override
+    public void removePreferenceChangeListener(PreferenceChangeListener pcl) {
+        synchronized (lock) {
+            if (isRemoved()) {
+                throw new IllegalStateException("Node has been removed.");
+            }
+            changeListeners = removed(changeListeners, pcl, false);
+        }
+    }
+
+    @Override
+    public void addNodeChangeListener(NodeChangeListener ncl) {
+        if (ncl == null) {
+            throw new NullPointerException("Change listener is null.");
+        }
+        synchronized (lock) {
+            if (isRemoved()) {
+                throw new IllegalStateException("Node has been removed.");
+            }
+            nodeListeners = added(nodeListeners, context.events().register(ncl));
+        }
+    }
+
+    @Override
+    public void removeNodeChangeListener(NodeChangeListener ncl) {
+        synchronized (lock) {
+            if (isRemoved()) {
+                throw new IllegalStateException("Node has been removed.");
+            }
+            nodeListeners = removed(nodeListeners, ncl, true);
+        }
+    }
+
+    private static EventDispatcher.Registration[] added(EventDispatcher.Registration[] registrations, 
+            EventDispatcher.Registration registration) {
+        EventDispatcher.Registration[] result = Arrays.copyOf(registrations, registrations.length + 1);
+        result[registrations.length] = registration;
+        return result;
+    }
+
+    /**
+     * Removes the first registration of the listener. Unless the listener
+     * is still registered, the events from this node not yet delivered to
+     * it are dropped.
+     * 
+     * @param nodeEvents true if the listener is a node change listener
+     */
+    private EventDispatcher.Registration[] removed(EventDispatcher.Registration[] registrations, 
+            Object listener, boolean nodeEvents) {
+        for (int i = 0; i < registrations.length; i++) {
+            EventDispatcher.Registration registration = registrations[i];
+            if (registration.listener == listener) {
+                EventDispatcher.Registration[] result = new EventDispatcher.Registration[registrations.length - 1];
+                System.arraycopy(registrations, 0, result, 0, i);
+                System.arraycopy(registrations, i + 1, result, i, result.length - i);
+                if (!Arrays.asList(result).contains(registration)) {
+                    registration.drop(this, nodeEvents);
+                }
+                context.events().release(registration);
+                return (result.length == 0) ? NO_LISTENERS : result;
+            }
+        }
+        throw new IllegalArgumentException("Listener not registered.");
+    }
+
+    /**
+     * Associates the specified values with the specified keys in this 
+     * node. Same as calling {@link #put(String, String)} for each entry,
+     * except that the node's lock is only acquired once and registered
+     * listeners receive the events as a batch.
+     * 
+     * @param entries keys and values
+     * @throws NullPointerException if a key or value is <tt>null</tt>.
+     * @throws IllegalArgumentException if a key or value is too long. 
+     * Nothing is put in that case.
+     * @throws IllegalStateException if this node (or an ancestor) has been
+     * removed with the {@link #removeNode()} method.
+     * @see #batch() 
+     */
+    public void putAll(Map<String, String> entries) {
+        batch().putAll("", entries).apply();
+    }
+
+    /**
+     * Returns a new, empty batch of changes for this node and its 
+     * descendants.
+     */
+    public PreferencesBatch batch() {
+        return new PreferencesBatch(this);
+    }
+
+    /**
+     * Applies changes to this node while holding its lock once, and 
+     * passes the events to the registered listeners as one batch. Called 
+     * by {@link PreferencesBatch}.
+     * 
+     * @param changes values by key, where <tt>null</tt> means remove
+     */
+    void apply(Map<String, String> changes) {
+        awaitLoaded();
+        synchronized (lock) {
+            if (isRemoved()) {
+                throw new IllegalStateException("Node has been removed.");
+            }
+            EventDispatcher.Registration[] listeners = changeListeners;
+            List<PreferenceChangeEvent> events = (listeners.length != 0) 
+                    ? new ArrayList<>(changes.size()) : Collections.emptyList();
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                if (change.getValue() != null) {
+                    putEntry(change.getKey(), change.getValue());
+                } else {
+                    removeEntry(change.getKey());
+                }
+                if (listeners.length != 0) {
+                    events.add(new PreferenceChangeEvent(this, change.getKey(), change.getValue()));
+                }
+            }
+            context.events().dispatch(listeners, events);
+        }
+    }
+
+    private void enqueuePreferenceChange(String key, String newValue) {
+        EventDispatcher.Registration[] listeners = changeListeners;
+        if (listeners.length != 0) {
+            context.events().dispatch(listeners, new PreferenceChangeEvent(this, key, newValue));
+        }
+    }
+
+    /**
+     * Passes a node change event for {@code child} to the registered
+     * listeners. Must be called while holding the node's lock.
+     */
+    private void enqueueNodeChange(TemporaryPreferences child, boolean added) {
+        EventDispatcher.Registration[] listeners = nodeListeners;
+        if (listeners.length != 0) {
+            context.events().dispatch(listeners, new NodeChangeEvent(this, child), added);
+        }
+    }
+
     @Override
     protected void putSpi(String key, String value) {
-        entries.put(key, value);
+        putEntry(key, value);
+        enqueuePreferenceChange(key, value);
+    }
+
+    private void putEntry(String key, String value) {
+        ensureResident();
+        evictable = false;
+        String previous = entries.put(key, value);
+        invalidateParsedValue(key);
+        PreferencesMetrics metrics = context.metrics();
+        if (metrics != null) {
+            metrics.recordPut(previous == null);
+        }
+        context.firePut(this, key, value);
     }
 
     @Override
     protected void removeSpi(String key) {
-        entries.remove(key);
+        removeEntry(key);
+        enqueuePreferenceChange(key, null);
+    }
+
+    private void removeEntry(String key) {
+        ensureResident();
+        evictable = false;
+        String previous = entries.remove(key);
+        invalidateParsedValue(key);
+        PreferencesMetrics metrics = context.metrics();
+        if (metrics != null) {
+            metrics.recordRemove(previous != null);
+        }
+        if (previous != null) {
+            context.fireRemove(this, key);
+        }
+    }
+
+    /**
+     * Waits until the changes made so far to the tree have been written
+     * to file, if the tree is persisted. Unlike the implementation in 
+     * {@code AbstractPreferences} this method does not walk the subtree
+     * and acquires no locks.
+     * 
+     * @throws BackingStoreException if the changes could not be written.
+     */
+    @Override
+    public void flush() throws BackingStoreException {
+        awaitLoaded();
+        context.flush(this);
+    }
+
+    /**
+     * Same as {@link #flush()}. There is nothing to read back from
+     * the file as it is only ever written by this tree.
+     * 
+     * @throws BackingStoreException if the changes could not be written.
+     * @throws IllegalStateException if this node (or an ancestor) has been
+     * removed with the {@link #removeNode()} method.
+     */
+    @Override
+    public void sync() throws BackingStoreException {
+        if (nodeRemoved) {
+            throw new IllegalStateException("Node has been removed");
+        }
+        awaitLoaded();
+        context.flush(this);
     }
 
     @Override
     protected void flushSpi() {
-        // Nothing to flush. Data is in memory
-        // and therefore already flushed.
+        // Not used, see flush()
     }
 
     @Override
     protected void syncSpi() {
-        // Nothing to sync. Data is in memory
-        // and therefore already sync'ed.
+        // Not used, see sync()
+    }
+
+    /**
+     * Returns an immutable snapshot of this node and its subtree. Reading
+     * from the snapshot takes no locks and is never affected by later 
+     * changes, see {@link PreferencesSnapshot}. Requires system property
+     * {@link TemporaryPreferencesFactory#KEY_SNAPSHOTS}.
+     * 
+     * @return the snapshot, or <tt>null</tt> if this node is not in the 
+     * latest version, for example because it has been removed or because
+     * it was created by a reload which is still in progress.
+     * @throws IllegalStateException if snapshots are not enabled or the 
+     * preferences could not be loaded.
+     */
+    public PreferencesSnapshot snapshot() {
+        return context.snapshot(treeType, absolutePath());
+    }
+
+    /**
+     * Returns a copy of this node and its subtree as the root of a new,
+     * independent tree. Changes made to the copy are not seen in this tree
+     * and vice versa.
+     * 
+     * <p>
+     * The copy shares all data with this tree: a node of the copy is only
+     * created when it's first accessed, and its entries are only copied
+     * when it's first changed. Many forks of a large tree are therefore
+     * cheap and each takes memory in proportion to the part of it which
+     * is used. If snapshots are enabled (see
+     * {@link TemporaryPreferencesFactory#KEY_SNAPSHOTS}) forking takes
+     * constant time, otherwise the nodes of the subtree which have been
+     * created are copied.
+     * 
+     * <p>
+     * The copy has the tree type of this node but otherwise starts out
+     * afresh: it has no listeners and its changes are neither persisted
+     * nor recorded in metrics.
+     * 
+     * @return the root of the copy
+     * @throws IllegalStateException if this node (or an ancestor) has been
+     * removed with the {@link #removeNode()} method.
+     */
+    public TemporaryPreferences fork() {
+        awaitLoaded();
+        NodeData data = null;
+        if (context.snapshots() != null) {
+            PreferencesSnapshot snapshot = snapshot();
+            if (snapshot != null) {
+                data = snapshot.data();
+            }
+        }
+        if (data == null) {
+            if (nodeRemoved) {
+                throw new IllegalStateException("Node has been removed.");
+            }
+            data = SnapshotPublisher.capture(this);
+        }
+        return forkRoot(data, treeType, context.fork());
+    }
+
+    /**
+     * Creates the root of a forked tree from the data of the forked node.
+     */
+    static TemporaryPreferences forkRoot(NodeData data, TreeType treeType, TreeContext context) {
+        return new TemporaryPreferences(null, "", treeType, context, data);
+    }
+
+    /**
+     * Returns the children of this node by name, sorted. The values are 
+     * either {@code TemporaryPreferences} for nodes which have been 
+     * created or {@link NodeData} for nodes which are yet to be created.
+     * Meant for walking the tree without creating nodes.
+     */
+    TreeMap<String, Object> children() {
+        TreeMap<String, Object> children = new TreeMap<>();
+        synchronized (lock) {
+            if (nodeRemoved) {
+                return children;
+            }
+            for (AbstractPreferences child : cachedChildren()) {
+                children.put(child.name(), child);
+            }
+            if (isEvicted()) {
+                NodeData data = spilledData();
+                for (int i = 0; i < data.childCount(); i++) {
+                    children.put(data.child(i).name(), data.child(i));
+                }
+            } else if (pendingKids != null) {
+                children.putAll(pendingKids);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Passes each key and value of this node to {@code action}. The entries
+     * are read while holding the node's lock, so they are consistent.
+     */
+    void exportEntries(BiConsumer<String, String> action) {
+        synchronized (lock) {
+            if (isEvicted()) {
+                // Without making the node resident
+                NodeData data = spilledData();
+                for (int i = 0; i < data.entryCount(); i++) {
+                    action.accept(data.key(i), data.value(i));
+                }
+                return;
+            }
+            for (String key : entries.keys()) {
+                String value = entries.get(key);
+                if (value != null) {
+                    action.accept(key, value);
+                }
+            }
+        }
     }
 
     @Override
     protected void removeNodeSpi() {
+        ensureResident();
+        nodeRemoved = true;
+        PreferencesMetrics metrics = context.metrics();
+        if (metrics != null) {
+            metrics.recordNodeRemoved(entries.size());
+        }
         entries.clear();
+        if (pendingKids != null) {
+            pendingKids = null;
+            context.pendingKidsRemoved();
+        }
+        parsedValues = null;
+        context.nodeIndex(treeType).remove(absolutePath(), this);
+        for (EventDispatcher.Registration registration : changeListeners) {
+            context.events().release(registration);
+        }
+        for (EventDispatcher.Registration registration : nodeListeners) {
+            context.events().release(registration);
+        }
+        changeListeners = NO_LISTENERS;
+        nodeListeners = NO_LISTENERS;
+        context.fireNodeRemoved(this);
+        // The parent's lock is held by removeNode()
+        ((TemporaryPreferences) parent()).enqueueNodeChange(this, false);
+    }
+
+    /**
+     * A value as parsed by one of the typed getters. Parse failures are
+     * cached too, in which case the getter returns its default.
+     */
+    private static final class ParsedValue {
+
+        static final int INT = 0;
+        static final int LONG = 1;
+        static final int FLOAT = 2;
+        static final int DOUBLE = 3;
+        static final int BOOLEAN = 4;
+
+        final String source;
+        final int kind;
+        final long bits;
+        final boolean valid;
+
+        /**
+         * Parses the value the same way as {@code AbstractPreferences} does.
+         */
+        ParsedValue(String source, int kind) {
+            this.source = source;
+            this.kind = kind;
+            long parsedBits = 0;
+            boolean parsedOk = true;
+            try {
+                switch (kind) {
+                    case INT:
+                        parsedBits = Integer.parseInt(source);
+                        break;
+                    case LONG:
+                        parsedBits = Long.parseLong(source);
+                        break;
+                    case FLOAT:
+                        parsedBits = Float.floatToRawIntBits(Float.parseFloat(source));
+                        break;
+                    case DOUBLE:
+                        parsedBits = Double.doubleToRawLongBits(Double.parseDouble(source));
+                        break;
+                    default:
+                        if (source.equalsIgnoreCase("true")) {
+                            parsedBits = 1;
+                        } else if (!source.equalsIgnoreCase("false")) {
+                            parsedOk = false;
+                        }
+                        break;
+                }
+            } catch (NumberFormatException ex) {
+                parsedOk = false;
+            }
+            this.bits = parsedBits;
+            this.valid = parsedOk;
+        }
     }
-    
 }
@@ -18,12 +18,23 @@ package com.addicticks.preferences2go;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.InvalidPreferencesFormatException;
 import java.util.prefs.Preferences;
 import java.util.prefs.PreferencesFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Preferences factory that uses {@link TemporaryPreferences}.
@@ -45,6 +56,18 @@ public class TemporaryPreferencesFactory implements PreferencesFactory {
      * XML file conforming to the DTD as explained in {@link java.util.prefs.Preferences}.
      * The content of this XML file will be loaded on startup.
      * 
+     * <p>
+     * May also be a list of such files separated by {@link java.io.File#pathSeparator},
+     * where the file name part of each element may be a glob pattern such
+     * as {@code conf/*.xml}. The files are then parsed in parallel and 
+     * merged. Where files have the same preference, the value from the file 
+     * which comes last in the list wins. Files matching a pattern are taken
+     * in order of their names.
+     *
+     * <p>
+     * Files whose name ends with {@code .flat} are read as flat files of
+     * {@code /node/path:key=value} lines instead, which are a lot faster
+     * to load than XML.
      */
     public static final String KEY_XML_FILE = "pref2go.xmlFile";
     
@@ -55,89 +78,755 @@ public class TemporaryPreferencesFactory implements PreferencesFactory {
      */
     public static final String KEY_PRINT_PREF = "pref2go.printPref";
     
-    private static final String INDENT = "    ";
+    /**
+     * System Property. If set, only the preferences of the nodes whose 
+     * absolute path starts with this prefix are printed by
+     * {@link #KEY_PRINT_PREF}.
+     */
+    public static final String KEY_PRINT_PREF_PREFIX = "pref2go.printPrefPrefix";
+    
+    /**
+     * System Property. If set to "true" the file pointed to by {@link #KEY_XML_FILE}
+     * is watched for changes. When the file changes it is re-read and what
+     * has changed in the file is applied to the preference tree, meaning 
+     * that registered listeners are only notified about values that have
+     * actually changed. Nodes and keys which have been removed from the 
+     * file are removed from the tree, while nodes and keys which the
+     * application has added are kept.
+     * This only has effect if {@link #KEY_XML_FILE} is set.
+     */
+    public static final String KEY_WATCH_FILE = "pref2go.watchFile";
+    
+    /**
+     * System Property. The number of milliseconds the file must have been
+     * left unchanged before it is reloaded. This avoids reading a file
+     * which is still being written. Defaults to 500. 
+     * This only has effect if {@link #KEY_WATCH_FILE} is set.
+     */
+    public static final String KEY_WATCH_DEBOUNCE_MILLIS = "pref2go.watchDebounceMillis";
+    
+    /**
+     * System Property. If set it's assumed to be the name of a file where
+     * a compiled (binary) form of {@link #KEY_XML_FILE} is cached. On startup
+     * the cache is used instead of the XML file if the cache was compiled
+     * from a file with identical content. Otherwise the XML file is read
+     * and the cache is (re-)written. The cache is a lot faster to load than
+     * the XML file. This only has effect if {@link #KEY_XML_FILE} is set.
+     */
+    public static final String KEY_CACHE_FILE = "pref2go.cacheFile";
+    
+    /**
+     * System Property. If set to "true" the preferences loaded from 
+     * {@link #KEY_XML_FILE} are kept in a compact form and preference nodes
+     * are only created when first accessed. This reduces startup time and
+     * memory usage when the application uses only part of the tree.
+     * This only has effect if {@link #KEY_XML_FILE} is set.
+     */
+    public static final String KEY_LAZY_LOAD = "pref2go.lazyLoad";
+    
+    /**
+     * System Property. If set to "true" preference nodes use a memory-lean
+     * storage for their entries, and keys, values and node names which
+     * repeat across the loaded tree are stored only once. Recommended for
+     * very large trees.
+     */
+    public static final String KEY_COMPACT_STORAGE = "pref2go.compactStorage";
+    
+    /**
+     * System Property. If set to "true" metrics about the use of the 
+     * preferences are collected and exposed as a platform MBean,
+     * see {@link PreferencesMetricsMXBean}. 
+     */
+    public static final String KEY_METRICS = "pref2go.metrics";
+    
+    /**
+     * System Property. If set it's assumed to be the name of a file to which
+     * the user preference tree is written, in the same XML format as 
+     * {@link #KEY_XML_FILE}, whenever it has been changed by the application.
+     * Writing is done in the background, shortly after the change. 
+     * {@link Preferences#flush()} waits until all changes made before the
+     * call have been written. The file may be the same as {@link #KEY_XML_FILE}.
+     */
+    public static final String KEY_PERSIST_FILE = "pref2go.persistFile";
+    
+    /**
+     * System Property. Same as {@link #KEY_PERSIST_FILE} but for the system
+     * preference tree.
+     */
+    public static final String KEY_PERSIST_SYSTEM_FILE = "pref2go.persistSystemFile";
+    
+    /**
+     * System Property. For how many milliseconds to wait for more changes 
+     * before writing to {@link #KEY_PERSIST_FILE} or 
+     * {@link #KEY_PERSIST_SYSTEM_FILE}, so that a burst of changes is 
+     * written only once. Defaults to 200.
+     */
+    public static final String KEY_PERSIST_DELAY_MILLIS = "pref2go.persistDelayMillis";
+    
+    /**
+     * System Property. If set to "true" all changes made by the application
+     * are recorded in a journal file next to {@link #KEY_XML_FILE}, with
+     * the same name plus ".journal". On startup the journal is replayed on top
+     * of the preferences loaded from {@link #KEY_XML_FILE}. Changes applied
+     * by a reload of the file are not recorded, the journal is compacted 
+     * against the reloaded file instead. The journal is also compacted 
+     * when it grows past {@link #KEY_JOURNAL_COMPACT_BYTES}.
+     * This only has effect if {@link #KEY_XML_FILE} is set.
+     */
+    public static final String KEY_JOURNAL = "pref2go.journal";
+    
+    /**
+     * System Property. If set to "true" the preferences are loaded from
+     * {@link #KEY_XML_FILE} on a background thread, so that initialization
+     * of {@link Preferences} doesn't wait for it. Access to a preference
+     * node waits until that node and its descendants have been loaded. 
+     * If loading fails, all access to the preferences throws 
+     * {@code IllegalStateException}. With {@link #KEY_LAZY_LOAD} or 
+     * {@link #KEY_CACHE_FILE} access waits until everything has been loaded,
+     * and so it does with {@link #KEY_JOURNAL}, {@link #KEY_PERSIST_FILE} or
+     * {@link #KEY_PERSIST_SYSTEM_FILE}, so that the application never sees
+     * values which the journal is about to replace and all its changes are
+     * recorded. This only has effect if {@link #KEY_XML_FILE} is set.
+     */
+    public static final String KEY_ASYNC_LOAD = "pref2go.asyncLoad";
+    
+    /**
+     * System Property. When the journal is forced to disk: "always" 
+     * (after every write, which groups the changes made meanwhile), "flush" 
+     * (only on {@link Preferences#flush()} and {@link Preferences#sync()})
+     * or "never" (left to the operating system). Defaults to "always".
+     */
+    public static final String KEY_JOURNAL_SYNC = "pref2go.journalSync";
+    
+    /**
+     * System Property. The size in bytes at which the journal is compacted
+     * in the background, so that it only holds the net differences from
+     * {@link #KEY_XML_FILE}. Defaults to 1048576.
+     */
+    public static final String KEY_JOURNAL_COMPACT_BYTES = "pref2go.journalCompactBytes";
+    
+    /**
+     * System Property. If set to "true" immutable snapshots of the 
+     * preferences are kept up to date, see {@link #userSnapshot()} and
+     * {@link TemporaryPreferences#snapshot()}. All changes made by a reload
+     * of {@link #KEY_XML_FILE} are published in one go.
+     */
+    public static final String KEY_SNAPSHOTS = "pref2go.snapshots";
+    
+    /**
+     * System Property. If set to "true" indexes of the nodes by path and
+     * by key are kept up to date, so that nodes can be found without 
+     * walking the trees, see {@link #userQuery()}.
+     */
+    public static final String KEY_INDEX = "pref2go.index";
+    
+    /**
+     * System Property. The number of threads which deliver events to 
+     * preference change and node change listeners, or "virtual" for a 
+     * virtual thread per listener with queued events (requires a Java 
+     * platform with virtual threads). Each listener receives its events in
+     * order, but different listeners receive them independently of each 
+     * other. If not set, the listeners of all trees share a pool with one 
+     * thread per processor (at least two).
+     */
+    public static final String KEY_EVENT_THREADS = "pref2go.eventThreads";
+    
+    /**
+     * System Property. If set it's assumed to be the name of a file, 
+     * typically under {@code /dev/shm}, through which all processes on the
+     * host which load the same {@link #KEY_XML_FILE} share the parsed
+     * preferences. The first process to start parses the XML file and
+     * publishes the result in the memory-mapped file; the others read it 
+     * from there. Versions published later, for example after a reload by
+     * {@link #KEY_WATCH_FILE}, are picked up by all processes. This saves
+     * the parsing, not the memory: each process still holds its own copy
+     * of the preferences, see {@link #KEY_LAZY_LOAD} for keeping that 
+     * small. Takes 
+     * precedence over {@link #KEY_CACHE_FILE}. This only has effect if
+     * {@link #KEY_XML_FILE} is set.
+     */
+    public static final String KEY_SHARED_FILE = "pref2go.sharedFile";
+    
+    /**
+     * System Property. How often (in milliseconds) to check whether another
+     * process has published a new version to {@link #KEY_SHARED_FILE}. 
+     * Defaults to 1000.
+     */
+    public static final String KEY_SHARED_POLL_MILLIS = "pref2go.sharedPollMillis";
+    
+    /**
+     * System Property. Memory budget for the preferences loaded from 
+     * {@link #KEY_XML_FILE}, in number of entries. When the loaded entries
+     * held in memory exceed the budget, the entries and not yet created 
+     * children of nodes which haven't been accessed for a while, and which
+     * haven't been changed since they were loaded, are evicted to a spill
+     * file. They are read back when the node is next accessed. Implies
+     * {@link #KEY_LAZY_LOAD}. If not set, everything is kept in memory.
+     */
+    public static final String KEY_MAX_RESIDENT_ENTRIES = "pref2go.maxResidentEntries";
+    
+    /**
+     * System Property. The spill file for {@link #KEY_MAX_RESIDENT_ENTRIES}.
+     * The file is overwritten on startup. If not set, a temporary file is
+     * used.
+     */
+    public static final String KEY_SPILL_FILE = "pref2go.spillFile";
     
-    private final String xmlFileString;
+    private final Properties properties;
+    private final XmlFileList xmlFiles;
+    private final boolean lazyLoad;
+    private final boolean keepLoaded;
+    // The trees as last loaded from the file, to find what a reload changes
+    private NodeData loadedUserData;
+    private NodeData loadedSystemData;
+    private final TreeContext treeContext;
+    private final PreferencesMetrics metrics;
+    private ObjectName metricsName;
     private final TemporaryPreferences systemRootPrefs;
     private final TemporaryPreferences userRootPrefs;
+    private XmlFileWatcher xmlFileWatcher;
+    private WriteBehindWriter userWriter;
+    private WriteBehindWriter systemWriter;
+    private final Path journalFile;
+    private long journalValidLength;
+    private Journal journal;
+    private final Thread loader;
+    /**
+     * True if a subtree loaded in the background may be used before the
+     * whole load has completed.
+     */
+    private final boolean earlyAccess;
+    private final LoadGate loadGate;
+    private final SnapshotPublisher snapshots;
+    private final PathIndex index;
+    private final ExecutorService eventExecutor;
+    private SharedSegment sharedSegment;
+    private final NodeEvictor evictor;
 
     public TemporaryPreferencesFactory() throws FileNotFoundException, IOException, InvalidPreferencesFormatException, BackingStoreException {
-        systemRootPrefs = new TemporaryPreferences(
-                null, // parent (null means root)
-                "", // name (root has no node name)
-                TemporaryPreferences.TreeType.SYSTEM // type
-        );
-        userRootPrefs = new TemporaryPreferences(
+        this(System.getProperties());
+    }
+
+    /**
+     * Creates a factory configured from the given properties rather
+     * than from System Properties.
+     */
+    TemporaryPreferencesFactory(Properties properties) throws FileNotFoundException, IOException, InvalidPreferencesFormatException, BackingStoreException {
+        this.properties = properties;
+        metrics = Boolean.parseBoolean(properties.getProperty(KEY_METRICS, "false")) ? new PreferencesMetrics() : null;
+        eventExecutor = newEventExecutor(properties.getProperty(KEY_EVENT_THREADS));
+        treeContext = new TreeContext(Boolean.parseBoolean(properties.getProperty(KEY_COMPACT_STORAGE, "false")), 
+                metrics, eventExecutor);
+        systemRootPrefs = newRoot(TemporaryPreferences.TreeType.SYSTEM, treeContext);
+        userRootPrefs = newRoot(TemporaryPreferences.TreeType.USER, treeContext);
+        String xmlFileString = properties.getProperty(KEY_XML_FILE);
+        xmlFiles = (xmlFileString != null) ? new XmlFileList(xmlFileString) : null;
+        evictor = (xmlFiles != null) ? newEvictor(properties.getProperty(KEY_MAX_RESIDENT_ENTRIES)) : null;
+        treeContext.setEvictor(evictor);
+        lazyLoad = Boolean.parseBoolean(properties.getProperty(KEY_LAZY_LOAD, "false")) || evictor != null;
+        keepLoaded = xmlFiles != null && (Boolean.parseBoolean(properties.getProperty(KEY_WATCH_FILE, "false"))
+                || properties.getProperty(KEY_SHARED_FILE) != null);
+        journalFile = (xmlFiles != null && Boolean.parseBoolean(properties.getProperty(KEY_JOURNAL, "false")))
+                ? xmlFiles.journalFile() : null;
+        if (metrics != null) {
+            registerMetrics();
+        }
+        snapshots = Boolean.parseBoolean(properties.getProperty(KEY_SNAPSHOTS, "false")) ? new SnapshotPublisher() : null;
+        treeContext.setSnapshots(snapshots);
+        index = Boolean.parseBoolean(properties.getProperty(KEY_INDEX, "false")) ? new PathIndex() : null;
+        // The journal is replayed and changes are only recorded once the
+        // whole tree has been loaded
+        earlyAccess = journalFile == null && properties.getProperty(KEY_PERSIST_FILE) == null
+                && properties.getProperty(KEY_PERSIST_SYSTEM_FILE) == null;
+        if (xmlFiles != null && Boolean.parseBoolean(properties.getProperty(KEY_ASYNC_LOAD, "false"))) {
+            loader = new Thread(this::startInBackground, "Preferences2Go loader");
+            loader.setDaemon(true);
+            loadGate = new LoadGate(loader);
+            treeContext.setLoadGate(loadGate);
+            loader.start();
+        } else {
+            loader = null;
+            loadGate = null;
+            start();
+        }
+    }
+    
+    /**
+     * Loads the preferences and starts what depends on them.
+     */
+    private void start() throws FileNotFoundException, IOException, InvalidPreferencesFormatException, BackingStoreException {
+        loadPreferencesFromXMLFile();
+        if (snapshots != null) {
+            treeContext.addObserver(snapshots);
+            snapshots.start(userRootPrefs, systemRootPrefs);
+        }
+        if (index != null) {
+            treeContext.addObserver(index);
+            index.start(userRootPrefs, systemRootPrefs);
+        }
+        if (journalFile != null) {
+            journal = new Journal(userRootPrefs, systemRootPrefs, journalFile, journalValidLength, xmlFiles,
+                    Journal.Sync.valueOf(properties.getProperty(KEY_JOURNAL_SYNC, "always").toUpperCase(Locale.ROOT)),
+                    Long.parseLong(properties.getProperty(KEY_JOURNAL_COMPACT_BYTES, "1048576")));
+            treeContext.addObserver(journal);
+        }
+        long persistDelayMillis = Long.parseLong(properties.getProperty(KEY_PERSIST_DELAY_MILLIS, "200"));
+        userWriter = newWriter(userRootPrefs, properties.getProperty(KEY_PERSIST_FILE), persistDelayMillis);
+        systemWriter = newWriter(systemRootPrefs, properties.getProperty(KEY_PERSIST_SYSTEM_FILE), persistDelayMillis);
+        if (sharedSegment != null) {
+            sharedSegment.watch(Long.parseLong(properties.getProperty(KEY_SHARED_POLL_MILLIS, "1000")), 
+                    this::reloadPreferencesFromSharedSegment);
+        }
+        if (xmlFiles != null && Boolean.parseBoolean(properties.getProperty(KEY_WATCH_FILE, "false"))) {
+            long debounceMillis = Long.parseLong(properties.getProperty(KEY_WATCH_DEBOUNCE_MILLIS, "500"));
+            xmlFileWatcher = new XmlFileWatcher(xmlFiles, debounceMillis, this::reloadPreferencesFromXMLFile);
+        }
+    }
+    
+    /**
+     * Runs {@link #start()} on the loader thread. 
+     */
+    private void startInBackground() {
+        try {
+            start();
+            loadGate.done();
+            treeContext.setLoadGate(null);
+        } catch (Exception | Error ex) {
+            LOGGER.log(Level.SEVERE, "Could not load preferences from file \"" + xmlFiles + "\"", ex);
+            loadGate.failed(ex);
+        }
+    }
+    
+    /**
+     * Waits until the preferences have been loaded, if loading in the
+     * background.
+     */
+    void awaitLoad() throws InterruptedException {
+        if (loader != null) {
+            loader.join();
+        }
+    }
+    
+    private static TemporaryPreferences newRoot(TemporaryPreferences.TreeType treeType, TreeContext context) {
+        return new TemporaryPreferences(
                 null, // parent (null means root)
                 "", // name (root has no node name)
-                TemporaryPreferences.TreeType.USER // type
+                treeType, // type
+                context
         );
-        xmlFileString = System.getProperty(KEY_XML_FILE);
-        loadPreferencesFromXMLFile();
-
     }
     
+    /**
+     * Creates the executor for delivering events as configured by 
+     * {@link #KEY_EVENT_THREADS}, or returns <tt>null</tt> for the shared
+     * executor.
+     */
+    private static ExecutorService newEventExecutor(String eventThreads) {
+        if (eventThreads == null) {
+            return null;
+        }
+        if (eventThreads.equalsIgnoreCase("virtual")) {
+            ExecutorService executor = EventDispatcher.newVirtualThreadExecutor();
+            if (executor == null) {
+                LOGGER.log(Level.WARNING, "Virtual threads are not available, " + KEY_EVENT_THREADS + " ignored");
+            }
+            return executor;
+        }
+        return EventDispatcher.newThreadPool(Integer.parseInt(eventThreads));
+    }
     
-    private void loadPreferencesFromXMLFile() throws FileNotFoundException, IOException, InvalidPreferencesFormatException, BackingStoreException {
-        if (xmlFileString != null) {
-            LOGGER.log(Level.FINEST, "Java System Property " + KEY_XML_FILE + " found with value \"{0}\"", xmlFileString);
-            LOGGER.log(Level.FINEST, "Attempting to load preferences from : {0}", xmlFileString);
-            try (FileInputStream xmlStream = new FileInputStream(xmlFileString)) {
-                XmlSupport.importPreferences(xmlStream, userRootPrefs, systemRootPrefs);
-                
-                LOGGER.log(Level.INFO, "Preferences succesfully loaded from file \"" + xmlFileString + "\"");
-                
-                if (Boolean.parseBoolean(System.getProperty(KEY_PRINT_PREF, "false"))) {
-                    String prettyPrintSystemPrefs = prettyPrintPrefs(systemRootPrefs);
-                    String prettyPrintUserPrefs = prettyPrintPrefs(userRootPrefs);
-                    String prettyPrintPrefs = (prettyPrintSystemPrefs == null)
-                            ? prettyPrintUserPrefs : prettyPrintSystemPrefs + System.lineSeparator() + prettyPrintUserPrefs;
-                    LOGGER.logp(Level.INFO, "Addicticks", "Preferences2Go",
-                            ((isRFAPreferences(systemRootPrefs, userRootPrefs)) ? "RFA " : "")
-                            + "Preference values :" + System.lineSeparator() + prettyPrintPrefs);
+    /**
+     * Creates the evictor if a budget is given.
+     */
+    private NodeEvictor newEvictor(String maxResidentEntries) throws IOException {
+        if (maxResidentEntries == null) {
+            return null;
+        }
+        String spillFileString = properties.getProperty(KEY_SPILL_FILE);
+        SpillFile spillFile = new SpillFile((spillFileString != null) ? Paths.get(spillFileString) : null);
+        return new NodeEvictor(Long.parseLong(maxResidentEntries), spillFile);
+    }
+    
+    /**
+     * Creates a writer for the tree if a file is given. 
+     */
+    private WriteBehindWriter newWriter(TemporaryPreferences root, String fileString, long delayMillis) {
+        if (fileString == null) {
+            return null;
+        }
+        WriteBehindWriter writer = new WriteBehindWriter(root, Paths.get(fileString), delayMillis);
+        treeContext.addObserver(writer);
+        return writer;
+    }
+    
+    /**
+     * Registers the metrics in the platform MBean server. Failure to do so
+     * is not fatal.
+     */
+    private void registerMetrics() {
+        try {
+            ObjectName name = new ObjectName(PreferencesMetrics.OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException ex) {
+            LOGGER.log(Level.WARNING, "Could not register MBean \"" + PreferencesMetrics.OBJECT_NAME + "\"", ex);
+        }
+    }
+    
+    /**
+     * Returns an immutable snapshot of the user preferences. Reading from
+     * the snapshot takes no locks and is never affected by later changes,
+     * see {@link PreferencesSnapshot}.
+     * 
+     * @throws IllegalStateException if {@link #KEY_SNAPSHOTS} is not set or
+     * the preferences could not be loaded.
+     */
+    public PreferencesSnapshot userSnapshot() {
+        return treeContext.snapshot(TemporaryPreferences.TreeType.USER, "/");
+    }
+    
+    /**
+     * Returns an immutable snapshot of the system preferences.
+     * 
+     * @see #userSnapshot() 
+     */
+    public PreferencesSnapshot systemSnapshot() {
+        return treeContext.snapshot(TemporaryPreferences.TreeType.SYSTEM, "/");
+    }
+    
+    /**
+     * Returns a query for finding nodes of the user preferences by key,
+     * value or path, see {@link PreferencesQuery}.
+     * 
+     * @throws IllegalStateException if {@link #KEY_INDEX} is not set or
+     * the preferences could not be loaded.
+     */
+    public PreferencesQuery userQuery() {
+        return query(true);
+    }
+    
+    /**
+     * Returns a query for finding nodes of the system preferences.
+     * 
+     * @see #userQuery() 
+     */
+    public PreferencesQuery systemQuery() {
+        return query(false);
+    }
+    
+    private PreferencesQuery query(boolean userTree) {
+        if (index == null) {
+            throw new IllegalStateException("Queries are not enabled, see " + KEY_INDEX);
+        }
+        LoadGate gate = treeContext.loadGate();
+        if (gate != null) {
+            gate.awaitDone();
+        }
+        return new PreferencesQuery(index.tree(userTree));
+    }
+    
+    /**
+     * Returns the metrics of the preference trees, or <tt>null</tt> if
+     * {@link #KEY_METRICS} is not set.
+     */
+    PreferencesMetrics metrics() {
+        return metrics;
+    }
+    
+    /**
+     * Makes the sink report completed subtrees to the load gate, if
+     * loading in the background and subtrees may be used early.
+     */
+    private NodeSink track(NodeSink sink, TemporaryPreferences.TreeType treeType) {
+        return (loadGate != null && earlyAccess) ? loadGate.track(sink, treeType) : sink;
+    }
+    
+    private void importXMLFile(NodeSink userRoot, NodeSink systemRoot) throws FileNotFoundException, IOException, InvalidPreferencesFormatException {
+        importXMLFile(xmlFiles.resolve(), userRoot, systemRoot);
+    }
+    
+    private void importXMLFile(List<Path> files, NodeSink userRoot, NodeSink systemRoot) throws FileNotFoundException, IOException, InvalidPreferencesFormatException {
+        if (xmlFiles.isSingleFile() && FlatSupport.isFlatFile(files.get(0))) {
+            if (!files.get(0).toFile().isFile()) {
+                throw new FileNotFoundException(files.get(0).toString());
+            }
+            FlatSupport.importPreferences(files.get(0), userRoot, systemRoot);
+        } else if (xmlFiles.isSingleFile()) {
+            try (FileInputStream xmlStream = new FileInputStream(files.get(0).toFile())) {
+                XmlSupport.importPreferences(xmlStream, userRoot, systemRoot);
+            }
+        } else {
+            if (files.isEmpty()) {
+                LOGGER.log(Level.WARNING, "No files match \"{0}\"", xmlFiles);
+            }
+            XmlSupport.importPreferences(files, userRoot, systemRoot);
+        }
+    }
+    
+    /**
+     * Reads the trees published to the shared segment from the given files
+     * or, if they haven't been published, imports the files and publishes
+     * them. 
+     * 
+     * @return the user root and the system root
+     */
+    private NodeData[] importUsingSharedSegment(List<Path> files, PreferencesMetrics.ImportRecorder recorder) throws FileNotFoundException, IOException, InvalidPreferencesFormatException {
+        byte[] hash = BinaryCache.hash(files);
+        NodeData.Builder userData = new NodeData.Builder("", treeContext);
+        NodeData.Builder systemData = new NodeData.Builder("", treeContext);
+        if (!sharedSegment.read(hash, recorder.count(userData), recorder.count(systemData))) {
+            try (SharedSegment.Lock lock = sharedSegment.lock()) {
+                // Another process may have published while we waited for the lock
+                if (!sharedSegment.read(hash, recorder.count(userData), recorder.count(systemData))) {
+                    importXMLFile(files, recorder.count(userData), recorder.count(systemData));
+                    NodeData userRoot = userData.build();
+                    NodeData systemRoot = systemData.build();
+                    lock.publish(hash, userRoot, systemRoot);
+                    LOGGER.log(Level.FINE, "Preferences published to shared segment \"{0}\"", sharedSegment);
+                    return new NodeData[]{userRoot, systemRoot};
                 }
             }
         }
+        LOGGER.log(Level.FINE, "Preferences read from shared segment \"{0}\"", sharedSegment);
+        return new NodeData[]{userData.build(), systemData.build()};
     }
     
-    private boolean isRFAPreferences(Preferences sysPref, Preferences usrPref) throws BackingStoreException {
-        return (sysPref.nodeExists("com/reuters/rfa") || usrPref.nodeExists("com/reuters/rfa"));
+    /**
+     * Re-reads the XML file and then applies only what has changed in the
+     * file since it was last loaded to the live tree. If the file cannot 
+     * be read the live tree is left untouched.
+     */
+    private void reloadPreferencesFromXMLFile() {
+        try {
+            PreferencesMetrics.ImportRecorder recorder = PreferencesMetrics.startImport(metrics);
+            NodeData[] roots;
+            if (sharedSegment != null) {
+                roots = importUsingSharedSegment(xmlFiles.resolve(), recorder);
+            } else {
+                NodeData.Builder userData = new NodeData.Builder("", treeContext);
+                NodeData.Builder systemData = new NodeData.Builder("", treeContext);
+                importXMLFile(recorder.count(userData), recorder.count(systemData));
+                roots = new NodeData[]{userData.build(), systemData.build()};
+            }
+            recorder.done();
+            int changes = applyDifferences(roots[0], roots[1]);
+            LOGGER.log(Level.INFO, "Preferences reloaded from file \"" + xmlFiles + "\", {0} change(s) applied", changes);
+        } catch (IOException | InvalidPreferencesFormatException | BackingStoreException ex) {
+            LOGGER.log(Level.WARNING, "Could not reload preferences from file \"" + xmlFiles + "\". Keeping current values.", ex);
+        }
+    }
+    
+    /**
+     * Reads the version of the preferences which another process has 
+     * published to the shared segment and applies only what has changed 
+     * since the version which was last loaded to the live tree.
+     */
+    private void reloadPreferencesFromSharedSegment() {
+        NodeData.Builder userData = new NodeData.Builder("", treeContext);
+        NodeData.Builder systemData = new NodeData.Builder("", treeContext);
+        try {
+            if (!sharedSegment.read(null, userData, systemData)) {
+                return;
+            }
+            int changes = applyDifferences(userData.build(), systemData.build());
+            LOGGER.log(Level.INFO, "Preferences reloaded from shared segment \"" + sharedSegment + "\", {0} change(s) applied", changes);
+        } catch (IOException | BackingStoreException ex) {
+            LOGGER.log(Level.WARNING, "Could not reload preferences from shared segment \"" + sharedSegment + "\". Keeping current values.", ex);
+        }
     }
     
-    private static String prettyPrintPrefs(Preferences pref) {
+    /**
+     * Applies the differences between the trees as last loaded and the 
+     * given, reloaded, trees to the live tree. Changes which the 
+     * application has made to the live tree meanwhile are kept, except 
+     * where the reloaded trees change the same key or node.
+     * 
+     * <p>
+     * The changes are not recorded in the journal, they are part of the
+     * reloaded base. The journal is compacted against it instead.
+     * 
+     * @return the number of changes
+     */
+    private synchronized int applyDifferences(NodeData newUserRoot, NodeData newSystemRoot) throws BackingStoreException {
+        if (snapshots != null) {
+            snapshots.beginGroup();
+        }
+        if (journal != null) {
+            journal.suspend();
+        }
         try {
-            if (pref.childrenNames().length == 0 && pref.keys().length == 0) {
-                return null;
+            int changes = TreeDiff.apply(loadedSystemData, newSystemRoot, systemRootPrefs) 
+                    + TreeDiff.apply(loadedUserData, newUserRoot, userRootPrefs);
+            loadedUserData = newUserRoot;
+            loadedSystemData = newSystemRoot;
+            if (journal != null) {
+                journal.rebase(newUserRoot, newSystemRoot);
             }
-            StringBuilder sb = new StringBuilder();
-            if (pref.isUserNode()) {
-                sb.append(INDENT).append("Preferences type : USER").append(System.lineSeparator());
-            } else {
-                sb.append(INDENT).append("Preferences type : SYSTEM").append(System.lineSeparator());
+            return changes;
+        } finally {
+            if (journal != null) {
+                journal.resume();
+            }
+            if (snapshots != null) {
+                snapshots.endGroup();
             }
-            prettyPrintPrefs2(pref, sb);
-            return sb.toString();
-        } catch (BackingStoreException ex) {
-            // Should never happen
-            return "Could not read preferences " + ex;
         }
     }
     
-    private static void prettyPrintPrefs2(Preferences pref, StringBuilder sb) throws BackingStoreException {
-        if (pref.childrenNames().length == 0 && pref.keys().length == 0) {
-            sb.append(INDENT).append(INDENT).append(pref.absolutePath()).append(System.lineSeparator());
-            return;
+    /**
+     * Stops watching the XML file and the shared segment, if watching, 
+     * writes pending changes, if persisting or journaling, stops evicting
+     * and unregisters the metrics MBean, if registered.
+     */
+    void close() throws IOException {
+        try {
+            awaitLoad();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (xmlFileWatcher != null) {
+            xmlFileWatcher.close();
+        }
+        if (sharedSegment != null) {
+            sharedSegment.close();
+        }
+        for (WriteBehindWriter writer : new WriteBehindWriter[]{userWriter, systemWriter}) {
+            if (writer != null) {
+                treeContext.removeObserver(writer);
+                writer.close();
+            }
+        }
+        if (journal != null) {
+            treeContext.removeObserver(journal);
+            journal.close();
+        }
+        if (evictor != null) {
+            evictor.close();
         }
-        for (String keyName : pref.keys()) {
-            sb.append(INDENT).append(INDENT).append(pref.absolutePath()).append("/").append(keyName).append(" : ")
-                    .append(pref.get(keyName, null)).append(System.lineSeparator());
+        if (eventExecutor != null) {
+            eventExecutor.shutdown();
         }
-        for (String subNodeName : pref.childrenNames()) {
-            prettyPrintPrefs2(pref.node(subNodeName), sb);
+        if (metricsName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(metricsName);
+            } catch (JMException ex) {
+                LOGGER.log(Level.FINE, "Could not unregister MBean", ex);
+            }
+            metricsName = null;
         }
     }
     
+    private void loadPreferencesFromXMLFile() throws FileNotFoundException, IOException, InvalidPreferencesFormatException, BackingStoreException {
+        if (xmlFiles != null) {
+            LOGGER.log(Level.FINEST, "Java System Property " + KEY_XML_FILE + " found with value \"{0}\"", xmlFiles);
+            LOGGER.log(Level.FINEST, "Attempting to load preferences from : {0}", xmlFiles);
+            String sharedFileString = properties.getProperty(KEY_SHARED_FILE);
+            String cacheFileString = properties.getProperty(KEY_CACHE_FILE);
+            PreferencesMetrics.ImportRecorder recorder = PreferencesMetrics.startImport(metrics);
+            if (sharedFileString != null) {
+                sharedSegment = new SharedSegment(Paths.get(sharedFileString));
+                NodeData[] roots = importUsingSharedSegment(xmlFiles.resolve(), recorder);
+                useLoaded(roots[0], roots[1]);
+            } else if (cacheFileString != null) {
+                loadPreferencesUsingCache(Paths.get(cacheFileString), recorder);
+            } else if (lazyLoad || keepLoaded) {
+                NodeData.Builder userData = new NodeData.Builder("", treeContext);
+                NodeData.Builder systemData = new NodeData.Builder("", treeContext);
+                importXMLFile(recorder.count(userData), recorder.count(systemData));
+                useLoaded(userData.build(), systemData.build());
+            } else {
+                importXMLFile(recorder.count(track(NodeSink.of(userRootPrefs), TemporaryPreferences.TreeType.USER)),
+                        recorder.count(track(NodeSink.of(systemRootPrefs), TemporaryPreferences.TreeType.SYSTEM)));
+            }
+            recorder.done();
+            if (journalFile != null) {
+                journalValidLength = Journal.replay(journalFile, userRootPrefs, systemRootPrefs);
+            }
+
+            LOGGER.log(Level.INFO, "Preferences succesfully loaded from file \"" + xmlFiles + "\"");
+
+            if (Boolean.parseBoolean(properties.getProperty(KEY_PRINT_PREF, "false"))) {
+                printPrefs(properties.getProperty(KEY_PRINT_PREF_PREFIX));
+            }
+        }
+    }
 
+    /**
+     * Logs the preferences. The text is logged in several records when 
+     * the trees are large, rather than built in memory as a whole.
+     */
+    private void printPrefs(String pathPrefix) throws IOException, BackingStoreException {
+        try (TreeWriter.LogWriter out = new TreeWriter.LogWriter(LOGGER, Level.INFO)) {
+            out.write(((isRFAPreferences(systemRootPrefs, userRootPrefs)) ? "RFA " : "")
+                    + "Preference values :" + System.lineSeparator());
+            if (systemRootPrefs.printSubtree(out, pathPrefix)) {
+                out.write(System.lineSeparator());
+            }
+            userRootPrefs.printSubtree(out, pathPrefix);
+        }
+    }
+    
+    /**
+     * Loads from the cache file if it's up to date, otherwise loads
+     * from the XML file and updates the cache. Problems with the cache file
+     * itself are never fatal.
+     */
+    private void loadPreferencesUsingCache(Path cacheFile, PreferencesMetrics.ImportRecorder recorder) throws FileNotFoundException, IOException, InvalidPreferencesFormatException, BackingStoreException {
+        List<Path> files = xmlFiles.resolve();
+        byte[] hash = BinaryCache.hash(files);
+        NodeData.Builder userData = new NodeData.Builder("", treeContext);
+        NodeData.Builder systemData = new NodeData.Builder("", treeContext);
+        try {
+            boolean loaded = (lazyLoad || keepLoaded)
+                    ? BinaryCache.load(cacheFile, hash, recorder.count(userData), recorder.count(systemData))
+                    : BinaryCache.load(cacheFile, hash, recorder.count(NodeSink.of(userRootPrefs)), recorder.count(NodeSink.of(systemRootPrefs)));
+            if (loaded) {
+                if (lazyLoad || keepLoaded) {
+                    useLoaded(userData.build(), systemData.build());
+                }
+                LOGGER.log(Level.FINE, "Preferences loaded from cache file \"{0}\"", cacheFile);
+                return;
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Could not read cache file \"" + cacheFile + "\". Using XML file instead.", ex);
+        }
+        importXMLFile(files, recorder.count(userData), recorder.count(systemData));
+        NodeData userRoot = userData.build();
+        NodeData systemRoot = systemData.build();
+        useLoaded(userRoot, systemRoot);
+        try {
+            BinaryCache.write(cacheFile, hash, userRoot, systemRoot);
+            LOGGER.log(Level.FINE, "Cache file \"{0}\" written", cacheFile);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "Could not write cache file \"" + cacheFile + "\"", ex);
+        }
+    }
+    
+    /**
+     * Makes the loaded trees the content of the live trees. If the file 
+     * may be reloaded, the loaded trees are also kept for finding out what
+     * a reload changes.
+     */
+    private void useLoaded(NodeData userRoot, NodeData systemRoot) {
+        if (lazyLoad) {
+            userRootPrefs.attach(userRoot);
+            systemRootPrefs.attach(systemRoot);
+        } else {
+            userRoot.copyTo(track(NodeSink.of(userRootPrefs), TemporaryPreferences.TreeType.USER));
+            systemRoot.copyTo(track(NodeSink.of(systemRootPrefs), TemporaryPreferences.TreeType.SYSTEM));
+        }
+        if (keepLoaded) {
+            loadedUserData = userRoot;
+            loadedSystemData = systemRoot;
+        }
+    }
+    
+    private boolean isRFAPreferences(Preferences sysPref, Preferences usrPref) throws BackingStoreException {
+        return (sysPref.nodeExists("com/reuters/rfa") || usrPref.nodeExists("com/reuters/rfa"));
+    }
+    
     @Override
     public Preferences systemRoot() {
         return systemRootPrefs;
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.prefs.BackingStoreException;
+
+/**
+ * Settings and state shared by all nodes of the preference trees
+ * created by a factory. A node inherits the context from its parent.
+ *
+ * @author Addicticks
+ */
+final class TreeContext {
+
+    private final StringPool stringPool;
+    private final PreferencesMetrics metrics;
+    private final ConcurrentHashMap<String, TemporaryPreferences> userNodes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TemporaryPreferences> systemNodes = new ConcurrentHashMap<>();
+    private final AtomicInteger nodesWithPendingKids = new AtomicInteger();
+    private volatile TreeObserver[] observers = new TreeObserver[0];
+    private volatile LoadGate loadGate;
+    private volatile SnapshotPublisher snapshots;
+    private volatile NodeEvictor evictor;
+    private final EventDispatcher events;
+    private final boolean sharesLoadedEntries;
+
+    /**
+     * Creates a context with default settings.
+     */
+    TreeContext() {
+        this(false);
+    }
+
+    /**
+     * @param compactStorage if true, nodes use memory-lean storage and
+     * strings are de-duplicated.
+     */
+    TreeContext(boolean compactStorage) {
+        this(compactStorage, null);
+    }
+
+    /**
+     * @param compactStorage if true, nodes use memory-lean storage and
+     * strings are de-duplicated.
+     * @param metrics where nodes record metrics, or <tt>null</tt> if
+     * metrics are not collected.
+     */
+    TreeContext(boolean compactStorage, PreferencesMetrics metrics) {
+        this(compactStorage, metrics, null);
+    }
+
+    /**
+     * @param compactStorage if true, nodes use memory-lean storage and
+     * strings are de-duplicated.
+     * @param metrics where nodes record metrics, or <tt>null</tt> if
+     * metrics are not collected.
+     * @param eventExecutor where events are delivered to listeners, or 
+     * <tt>null</tt> for the executor shared by all trees.
+     */
+    TreeContext(boolean compactStorage, PreferencesMetrics metrics, Executor eventExecutor) {
+        this(compactStorage ? new StringPool() : null, metrics, eventExecutor, false);
+    }
+
+    private TreeContext(StringPool stringPool, PreferencesMetrics metrics, Executor eventExecutor, boolean sharesLoadedEntries) {
+        this.stringPool = stringPool;
+        this.metrics = metrics;
+        this.events = new EventDispatcher(eventExecutor, metrics);
+        this.sharesLoadedEntries = sharesLoadedEntries;
+    }
+
+    /**
+     * Creates the context of a fork of a tree with this context, see 
+     * {@link TemporaryPreferences#fork()}. The fork uses the same kind
+     * of storage and string pool but has none of the other state: it
+     * isn't observed, has no snapshots, no memory budget and no metrics.
+     */
+    TreeContext fork() {
+        return new TreeContext(stringPool, null, null, true);
+    }
+
+    /**
+     * Creates the storage for the entries of a node.
+     */
+    Entries newEntries() {
+        return (stringPool != null) ? new Entries.Compact() : new Entries.Hash();
+    }
+
+    /**
+     * If true, nodes created from loaded data share the entries of the
+     * data until they are first changed, see {@link Entries.Shared}.
+     */
+    boolean sharesLoadedEntries() {
+        return sharesLoadedEntries;
+    }
+
+    /**
+     * Returns the canonical representation of the string if
+     * de-duplication of strings is enabled, otherwise the string itself.
+     */
+    String intern(String s) {
+        return (stringPool != null) ? stringPool.intern(s) : s;
+    }
+
+    /**
+     * Pool for de-duplicating strings, or <tt>null</tt> if strings are not
+     * de-duplicated.
+     */
+    StringPool stringPool() {
+        return stringPool;
+    }
+
+    /**
+     * Where nodes record metrics, or <tt>null</tt> if metrics are not
+     * collected.
+     */
+    PreferencesMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the dispatcher of the events of the trees.
+     */
+    EventDispatcher events() {
+        return events;
+    }
+
+    /**
+     * Returns the gate which access to nodes must pass while the trees
+     * are being loaded in the background, or <tt>null</tt> if they are not.
+     */
+    LoadGate loadGate() {
+        return loadGate;
+    }
+
+    void setLoadGate(LoadGate loadGate) {
+        this.loadGate = loadGate;
+    }
+
+    /**
+     * Returns the publisher of snapshots of the trees, or <tt>null</tt> if
+     * snapshots are not enabled.
+     */
+    SnapshotPublisher snapshots() {
+        return snapshots;
+    }
+
+    void setSnapshots(SnapshotPublisher snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * Returns the evictor which keeps the loaded data held in memory 
+     * within budget, or <tt>null</tt> if there is no budget.
+     */
+    NodeEvictor evictor() {
+        return evictor;
+    }
+
+    void setEvictor(NodeEvictor evictor) {
+        this.evictor = evictor;
+    }
+
+    /**
+     * Returns a snapshot of the node with the given absolute path from the
+     * current version, waiting for the trees to be loaded if needed.
+     * 
+     * @return the snapshot or <tt>null</tt> if the node doesn't exist in
+     * the current version
+     * @throws IllegalStateException if snapshots are not enabled or the
+     * trees could not be loaded
+     */
+    PreferencesSnapshot snapshot(TemporaryPreferences.TreeType treeType, String absolutePath) {
+        SnapshotPublisher publisher = snapshots;
+        if (publisher == null) {
+            throw new IllegalStateException("Snapshots are not enabled, see "
+                    + TemporaryPreferencesFactory.KEY_SNAPSHOTS);
+        }
+        LoadGate gate = loadGate;
+        if (gate != null) {
+            gate.awaitDone();
+        }
+        return PreferencesSnapshot.of(publisher.current(), 
+                treeType == TemporaryPreferences.TreeType.USER, absolutePath);
+    }
+
+    /**
+     * Registers an observer of the changes made to the trees.
+     */
+    synchronized void addObserver(TreeObserver observer) {
+        TreeObserver[] newObservers = Arrays.copyOf(observers, observers.length + 1);
+        newObservers[observers.length] = observer;
+        observers = newObservers;
+    }
+
+    /**
+     * Unregisters an observer.
+     */
+    synchronized void removeObserver(TreeObserver observer) {
+        List<TreeObserver> newObservers = new ArrayList<>(Arrays.asList(observers));
+        newObservers.remove(observer);
+        observers = newObservers.toArray(new TreeObserver[newObservers.size()]);
+    }
+
+    void firePut(TemporaryPreferences node, String key, String value) {
+        for (TreeObserver observer : observers) {
+            observer.put(node, key, value);
+        }
+    }
+
+    void fireRemove(TemporaryPreferences node, String key) {
+        for (TreeObserver observer : observers) {
+            observer.remove(node, key);
+        }
+    }
+
+    void fireNodeAdded(TemporaryPreferences node) {
+        for (TreeObserver observer : observers) {
+            observer.nodeAdded(node);
+        }
+    }
+
+    void fireNodeRemoved(TemporaryPreferences node) {
+        for (TreeObserver observer : observers) {
+            observer.nodeRemoved(node);
+        }
+    }
+
+    /**
+     * Waits until all observers have dealt with the changes made so far
+     * to the tree to which {@code node} belongs.
+     */
+    void flush(TemporaryPreferences node) throws BackingStoreException {
+        for (TreeObserver observer : observers) {
+            observer.flush(node);
+        }
+    }
+
+    /**
+     * Returns the index of all existing nodes of the given tree type,
+     * keyed by absolute path. A context can be shared by at most one
+     * tree of each type.
+     */
+    ConcurrentHashMap<String, TemporaryPreferences> nodeIndex(TemporaryPreferences.TreeType treeType) {
+        return (treeType == TemporaryPreferences.TreeType.SYSTEM) ? systemNodes : userNodes;
+    }
+
+    /**
+     * Called when a node gets children which are yet to be created.
+     */
+    void pendingKidsAdded() {
+        nodesWithPendingKids.incrementAndGet();
+    }
+
+    /**
+     * Called when a node no longer has children which are yet to be created.
+     */
+    void pendingKidsRemoved() {
+        nodesWithPendingKids.decrementAndGet();
+    }
+
+    /**
+     * Returns true if any node has children which are yet to be created,
+     * meaning that {@link #nodeIndex(TemporaryPreferences.TreeType)} 
+     * does not contain all nodes which exist.
+     */
+    boolean hasPendingKids() {
+        return nodesWithPendingKids.get() > 0;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * Brings a live preference tree up to date with a re-read file by applying
+ * only the differences between the previously loaded version of the file
+ * and the re-read version.
+ *
+ * <p>
+ * Keys whose value is the same in both versions are not touched and
+ * therefore listeners registered on the live tree are only notified
+ * about actual changes. Nodes and keys which the application has added
+ * at runtime are left alone. Nodes of the live tree are only looked up
+ * where the file has changed, so unchanged subtrees are neither created
+ * from lazily loaded data nor read back from the spill file.
+ *
+ * @author Addicticks
+ */
+class TreeDiff {
+
+    private static final NodeData EMPTY = NodeData.empty("");
+
+    private TreeDiff() {
+    }
+
+    /**
+     * Applies the differences between {@code oldData} and {@code newData}
+     * to the subtree rooted at {@code target}. Keys and nodes which are
+     * only in {@code oldData} are removed, keys whose value differs are
+     * updated and keys and nodes which are only in {@code newData} are
+     * added.
+     *
+     * @param oldData the previously loaded version of the tree
+     * @param newData the re-read version of the tree
+     * @param target the tree to update
+     * @return number of changes (keys put or removed, nodes removed) applied
+     * to {@code target}
+     */
+    static int apply(NodeData oldData, NodeData newData, Preferences target) throws BackingStoreException {
+        return apply(oldData, newData, new Target(null, null, target));
+    }
+
+    private static int apply(NodeData oldData, NodeData newData, Target target) throws BackingStoreException {
+        if (oldData == newData) {
+            return 0;
+        }
+        int changes = 0;
+        // Keys and children are sorted in both versions
+        int i = 0;
+        int j = 0;
+        while (i < oldData.entryCount() || j < newData.entryCount()) {
+            int cmp = (i == oldData.entryCount()) ? 1
+                    : (j == newData.entryCount()) ? -1 : oldData.key(i).compareTo(newData.key(j));
+            if (cmp < 0) {
+                Preferences node = target.existingNode();
+                if (node != null && node.get(oldData.key(i), null) != null) {
+                    node.remove(oldData.key(i));
+                    changes++;
+                }
+                i++;
+            } else {
+                String value = newData.value(j);
+                if (cmp > 0 || !value.equals(oldData.value(i))) {
+                    Preferences node = target.node();
+                    if (!value.equals(node.get(newData.key(j), null))) {
+                        node.put(newData.key(j), value);
+                        changes++;
+                    }
+                }
+                if (cmp == 0) {
+                    i++;
+                }
+                j++;
+            }
+        }
+        i = 0;
+        j = 0;
+        while (i < oldData.childCount() || j < newData.childCount()) {
+            int cmp = (i == oldData.childCount()) ? 1
+                    : (j == newData.childCount()) ? -1 : oldData.child(i).name().compareTo(newData.child(j).name());
+            if (cmp < 0) {
+                Preferences node = target.existingNode();
+                String name = oldData.child(i).name();
+                if (node != null && node.nodeExists(name)) {
+                    node.node(name).removeNode();
+                    changes++;
+                }
+                i++;
+            } else {
+                Target kid = target.child(newData.child(j).name());
+                if (cmp > 0) {
+                    // Created even if it's empty
+                    kid.node();
+                }
+                changes += apply((cmp == 0) ? oldData.child(i) : EMPTY, newData.child(j), kid);
+                if (cmp == 0) {
+                    i++;
+                }
+                j++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * A node of the live tree, which is looked up (or created) only when
+     * there is a change to apply to it.
+     */
+    private static final class Target {
+
+        private final Target parent;
+        private final String name;
+        private Preferences node;
+
+        Target(Target parent, String name, Preferences node) {
+            this.parent = parent;
+            this.name = name;
+            this.node = node;
+        }
+
+        Target child(String childName) {
+            return new Target(this, childName, null);
+        }
+
+        /**
+         * Returns the node, creating it if the application has removed it.
+         */
+        Preferences node() {
+            if (node == null) {
+                node = parent.node().node(name);
+            }
+            return node;
+        }
+
+        /**
+         * Returns the node, or <tt>null</tt> if the application has removed
+         * it.
+         */
+        Preferences existingNode() throws BackingStoreException {
+            if (node == null) {
+                Preferences parentNode = parent.existingNode();
+                if (parentNode == null || !parentNode.nodeExists(name)) {
+                    return null;
+                }
+                node = parentNode.node(name);
+            }
+            return node;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.prefs.BackingStoreException;
+
+/**
+ * Receives the changes made to the nodes of a tree. Registered with
+ * {@link TreeContext#addObserver(TreeObserver)}.
+ * 
+ * <p>
+ * The methods are invoked while holding the lock of the node in question
+ * and must therefore be quick. Changes made while loading the tree are
+ * not reported.
+ *
+ * @author Addicticks
+ */
+interface TreeObserver {
+
+    /**
+     * A value was put into {@code node}.
+     */
+    void put(TemporaryPreferences node, String key, String value);
+
+    /**
+     * A value was removed from {@code node}.
+     */
+    void remove(TemporaryPreferences node, String key);
+
+    /**
+     * A new node was created, as opposed to a node being created from
+     * loaded data.
+     */
+    void nodeAdded(TemporaryPreferences node);
+
+    /**
+     * {@code node} was removed. Invoked for each node of a removed subtree,
+     * children before their parent.
+     */
+    void nodeRemoved(TemporaryPreferences node);
+
+    /**
+     * Waits until the changes reported so far for the tree to which
+     * {@code node} belongs have been dealt with. Invoked without holding
+     * any lock.
+     * 
+     * @throws BackingStoreException if the changes could not be dealt with
+     */
+    default void flush(TemporaryPreferences node) throws BackingStoreException {
+    }
+}
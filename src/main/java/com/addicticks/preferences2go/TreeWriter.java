@@ -0,0 +1,280 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+
+/**
+ * Writes a preference tree as it walks it, either as an XML document in
+ * the format of {@link Preferences#exportSubtree(OutputStream)} or as
+ * human-readable text. Each node is visited once and nodes which are yet
+ * to be created are read without being created, so the memory used is
+ * bounded by the depth of the tree rather than by its size.
+ *
+ * <p>
+ * The output can be limited to the nodes whose absolute path starts with
+ * a given prefix. Ancestors of those nodes are written without their
+ * entries so that the output still describes where the nodes are.
+ *
+ * @author Addicticks
+ */
+final class TreeWriter {
+
+    private static final String INDENT = "    ";
+
+    private TreeWriter() {
+    }
+
+    /**
+     * Writes an XML document holding {@code node}, and its descendants if
+     * {@code subtree} is true, to {@code os}. The stream is flushed but
+     * not closed.
+     *
+     * @param pathPrefix only nodes whose absolute path starts with this
+     * prefix are written with their entries, or <tt>null</tt> for all.
+     */
+    static void writeXml(TemporaryPreferences node, boolean subtree, String pathPrefix, OutputStream os) throws IOException {
+        Deque<String> ancestors = new ArrayDeque<>();
+        for (Preferences p = node; p.parent() != null; p = p.parent()) {
+            ancestors.push(p.name());
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        try {
+            XmlSupport.writeDocumentStart(out, node.isUserNode());
+            int depth = 0;
+            for (String name : ancestors) {
+                XmlSupport.mapWriter(out, depth).finish();
+                depth++;
+                XmlSupport.writeNodeStart(out, depth, name);
+            }
+            String path = (pathPrefix == null) ? null : node.absolutePath();
+            writeXml(out, node, path, depth, subtree, pathPrefix);
+            for (; depth > 0; depth--) {
+                XmlSupport.writeNodeEnd(out, depth);
+            }
+            XmlSupport.writeDocumentEnd(out);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        out.flush();
+    }
+
+    private static void writeXml(Writer out, Object node, String path, int depth, boolean subtree, String pathPrefix) throws IOException {
+        XmlSupport.MapWriter map = XmlSupport.mapWriter(out, depth);
+        if (matches(path, pathPrefix)) {
+            putEntries(node, map::put);
+        }
+        map.finish();
+        if (subtree) {
+            forEachChild(node, (name, child) -> {
+                String childPath = (path == null) ? null : childPath(path, name);
+                if (visits(childPath, pathPrefix)) {
+                    XmlSupport.writeNodeStart(out, depth + 1, name);
+                    writeXml(out, child, childPath, depth + 1, true, pathPrefix);
+                    XmlSupport.writeNodeEnd(out, depth + 1);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes {@code node} and its descendants as text, one line per
+     * preference, preceded by a line with the tree type. Nodes without
+     * preferences or children get a line with just their path.
+     *
+     * @param pathPrefix only nodes whose absolute path starts with this
+     * prefix are written, or <tt>null</tt> for all.
+     * @return false if nothing was written because there are no matching
+     * nodes with preferences or children
+     */
+    static boolean prettyPrint(TemporaryPreferences node, String pathPrefix, Appendable out) throws IOException {
+        TextPrinter printer = new TextPrinter(out,
+                INDENT + "Preferences type : " + (node.isUserNode() ? "USER" : "SYSTEM"));
+        try {
+            printer.print(node, node.absolutePath(), pathPrefix, true);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        return printer.started;
+    }
+
+    private static final class TextPrinter {
+
+        private final Appendable out;
+        private final String header;
+        private boolean started;
+
+        TextPrinter(Appendable out, String header) {
+            this.out = out;
+            this.header = header;
+        }
+
+        private void line(String path, String key, String value) throws IOException {
+            if (!started) {
+                out.append(header).append(System.lineSeparator());
+                started = true;
+            }
+            out.append(INDENT).append(INDENT).append(path);
+            if (key != null) {
+                out.append('/').append(key).append(" : ").append(value);
+            }
+            out.append(System.lineSeparator());
+        }
+
+        /**
+         * @param root if true, the node is only written if it has
+         * preferences or children
+         */
+        void print(Object node, String path, String pathPrefix, boolean root) throws IOException {
+            boolean matches = matches(path, pathPrefix);
+            int[] count = new int[1];
+            if (matches) {
+                putEntries(node, (key, value) -> {
+                    count[0]++;
+                    try {
+                        line(path, key, value);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            }
+            forEachChild(node, (name, child) -> {
+                count[0]++;
+                String childPath = childPath(path, name);
+                if (visits(childPath, pathPrefix)) {
+                    print(child, childPath, pathPrefix, false);
+                }
+            });
+            if (matches && count[0] == 0 && !root) {
+                line(path, null, null);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ChildVisitor {
+
+        void visit(String name, Object child) throws IOException;
+    }
+
+    /**
+     * Visits the children of a node, which is either a
+     * {@code TemporaryPreferences} or a {@link NodeData}, in order of
+     * their names.
+     */
+    private static void forEachChild(Object node, ChildVisitor visitor) throws IOException {
+        if (node instanceof TemporaryPreferences) {
+            for (Map.Entry<String, Object> child : ((TemporaryPreferences) node).children().entrySet()) {
+                visitor.visit(child.getKey(), child.getValue());
+            }
+        } else {
+            NodeData data = (NodeData) node;
+            for (int i = 0; i < data.childCount(); i++) {
+                visitor.visit(data.child(i).name(), data.child(i));
+            }
+        }
+    }
+
+    private static void putEntries(Object node, BiConsumer<String, String> action) {
+        if (node instanceof TemporaryPreferences) {
+            ((TemporaryPreferences) node).exportEntries(action);
+        } else {
+            NodeData data = (NodeData) node;
+            for (int i = 0; i < data.entryCount(); i++) {
+                action.accept(data.key(i), data.value(i));
+            }
+        }
+    }
+
+    private static String childPath(String path, String name) {
+        return path.equals("/") ? "/" + name : path + "/" + name;
+    }
+
+    /**
+     * True if the node with the given path is to be written with its
+     * entries. A path of <tt>null</tt> is only given when there is no
+     * prefix.
+     */
+    private static boolean matches(String path, String pathPrefix) {
+        return pathPrefix == null || path.startsWith(pathPrefix);
+    }
+
+    /**
+     * True if the node with the given path either matches or is an
+     * ancestor of matching nodes.
+     */
+    private static boolean visits(String path, String pathPrefix) {
+        if (matches(path, pathPrefix)) {
+            return true;
+        }
+        return pathPrefix.length() > path.length() && pathPrefix.startsWith(path)
+                && (path.endsWith("/") || pathPrefix.charAt(path.length()) == '/');
+    }
+
+    /**
+     * Logs the text written to it as a series of records of bounded size,
+     * each ending at a line end, rather than as one huge record.
+     */
+    static final class LogWriter extends Writer {
+
+        private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+        private final Logger logger;
+        private final Level level;
+        private final StringBuilder record = new StringBuilder();
+
+        LogWriter(Logger logger, Level level) {
+            this.logger = logger;
+            this.level = level;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                record.append(cbuf[i]);
+                if (cbuf[i] == '\n' && record.length() >= MAX_RECORD_LENGTH) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (record.length() > 0) {
+                logger.logp(level, "Addicticks", "Preferences2Go", record.toString());
+                record.setLength(0);
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.BackingStoreException;
+
+/**
+ * Writes a preference tree to an XML file in the background whenever it
+ * changes (write-behind).
+ * 
+ * <p>
+ * Changes only mark the changed node as dirty and wake up the writer. The
+ * writer waits a little for more changes to arrive, so that a burst of 
+ * changes results in a single write, and then writes the whole tree to a 
+ * temporary file which is renamed to the target file. The XML of the
+ * entries of each node is kept between writes so that only the entries 
+ * of dirty nodes have to be read and formatted again. Nodes which have 
+ * been loaded lazily are written without being created.
+ * 
+ * <p>
+ * {@link #flush(TemporaryPreferences)} is a barrier: it wakes up the
+ * writer immediately and waits until all changes made before the call have
+ * been written.
+ *
+ * @author Addicticks
+ */
+class WriteBehindWriter implements TreeObserver, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(WriteBehindWriter.class.getName());
+
+    /**
+     * How long to wait before trying again after a failed write.
+     */
+    private static final long RETRY_MILLIS = 1000;
+
+    private final TemporaryPreferences root;
+    private final Path file;
+    private final long delayNanos;
+    private final Thread thread;
+
+    /**
+     * Nodes whose entries have changed since the last write.
+     */
+    private final Set<TemporaryPreferences> dirty = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The XML of the map element of each node as of the last write, keyed
+     * by {@code TemporaryPreferences} or {@code NodeData}. Only accessed
+     * by the writer thread.
+     */
+    private Map<Object, String> maps = new IdentityHashMap<>();
+
+    /**
+     * Incremented on every change.
+     */
+    private final AtomicLong changes = new AtomicLong();
+
+    private final Object monitor = new Object();
+    // Guarded by monitor
+    private long written;
+    private long failed = -1;
+    private Exception failure;
+
+    private volatile boolean flushRequested;
+    private volatile boolean closing;
+
+    /**
+     * Creates and starts a writer. It must be registered as an observer of
+     * the tree to be notified of changes.
+     * 
+     * @param root the root of the tree to write
+     * @param file the file to write to
+     * @param delayMillis for how long to wait for more changes before writing
+     */
+    WriteBehindWriter(TemporaryPreferences root, Path file, long delayMillis) {
+        this.root = root;
+        this.file = file.toAbsolutePath();
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.thread = new Thread(this::run, "Preferences2Go writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private boolean observes(TemporaryPreferences node) {
+        return node.isUserNode() == root.isUserNode();
+    }
+
+    private void changed() {
+        changes.incrementAndGet();
+        LockSupport.unpark(thread);
+    }
+
+    private void entriesChanged(TemporaryPreferences node) {
+        if (observes(node)) {
+            dirty.add(node);
+            changed();
+        }
+    }
+
+    @Override
+    public void put(TemporaryPreferences node, String key, String value) {
+        entriesChanged(node);
+    }
+
+    @Override
+    public void remove(TemporaryPreferences node, String key) {
+        entriesChanged(node);
+    }
+
+    @Override
+    public void nodeAdded(TemporaryPreferences node) {
+        if (observes(node)) {
+            changed();
+        }
+    }
+
+    @Override
+    public void nodeRemoved(TemporaryPreferences node) {
+        if (observes(node)) {
+            changed();
+        }
+    }
+
+    @Override
+    public void flush(TemporaryPreferences node) throws BackingStoreException {
+        if (!observes(node)) {
+            return;
+        }
+        long target = changes.get();
+        synchronized (monitor) {
+            while (written < target) {
+                if (failed >= target) {
+                    throw new BackingStoreException(failure);
+                }
+                if (!thread.isAlive()) {
+                    throw new BackingStoreException("Writer for \"" + file + "\" has been closed");
+                }
+                flushRequested = true;
+                LockSupport.unpark(thread);
+                try {
+                    monitor.wait(100);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new BackingStoreException(ex);
+                }
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long pending;
+            while ((pending = changes.get()) == written() && !closing) {
+                LockSupport.park(this);
+            }
+            if (pending == written()) {
+                return;
+            }
+            // Let changes accumulate
+            long deadline = System.nanoTime() + delayNanos;
+            long remaining;
+            while (!closing && !flushRequested && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            flushRequested = false;
+            long target = changes.get();
+            try {
+                write();
+                synchronized (monitor) {
+                    written = target;
+                    monitor.notifyAll();
+                }
+            } catch (IOException | RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Could not write preferences to file \"" + file + "\"", ex);
+                synchronized (monitor) {
+                    failed = target;
+                    failure = ex;
+                    monitor.notifyAll();
+                }
+                if (closing) {
+                    return;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS));
+            }
+        }
+    }
+
+    private long written() {
+        synchronized (monitor) {
+            return written;
+        }
+    }
+
+    /**
+     * Writes the tree to a temporary file which then replaces the target
+     * file.
+     */
+    private void write() throws IOException {
+        for (TemporaryPreferences node : dirty) {
+            dirty.remove(node);
+            maps.remove(node);
+        }
+        Map<Object, String> newMaps = new IdentityHashMap<>(maps.size());
+        Path tmpFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmpFile), StandardCharsets.UTF_8))) {
+                XmlSupport.writeDocumentStart(out, root.isUserNode());
+                writeMap(out, root, 0, newMaps);
+                for (Map.Entry<String, Object> child : root.children().entrySet()) {
+                    writeNode(out, child.getKey(), child.getValue(), 1, newMaps);
+                }
+                XmlSupport.writeDocumentEnd(out);
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            try {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile);
+        }
+        // Nodes which no longer exist are dropped
+        maps = newMaps;
+    }
+
+    private void writeNode(Writer out, String name, Object node, int depth, Map<Object, String> newMaps) throws IOException {
+        XmlSupport.writeNodeStart(out, depth, name);
+        writeMap(out, node, depth, newMaps);
+        if (node instanceof TemporaryPreferences) {
+            for (Map.Entry<String, Object> child : ((TemporaryPreferences) node).children().entrySet()) {
+                writeNode(out, child.getKey(), child.getValue(), depth + 1, newMaps);
+            }
+        } else {
+            NodeData data = (NodeData) node;
+            for (int i = 0; i < data.childCount(); i++) {
+                writeNode(out, data.child(i).name(), data.child(i), depth + 1, newMaps);
+            }
+        }
+        XmlSupport.writeNodeEnd(out, depth);
+    }
+
+    /**
+     * Writes the map element of a node, reusing the XML from the
+     * previous write if the node is not dirty.
+     */
+    private void writeMap(Writer out, Object node, int depth, Map<Object, String> newMaps) throws IOException {
+        String map = maps.get(node);
+        if (map == null) {
+            StringBuilder sb = new StringBuilder();
+            XmlSupport.MapWriter mapWriter = XmlSupport.mapWriter(sb, depth);
+            if (node instanceof TemporaryPreferences) {
+                ((TemporaryPreferences) node).exportEntries(mapWriter::put);
+            } else {
+                NodeData data = (NodeData) node;
+                for (int i = 0; i < data.entryCount(); i++) {
+                    mapWriter.put(data.key(i), data.value(i));
+                }
+            }
+            mapWriter.finish();
+            map = sb.toString();
+        }
+        newMaps.put(node, map);
+        out.write(map);
+    }
+
+    /**
+     * Writes pending changes and stops the writer.
+     */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
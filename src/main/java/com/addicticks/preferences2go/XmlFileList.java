@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The XML files given by {@link TemporaryPreferencesFactory#KEY_XML_FILE}.
+ * 
+ * <p>
+ * The value is a list of files separated by {@link File#pathSeparator}.
+ * The file name part of each element may be a glob pattern (see 
+ * {@link java.nio.file.FileSystem#getPathMatcher(String)}), for example
+ * {@code conf/*.xml}, which matches files in that directory only. The
+ * files which match a pattern are ordered by name, so the resulting list 
+ * of files is always in the same order. Files later in the list take 
+ * precedence over files earlier in the list.
+ *
+ * @author Addicticks
+ */
+final class XmlFileList {
+
+    private final String value;
+    private final List<Entry> entries = new ArrayList<>();
+
+    private static final class Entry {
+
+        final Path dir;
+        final Path file;          // null for a pattern
+        final PathMatcher matcher; // null for a plain file
+
+        Entry(Path path) {
+            Path absolute = path.toAbsolutePath();
+            this.dir = absolute.getParent();
+            String name = absolute.getFileName().toString();
+            if (isPattern(name)) {
+                this.file = null;
+                this.matcher = absolute.getFileSystem().getPathMatcher("glob:" + name);
+            } else {
+                this.file = absolute;
+                this.matcher = null;
+            }
+        }
+
+        boolean matches(Path absoluteFile) {
+            if (file != null) {
+                return file.equals(absoluteFile);
+            }
+            return dir.equals(absoluteFile.getParent()) && matcher.matches(absoluteFile.getFileName());
+        }
+    }
+
+    /**
+     * Creates the list.
+     * 
+     * @param value the value of {@link TemporaryPreferencesFactory#KEY_XML_FILE}
+     */
+    XmlFileList(String value) {
+        this.value = value;
+        for (String element : value.split(File.pathSeparator)) {
+            if (!element.trim().isEmpty()) {
+                entries.add(new Entry(Paths.get(element.trim())));
+            }
+        }
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("No files in \"" + value + "\"");
+        }
+    }
+
+    private static boolean isPattern(String name) {
+        for (char c : name.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns {@code true} if the list is a single plain file, which is
+     * how {@link TemporaryPreferencesFactory#KEY_XML_FILE} was originally
+     * defined.
+     */
+    boolean isSingleFile() {
+        return entries.size() == 1 && entries.get(0).file != null;
+    }
+
+    /**
+     * Returns the files, in order of increasing precedence. A file which
+     * is given more than once is only included the first time.
+     * 
+     * @throws IOException if a directory with a pattern cannot be read
+     */
+    List<Path> resolve() throws IOException {
+        Set<Path> files = new LinkedHashSet<>();
+        for (Entry entry : entries) {
+            if (entry.file != null) {
+                files.add(entry.file);
+                continue;
+            }
+            List<Path> matches = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(entry.dir, 
+                    p -> entry.matcher.matches(p.getFileName()) && Files.isRegularFile(p))) {
+                for (Path p : stream) {
+                    matches.add(p);
+                }
+            }
+            Collections.sort(matches);
+            files.addAll(matches);
+        }
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * Returns {@code true} if the file is, or would be, in the list.
+     */
+    boolean matches(Path file) {
+        Path absolute = file.toAbsolutePath();
+        for (Entry entry : entries) {
+            if (entry.matches(absolute)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the directories which hold the files.
+     */
+    Set<Path> directories() {
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Entry entry : entries) {
+            dirs.add(entry.dir);
+        }
+        return dirs;
+    }
+
+    /**
+     * Returns the journal file to use with the files. For a single file
+     * it's that file plus {@code .journal}, otherwise it's 
+     * {@code pref2go.journal} in the directory of the first file.
+     */
+    Path journalFile() {
+        if (isSingleFile()) {
+            return Paths.get(entries.get(0).file.toString() + ".journal");
+        }
+        return entries.get(0).dir.resolve("pref2go.journal");
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
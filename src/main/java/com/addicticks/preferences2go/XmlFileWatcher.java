@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a list of files for changes and invokes a callback once the
+ * files have stopped changing for a while (debounce). Files which are 
+ * added to the list by matching one of its patterns count as a change.
+ 
+ * 
+ * <p>
+ * The callback is executed on the watcher's own daemon thread.
+ *
+ * @author Addicticks
+ */
+class XmlFileWatcher implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(XmlFileWatcher.class.getName());
+
+    private final XmlFileList files;
+    private final long debounceMillis;
+    private final Runnable onChange;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Creates and starts a watcher.
+     * 
+     * @param files the files to watch
+     * @param debounceMillis how long the files must have been quiet before
+     * {@code onChange} is invoked
+     * @param onChange callback
+     * @throws IOException if the files' directories cannot be watched
+     */
+    XmlFileWatcher(XmlFileList files, long debounceMillis, Runnable onChange) throws IOException {
+        this.files = files;
+        this.debounceMillis = debounceMillis;
+        this.onChange = onChange;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try {
+            for (Path dir : files.directories()) {
+                dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        } catch (IOException ex) {
+            watchService.close();
+            throw ex;
+        }
+        this.thread = new Thread(this::watch, "Preferences2Go file watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                if (!isRelevant(watchService.take())) {
+                    continue;
+                }
+                // Wait for the file to settle
+                WatchKey key;
+                while ((key = watchService.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null) {
+                    isRelevant(key);
+                }
+                try {
+                    onChange.run();
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "Error while processing change of file(s) \"" + files + "\"", ex);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            // We're closing down
+        }
+    }
+
+    private boolean isRelevant(WatchKey key) {
+        boolean relevant = false;
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || files.matches(dir.resolve((Path) event.context()))) {
+                relevant = true;
+            }
+        }
+        key.reset();
+        return relevant;
+    }
+
+    @Override
+    public void close() throws IOException {
+        thread.interrupt();
+        watchService.close();
+    }
+}
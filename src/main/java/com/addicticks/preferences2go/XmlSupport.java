@@ -15,14 +15,25 @@
  */
 package com.addicticks.preferences2go;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.prefs.InvalidPreferencesFormatException;
 import java.util.prefs.Preferences;
 import javax.xml.parsers.*;
 import org.xml.sax.*;
-import org.w3c.dom.*;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * XML Support for TemporaryPreferencesFactory. Method to import preferences
@@ -37,6 +48,17 @@ import org.w3c.dom.*;
  * to fit our particular use case. The corresponding class in the JDK is
  * {@code java.util.prefs.XmlSupport}.
  * 
+ * <p>
+ * Unlike the JDK, import is done by a streaming (SAX) parser which creates
+ * nodes and puts entries as it goes. The amount of memory used by the
+ * parser is therefore bounded by the depth of the tree rather than by the
+ * size of the file. The parser validates against the very same DTD as the
+ * JDK does.
+ * 
+ * <p>
+ * For export there are only building blocks for writing a document piece 
+ * by piece, so that a writer can reuse the pieces for unchanged nodes.
+ * 
  * 
  * @author Josh Bloch and Mark Reinhold (original authors)
  * @author Addicticks
@@ -78,6 +100,11 @@ class XmlSupport {
     /**
      * Import preferences from the specified input stream, which is assumed to
      * contain an XML document in the format described in the Preferences spec.
+     * 
+     * <p>
+     * Nodes and entries are created while the document is being parsed. If
+     * the document turns out to be invalid, the preferences which were
+     * imported up until the point of the error will remain in the tree.
      *
      * @throws IOException if reading from the specified output stream results
      * in an <tt>IOException</tt>.
@@ -86,97 +113,345 @@ class XmlSupport {
      */
     static void importPreferences(InputStream is, Preferences userRoot, Preferences systemRoot)
             throws IOException, InvalidPreferencesFormatException {
-        try {
-            Document doc = loadPrefsDoc(is);
-            String xmlVersion
-                    = doc.getDocumentElement().getAttribute("EXTERNAL_XML_VERSION");
-            if (xmlVersion.compareTo(EXTERNAL_XML_VERSION) > 0) {
-                throw new InvalidPreferencesFormatException(
-                        "Exported preferences file format version " + xmlVersion
-                        + " is not supported. This java installation can read"
-                        + " versions " + EXTERNAL_XML_VERSION + " or older. You may need"
-                        + " to install a newer version of JDK.");
-            }
-
-            Element xmlRoot = (Element) doc.getDocumentElement().
-                    getChildNodes().item(0);
-            Preferences prefsRoot
-                    = (xmlRoot.getAttribute("type").equals("user")
-                    ? userRoot : systemRoot);
-            ImportSubtree(prefsRoot, xmlRoot);
-        } catch (SAXException e) {
-            throw new InvalidPreferencesFormatException(e);
-        }
+        importPreferences(is, NodeSink.of(userRoot), NodeSink.of(systemRoot));
     }
 
     /**
-     * Load an XML document from specified input stream, which must have the
-     * requisite DTD URI.
+     * Import preferences from the specified input stream into the
+     * specified sinks.
+     *
+     * @see #importPreferences(InputStream, Preferences, Preferences) 
      */
-    private static Document loadPrefsDoc(InputStream in)
-            throws SAXException, IOException {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setIgnoringElementContentWhitespace(true);
-        dbf.setValidating(true);
-        dbf.setCoalescing(true);
-        dbf.setIgnoringComments(true);
+    static void importPreferences(InputStream is, NodeSink userRoot, NodeSink systemRoot)
+            throws IOException, InvalidPreferencesFormatException {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setValidating(true);
+        spf.setNamespaceAware(false);
         try {
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            db.setEntityResolver(new Resolver());
-            db.setErrorHandler(new EH());
-            return db.parse(new InputSource(in));
+            XMLReader reader = spf.newSAXParser().getXMLReader();
+            reader.setEntityResolver(new Resolver());
+            reader.setErrorHandler(new EH());
+            reader.setContentHandler(new ImportHandler(userRoot, systemRoot));
+            reader.parse(new InputSource(is));
+        } catch (SAXException e) {
+            if (e.getException() instanceof InvalidPreferencesFormatException) {
+                throw (InvalidPreferencesFormatException) e.getException();
+            }
+            throw new InvalidPreferencesFormatException(e);
         } catch (ParserConfigurationException e) {
             throw new AssertionError(e);
         }
     }
 
     /**
-     * Recursively traverse the specified preferences node and store the
-     * described preferences into the system or current user preferences tree,
-     * as appropriate.
+     * Import preferences from the specified files into the specified 
+     * sinks. Where the files have the same preference, the value from the 
+     * file which comes last in the list is used. Flat files (see
+     * {@link FlatSupport}) may be mixed with XML files.
      * 
-     * IMPLEMENTATION NOTE:  Compared to the same method from the JDK this
-     * method does not attempt to do any locking on pref nodes as isn't meant
-     * to be used in a concurrent scenario.
+     * <p>
+     * With more than one file, the files are parsed in parallel on the 
+     * common {@link ForkJoinPool} and merged afterwards, so the time taken
+     * is roughly that of parsing the largest file. The sinks receive the 
+     * preferences only once all files have been parsed successfully, and
+     * only the roots are ended.
      *
+     * @see #importPreferences(InputStream, Preferences, Preferences) 
      */
-    private static void ImportSubtree(Preferences prefsNode, Element xmlNode) {
-        NodeList xmlKids = xmlNode.getChildNodes();
-        int numXmlKids = xmlKids.getLength();
+    static void importPreferences(List<Path> files, NodeSink userRoot, NodeSink systemRoot)
+            throws IOException, InvalidPreferencesFormatException {
+        if (files.size() == 1) {
+            importFile(files.get(0), userRoot, systemRoot);
+            return;
+        }
+        List<ForkJoinTask<NodeData[]>> tasks = new ArrayList<>(files.size());
+        for (Path file : files) {
+            tasks.add(ForkJoinPool.commonPool().submit(() -> parse(file)));
+        }
+        List<NodeData[]> results = new ArrayList<>(files.size());
+        for (ForkJoinTask<NodeData[]> task : tasks) {
+            results.add(join(task));
+        }
+        // In list order, so later files override earlier ones. A node is 
+        // only complete once all files have been copied.
+        NodeSink userSink = withoutEnd(userRoot);
+        NodeSink systemSink = withoutEnd(systemRoot);
+        for (NodeData[] result : results) {
+            result[0].copyTo(userSink);
+            result[1].copyTo(systemSink);
+        }
+        userRoot.end();
+        systemRoot.end();
+    }
+
+    /**
+     * Waits for a parse task and returns its result, rethrowing what the
+     * task threw.
+     */
+    static <T> T join(ForkJoinTask<T> task) throws IOException, InvalidPreferencesFormatException {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InvalidPreferencesFormatException) {
+                throw (InvalidPreferencesFormatException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
 
-        Preferences[] prefsKids;
+    /**
+     * Returns a sink which passes everything on to {@code sink} except
+     * {@link NodeSink#end()}, for copying several trees into one.
+     */
+    static NodeSink withoutEnd(NodeSink sink) {
+        return new NodeSink() {
+            @Override
+            public NodeSink child(String name) {
+                return withoutEnd(sink.child(name));
+            }
 
-        // Import any preferences at this node
-        Element firstXmlKid = (Element) xmlKids.item(0);
-        ImportPrefs(prefsNode, firstXmlKid);
-        prefsKids = new Preferences[numXmlKids - 1];
+            @Override
+            public void put(String key, String value) {
+                sink.put(key, value);
+            }
+        };
+    }
 
-        // Get involved children
-        for (int i = 1; i < numXmlKids; i++) {
-            Element xmlKid = (Element) xmlKids.item(i);
-            prefsKids[i - 1] = prefsNode.node(xmlKid.getAttribute("name"));
+    /**
+     * Import preferences from a single file, which is either an XML file
+     * or a flat file as recognized by {@link FlatSupport#isFlatFile(Path)}.
+     */
+    static void importFile(Path file, NodeSink userRoot, NodeSink systemRoot) throws IOException, InvalidPreferencesFormatException {
+        if (FlatSupport.isFlatFile(file)) {
+            FlatSupport.importPreferences(file, userRoot, systemRoot);
+            return;
         }
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(file))) {
+            importPreferences(is, userRoot, systemRoot);
+        }
+    }
 
-        // import children
-        for (int i = 1; i < numXmlKids; i++) {
-            ImportSubtree(prefsKids[i - 1], (Element) xmlKids.item(i));
+    /**
+     * Parses a single file into a user and a system tree, in that order.
+     */
+    private static NodeData[] parse(Path file) throws IOException, InvalidPreferencesFormatException {
+        NodeData.Builder userData = new NodeData.Builder("");
+        NodeData.Builder systemData = new NodeData.Builder("");
+        try {
+            importFile(file, userData, systemData);
+        } catch (InvalidPreferencesFormatException ex) {
+            InvalidPreferencesFormatException withFile 
+                    = new InvalidPreferencesFormatException("Invalid file \"" + file + "\": " + ex.getMessage());
+            withFile.initCause(ex);
+            throw withFile;
         }
+        return new NodeData[]{userData.build(), systemData.build()};
     }
 
     /**
-     * Import the preferences described by the specified XML element (a map from
-     * a preferences document) into the specified preferences node.
+     * Writes the beginning of an exported preferences document, up to and
+     * including the start tag of the root element. The document is in the
+     * same format as written by the JDK and must be encoded as UTF-8.
      */
-    private static void ImportPrefs(Preferences prefsNode, Element map) {
-        NodeList entries = map.getChildNodes();
-        for (int i = 0, numEntries = entries.getLength(); i < numEntries; i++) {
-            Element entry = (Element) entries.item(i);
-            prefsNode.put(entry.getAttribute("key"),
-                    entry.getAttribute("value"));
+    static void writeDocumentStart(Appendable out, boolean userRoot) throws IOException {
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n")
+                .append("<!DOCTYPE preferences SYSTEM \"").append(PREFS_DTD_URI).append("\">\n")
+                .append("<preferences EXTERNAL_XML_VERSION=\"").append(EXTERNAL_XML_VERSION).append("\">\n")
+                .append("  <root type=\"").append(userRoot ? "user" : "system").append("\">\n");
+    }
+
+    /**
+     * Writes the end of an exported preferences document.
+     */
+    static void writeDocumentEnd(Appendable out) throws IOException {
+        out.append("  </root>\n")
+                .append("</preferences>\n");
+    }
+
+    /**
+     * Writes the start tag of a node element. The root element is at 
+     * depth 0.
+     */
+    static void writeNodeStart(Appendable out, int depth, String name) throws IOException {
+        indent(out, depth);
+        out.append("<node name=\"");
+        escape(out, name);
+        out.append("\">\n");
+    }
+
+    /**
+     * Writes the end tag of a node element.
+     */
+    static void writeNodeEnd(Appendable out, int depth) throws IOException {
+        indent(out, depth);
+        out.append("</node>\n");
+    }
+
+    /**
+     * Returns a writer of the map element of a node at the given depth.
+     * The map must be completed with {@link MapWriter#finish()}.
+     */
+    static MapWriter mapWriter(Appendable out, int depth) {
+        return new MapWriter(out, depth);
+    }
+
+    /**
+     * Writes the map element of a node, one entry at a time.
+     */
+    static final class MapWriter {
+
+        private final Appendable out;
+        private final int depth;
+        private boolean empty = true;
+
+        private MapWriter(Appendable out, int depth) {
+            this.out = out;
+            this.depth = depth;
+        }
+
+        void put(String key, String value) {
+            try {
+                if (empty) {
+                    indent(out, depth + 1);
+                    out.append("<map>\n");
+                    empty = false;
+                }
+                indent(out, depth + 2);
+                out.append("<entry key=\"");
+                escape(out, key);
+                out.append("\" value=\"");
+                escape(out, value);
+                out.append("\"/>\n");
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        void finish() throws IOException {
+            indent(out, depth + 1);
+            out.append(empty ? "<map/>\n" : "</map>\n");
         }
     }
 
-    private static class Resolver implements EntityResolver {
+    private static void indent(Appendable out, int depth) throws IOException {
+        for (int i = 0; i < depth + 2; i++) {
+            out.append("  ");
+        }
+    }
+
+    /**
+     * Writes the string escaped for use in an attribute value.
+     */
+    private static void escape(Appendable out, String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\t':
+                case '\n':
+                case '\r':
+                    out.append("&#").append(Integer.toString(c)).append(';');
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    /**
+     * Rejects documents of a newer format version than this class supports.
+     */
+    static void checkVersion(String xmlVersion) throws InvalidPreferencesFormatException {
+        if (xmlVersion.compareTo(EXTERNAL_XML_VERSION) > 0) {
+            throw new InvalidPreferencesFormatException(
+                    "Exported preferences file format version " + xmlVersion
+                    + " is not supported. This java installation can read"
+                    + " versions " + EXTERNAL_XML_VERSION + " or older. You may need"
+                    + " to install a newer version of JDK.");
+        }
+    }
+
+    /**
+     * Imports the preferences as the document is being parsed. Only the path
+     * from the root to the current node is kept.
+     * 
+     * <p>
+     * Structural rules are enforced by the validating parser (using the DTD),
+     * hence this handler can assume that elements appear in the expected
+     * order.
+     */
+    private static class ImportHandler extends DefaultHandler {
+
+        private final NodeSink userRoot;
+        private final NodeSink systemRoot;
+        private final ArrayDeque<NodeSink> path = new ArrayDeque<>();
+
+        ImportHandler(NodeSink userRoot, NodeSink systemRoot) {
+            this.userRoot = userRoot;
+            this.systemRoot = systemRoot;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            try {
+                switch (qName) {
+                    case "preferences":
+                        checkVersion(attributes.getValue("EXTERNAL_XML_VERSION"));
+                        break;
+                    case "root":
+                        path.push(attributes.getValue("type").equals("user") ? userRoot : systemRoot);
+                        break;
+                    case "node":
+                        path.push(path.peek().child(attributes.getValue("name")));
+                        break;
+                    case "entry":
+                        path.peek().put(attributes.getValue("key"), attributes.getValue("value"));
+                        break;
+                    default:
+                        break;
+                }
+            } catch (InvalidPreferencesFormatException ex) {
+                throw new SAXException(ex);
+            } catch (IllegalArgumentException ex) {
+                // An invalid name, key or value
+                throw new SAXException(new InvalidPreferencesFormatException(ex.getMessage(), ex));
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (qName.equals("root") || qName.equals("node")) {
+                path.pop().end();
+            }
+        }
+    }
+
+    /**
+     * Resolves the preferences DTD to the built-in copy of it.
+     */
+    static class Resolver implements EntityResolver {
 
         @Override
         public InputSource resolveEntity(String pid, String sid)
@@ -191,7 +466,10 @@ class XmlSupport {
         }
     }
 
-    private static class EH implements ErrorHandler {
+    /**
+     * Turns every parser warning and error into an exception.
+     */
+    static class EH implements ErrorHandler {
 
         @Override
         public void error(SAXParseException x) throws SAXException {
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import static com.addicticks.preferences2go.XmlSupportTest.assertSameTree;
+import static com.addicticks.preferences2go.XmlSupportTest.newRoot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class BinaryCacheTest {
+
+    private static final String TEST_FILE = "src/test/resources/test-pref-values.xml";
+
+    private Path dir;
+    private Path xmlFile;
+    private Path cacheFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pref2go");
+        xmlFile = dir.resolve("prefs.xml");
+        cacheFile = dir.resolve("prefs.cache");
+        Files.copy(Paths.get(TEST_FILE), xmlFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(xmlFile);
+        Files.deleteIfExists(cacheFile);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        NodeData.Builder userData = new NodeData.Builder("");
+        NodeData.Builder systemData = new NodeData.Builder("");
+        try (InputStream is = new FileInputStream(TEST_FILE)) {
+            XmlSupport.importPreferences(is, userData, systemData);
+        }
+        systemData.child("a").child("b").put("key with æøå", "RSSL");
+
+        byte[] hash = BinaryCache.hash(xmlFile);
+        BinaryCache.write(cacheFile, hash, userData.build(), systemData.build());
+
+        TemporaryPreferences userRoot = newRoot(TemporaryPreferences.TreeType.USER);
+        TemporaryPreferences systemRoot = newRoot(TemporaryPreferences.TreeType.SYSTEM);
+        userData.build().copyTo(NodeSink.of(userRoot));
+        systemData.build().copyTo(NodeSink.of(systemRoot));
+        TemporaryPreferences cachedUserRoot = newRoot(TemporaryPreferences.TreeType.USER);
+        TemporaryPreferences cachedSystemRoot = newRoot(TemporaryPreferences.TreeType.SYSTEM);
+        assertTrue(BinaryCache.load(cacheFile, hash, NodeSink.of(cachedUserRoot), NodeSink.of(cachedSystemRoot)));
+        assertSameTree(userRoot, cachedUserRoot);
+        assertSameTree(systemRoot, cachedSystemRoot);
+    }
+
+    @Test
+    public void testStaleOrCorruptCacheIsIgnored() throws Exception {
+        NodeData.Builder userData = new NodeData.Builder("");
+        userData.child("a").put("k", "v");
+        byte[] hash = BinaryCache.hash(xmlFile);
+        BinaryCache.write(cacheFile, hash, userData.build(), new NodeData.Builder("").build());
+
+        byte[] otherHash = hash.clone();
+        otherHash[0]++;
+        TemporaryPreferences loaded = newRoot(TemporaryPreferences.TreeType.USER);
+        assertFalse(BinaryCache.load(cacheFile, otherHash, NodeSink.of(loaded), NodeSink.of(newRoot(TemporaryPreferences.TreeType.SYSTEM))));
+
+        byte[] content = Files.readAllBytes(cacheFile);
+        Files.write(cacheFile, java.util.Arrays.copyOf(content, content.length - 5));
+        assertFalse(BinaryCache.load(cacheFile, hash, NodeSink.of(loaded), NodeSink.of(newRoot(TemporaryPreferences.TreeType.SYSTEM))));
+        assertEquals(0, loaded.childrenNames().length);
+
+        Files.delete(cacheFile);
+        assertFalse(BinaryCache.load(cacheFile, hash, NodeSink.of(loaded), NodeSink.of(newRoot(TemporaryPreferences.TreeType.SYSTEM))));
+    }
+
+    @Test
+    public void testFactoryUsesCache() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, xmlFile.toString());
+        props.setProperty(TemporaryPreferencesFactory.KEY_CACHE_FILE, cacheFile.toString());
+
+        TemporaryPreferencesFactory first = new TemporaryPreferencesFactory(props);
+        assertTrue(Files.exists(cacheFile));
+        TemporaryPreferencesFactory second = new TemporaryPreferencesFactory(props);
+        assertSameTree(first.userRoot(), second.userRoot());
+
+        // Change the source, the cache must not be used.
+        String xml = new String(Files.readAllBytes(xmlFile), StandardCharsets.UTF_8);
+        Files.write(xmlFile, xml.replace("trep1-ldn, trep2-ldn", "trep3-ldn").getBytes(StandardCharsets.UTF_8));
+        TemporaryPreferencesFactory third = new TemporaryPreferencesFactory(props);
+        assertEquals("trep3-ldn", third.userRoot().node("/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd").get("serverList", null));
+
+        // And a lazily loaded tree from cache.
+        props.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, "true");
+        TemporaryPreferencesFactory lazy = new TemporaryPreferencesFactory(props);
+        assertSameTree(third.userRoot(), lazy.userRoot());
+    }
+}
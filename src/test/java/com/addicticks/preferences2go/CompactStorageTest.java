@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.prefs.Preferences;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The building blocks of the compact storage. Its footprint is measured
+ * by {@code FootprintBenchmark} in the benchmarks module.
+ *
+ * @author Addicticks
+ */
+public class CompactStorageTest {
+
+    @Test
+    public void testArraySwitchesToMap() {
+        Entries.Compact entries = new Entries.Compact();
+        int max = Entries.Compact.MAX_ARRAY_ENTRIES;
+        for (int i = 0; i < max; i++) {
+            assertNull(entries.put("key" + i, "value" + i));
+        }
+        assertEquals("value0", entries.put("key0", "changed"));
+        assertTrue(entries.isArray());
+        assertEquals(max, entries.size());
+
+        assertNull(entries.put("key" + max, "value" + max));
+        assertFalse(entries.isArray());
+        assertEquals(max + 1, entries.size());
+        assertEquals("changed", entries.get("key0"));
+        for (int i = 1; i <= max; i++) {
+            assertEquals("value" + i, entries.get("key" + i));
+        }
+        String[] keys = entries.keys();
+        Arrays.sort(keys);
+        assertEquals("key0", keys[0]);
+        assertEquals(max + 1, keys.length);
+
+        // Doesn't switch back when shrinking, only when cleared
+        assertEquals("value1", entries.remove("key1"));
+        assertNull(entries.remove("key1"));
+        assertFalse(entries.isArray());
+        entries.clear();
+        assertTrue(entries.isArray());
+        assertEquals(0, entries.size());
+        assertNull(entries.get("key0"));
+    }
+
+    @Test
+    public void testArrayRemove() {
+        Entries.Compact entries = new Entries.Compact();
+        entries.put("a", "1");
+        entries.put("b", "2");
+        entries.put("c", "3");
+        assertEquals("2", entries.remove("b"));
+        assertArrayEquals(new String[]{"a", "c"}, entries.keys());
+        assertEquals("1", entries.remove("a"));
+        assertEquals("3", entries.remove("c"));
+        assertNull(entries.remove("c"));
+        assertEquals(0, entries.keys().length);
+        assertTrue(entries.isArray());
+    }
+
+    @Test
+    public void testStringPool() {
+        StringPool pool = new StringPool();
+        String first = pool.intern(new String("trep1-ldn"));
+        assertSame(first, pool.intern(new String("trep1-ldn")));
+        assertNotSame(first, pool.intern(new String("trep2-ldn")));
+        assertNull(pool.intern(null));
+        assertEquals(2, pool.size());
+
+        TreeContext compact = new TreeContext(true);
+        assertSame(compact.intern(new String("RSSL")), compact.intern(new String("RSSL")));
+        String s = new String("RSSL");
+        assertSame(s, new TreeContext(false).intern(s));
+    }
+
+    @Test
+    public void testOnlyLoadedStringsArePooled() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, "src/test/resources/test-pref-values.xml");
+        properties.setProperty(TemporaryPreferencesFactory.KEY_COMPACT_STORAGE, "true");
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(properties);
+        try {
+            TemporaryPreferences root = (TemporaryPreferences) factory.userRoot();
+            StringPool pool = root.context().stringPool();
+            Preferences node = root.node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+            int loaded = pool.size();
+            assertTrue(loaded > 0);
+            assertSame(pool.intern(new String("TREPProd")), node.name());
+            assertSame(pool.intern(new String("trep1-ldn, trep2-ldn")), node.get("serverList", null));
+
+            for (int i = 0; i < 1000; i++) {
+                node.put("key" + i, "value" + i);
+                root.node("runtime" + i);
+            }
+            assertEquals(loaded, pool.size());
+        } finally {
+            factory.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class EventDispatcherTest {
+
+    private static <T> T next(BlockingQueue<T> events) throws InterruptedException {
+        T event = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull("No event", event);
+        return event;
+    }
+
+    @Test
+    public void testSlowListenerOnlyDelaysItself() throws Exception {
+        ExecutorService executor = EventDispatcher.newThreadPool(2);
+        PreferencesMetrics metrics = new PreferencesMetrics();
+        TreeContext context = new TreeContext(false, metrics, executor);
+        TemporaryPreferences node = (TemporaryPreferences) new TemporaryPreferences(null, "",
+                TemporaryPreferences.TreeType.USER, context).node("com/acme");
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingQueue<PreferenceChangeEvent> slowEvents = new LinkedBlockingQueue<>();
+        PreferenceChangeListener slow = event -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            slowEvents.add(event);
+        };
+        BlockingQueue<PreferenceChangeEvent> fastEvents = new LinkedBlockingQueue<>();
+        node.addPreferenceChangeListener(slow);
+        node.addPreferenceChangeListener(fastEvents::add);
+
+        // The fast listener isn't held up by the slow one
+        node.put("serverList", "srv1");
+        assertEquals("srv1", next(fastEvents).getNewValue());
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        node.put("port", "14002");
+        assertEquals("port", next(fastEvents).getKey());
+        node.put("serverList", "srv2");
+        assertEquals("srv2", next(fastEvents).getNewValue());
+        node.put("serverList", "srv3");
+        assertEquals("srv3", next(fastEvents).getNewValue());
+        assertTrue(slowEvents.isEmpty());
+
+        // The slow listener gets the later changes of serverList coalesced
+        release.countDown();
+        assertEquals("srv1", next(slowEvents).getNewValue());
+        assertEquals("port", next(slowEvents).getKey());
+        PreferenceChangeEvent event = next(slowEvents);
+        assertEquals("serverList", event.getKey());
+        assertEquals("srv3", event.getNewValue());
+        assertNull(slowEvents.poll(200, TimeUnit.MILLISECONDS));
+
+        assertEquals(7, metrics.getEventsDeliveredCount());
+        assertEquals(1, metrics.getEventsCoalescedCount());
+        assertEquals(0, metrics.getEventsPendingCount());
+        assertTrue(metrics.getMaxDispatchLagMillis() >= metrics.getAverageDispatchLagMillis());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testListenerOfSeveralNodesHasOneQueue() throws Exception {
+        ExecutorService executor = EventDispatcher.newThreadPool(2);
+        TreeContext context = new TreeContext(false, null, executor);
+        TemporaryPreferences root = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.USER, context);
+        Preferences primary = root.node("primary");
+        Preferences secondary = root.node("secondary");
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger active = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        PreferenceChangeListener listener = event -> {
+            if (active.incrementAndGet() > 1) {
+                overlapped.set(true);
+            }
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            events.add(event.getNode().name() + ":" + event.getKey() + "=" + event.getNewValue());
+            active.decrementAndGet();
+        };
+        primary.addPreferenceChangeListener(listener);
+        secondary.addPreferenceChangeListener(listener);
+
+        primary.put("k", "1");
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        secondary.put("k", "1");
+        primary.put("k", "2");
+        secondary.put("k", "2");
+        primary.put("x", "1");
+        // Nothing is delivered while the listener is busy
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+
+        // Coalesced per node and key
+        release.countDown();
+        assertEquals("primary:k=1", next(events));
+        assertEquals("secondary:k=2", next(events));
+        assertEquals("primary:k=2", next(events));
+        assertEquals("primary:x=1", next(events));
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+        assertFalse(overlapped.get());
+
+        // Still registered with the other node
+        primary.removePreferenceChangeListener(listener);
+        primary.put("k", "3");
+        secondary.put("k", "3");
+        assertEquals("secondary:k=3", next(events));
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+        secondary.removePreferenceChangeListener(listener);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testNodeChangeEvents() throws Exception {
+        TemporaryPreferences node = (TemporaryPreferences) new TemporaryPreferences(null, "").node("com/acme");
+        BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        NodeChangeListener listener = new NodeChangeListener() {
+            @Override
+            public void childAdded(NodeChangeEvent evt) {
+                events.add("added " + evt.getChild().name());
+            }
+
+            @Override
+            public void childRemoved(NodeChangeEvent evt) {
+                events.add("removed " + evt.getChild().name());
+            }
+        };
+        node.addNodeChangeListener(listener);
+
+        node.node("primary");
+        node.node("primary/nested");
+        node.node("secondary").removeNode();
+        assertEquals("added primary", next(events));
+        assertEquals("added secondary", next(events));
+        assertEquals("removed secondary", next(events));
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+
+        node.removeNodeChangeListener(listener);
+        node.node("tertiary");
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+}
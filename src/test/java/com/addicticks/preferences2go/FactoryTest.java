@@ -15,7 +15,16 @@
  */
 package com.addicticks.preferences2go;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.prefs.BackingStoreException;
+import java.util.prefs.PreferenceChangeEvent;
 import java.util.prefs.Preferences;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -35,6 +44,11 @@ public class FactoryTest {
     
     @BeforeClass
     public static void setUpClass() {
+        // Initialize Preferences with this factory before any test creates
+        // a factory of its own
+        System.setProperty("java.util.prefs.PreferencesFactory", "com.addicticks.preferences2go.TemporaryPreferencesFactory");
+        System.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, "src/test/resources/test-pref-values.xml");
+        Preferences.userRoot();
     }
     
     @AfterClass
@@ -61,4 +75,113 @@ public class FactoryTest {
         Preferences node = userRoot.node("/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
         assertNotNull(node.get("serverList", null));
     }
+
+    @Test
+    public void testHotReload() throws Exception {
+        Path dir = Files.createTempDirectory("pref2go");
+        Path xmlFile = dir.resolve("prefs.xml");
+        Files.copy(Paths.get("src/test/resources/test-pref-values.xml"), xmlFile);
+        Properties props = new Properties();
+        props.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, xmlFile.toString());
+        props.setProperty(TemporaryPreferencesFactory.KEY_WATCH_FILE, "true");
+        props.setProperty(TemporaryPreferencesFactory.KEY_WATCH_DEBOUNCE_MILLIS, "100");
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(props);
+        try {
+            BlockingQueue<PreferenceChangeEvent> events = new LinkedBlockingQueue<>();
+            Preferences prod = factory.userRoot().node("/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+            Preferences uat = factory.userRoot().node("/com/reuters/rfa/AddicticksNamespace/Connections/TREPUAT");
+            prod.addPreferenceChangeListener(events::add);
+            uat.addPreferenceChangeListener(events::add);
+
+            String xml = new String(Files.readAllBytes(xmlFile), StandardCharsets.UTF_8);
+            xml = xml.replace("trep1-ldn, trep2-ldn", "trep3-ldn")
+                    .replace("<node name=\"_System\">", "<node name=\"_Other\">");
+            Files.write(xmlFile, xml.getBytes(StandardCharsets.UTF_8));
+
+            PreferenceChangeEvent event = events.poll(30, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertSame(prod, event.getNode());
+            assertEquals("serverList", event.getKey());
+            assertEquals("trep3-ldn", event.getNewValue());
+            assertNull(events.poll(500, TimeUnit.MILLISECONDS));
+            assertEquals("RSSL", prod.get("connectionType", null));
+            assertFalse(factory.userRoot().nodeExists("/com/reuters/rfa/_System"));
+            assertTrue(factory.userRoot().nodeExists("/com/reuters/rfa/_Other"));
+        } finally {
+            factory.close();
+            Files.delete(xmlFile);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testReloadKeepsRuntimeChanges() throws Exception {
+        Path dir = Files.createTempDirectory("pref2go");
+        Path xmlFile = dir.resolve("prefs.xml");
+        Files.copy(Paths.get("src/test/resources/test-pref-values.xml"), xmlFile);
+        Properties props = new Properties();
+        props.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, xmlFile.toString());
+        props.setProperty(TemporaryPreferencesFactory.KEY_WATCH_FILE, "true");
+        props.setProperty(TemporaryPreferencesFactory.KEY_WATCH_DEBOUNCE_MILLIS, "100");
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(props);
+        try {
+            BlockingQueue<PreferenceChangeEvent> events = new LinkedBlockingQueue<>();
+            Preferences prod = factory.userRoot().node("/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+            factory.userRoot().node("/app/runtime").put("k", "v");
+            prod.put("runtimeKey", "v");
+            prod.addPreferenceChangeListener(events::add);
+
+            String xml = new String(Files.readAllBytes(xmlFile), StandardCharsets.UTF_8);
+            Files.write(xmlFile, xml.replace("trep1-ldn, trep2-ldn", "trep3-ldn").getBytes(StandardCharsets.UTF_8));
+
+            PreferenceChangeEvent event = events.poll(30, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertEquals("serverList", event.getKey());
+            assertEquals("v", factory.userRoot().node("/app/runtime").get("k", null));
+            assertEquals("v", prod.get("runtimeKey", null));
+        } finally {
+            factory.close();
+            Files.delete(xmlFile);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testReloadLeavesLazyTreeUnmaterialized() throws Exception {
+        Path dir = Files.createTempDirectory("pref2go");
+        Path xmlFile = dir.resolve("prefs.xml");
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<!DOCTYPE preferences SYSTEM \"http://java.sun.com/dtd/preferences.dtd\">\n"
+                + "<preferences EXTERNAL_XML_VERSION=\"1.0\"><root type=\"user\"><map/><node name=\"gen\"><map/>\n");
+        for (int i = 0; i < 1000; i++) {
+            xml.append("<node name=\"n").append(i).append("\"><map><entry key=\"k\" value=\"v").append(i)
+                    .append("\"/></map></node>\n");
+        }
+        xml.append("</node></root></preferences>\n");
+        Files.write(xmlFile, xml.toString().getBytes(StandardCharsets.UTF_8));
+        Properties props = new Properties();
+        props.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, xmlFile.toString());
+        props.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, "true");
+        props.setProperty(TemporaryPreferencesFactory.KEY_WATCH_FILE, "true");
+        props.setProperty(TemporaryPreferencesFactory.KEY_WATCH_DEBOUNCE_MILLIS, "100");
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(props);
+        try {
+            TemporaryPreferences root = (TemporaryPreferences) factory.userRoot();
+            BlockingQueue<PreferenceChangeEvent> events = new LinkedBlockingQueue<>();
+            root.node("gen/n500").addPreferenceChangeListener(events::add);
+            int created = root.context().nodeIndex(TemporaryPreferences.TreeType.USER).size();
+
+            Files.write(xmlFile, xml.toString().replace("\"v500\"", "\"changed\"").getBytes(StandardCharsets.UTF_8));
+
+            PreferenceChangeEvent event = events.poll(30, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertEquals("changed", event.getNewValue());
+            assertEquals(created, root.context().nodeIndex(TemporaryPreferences.TreeType.USER).size());
+            assertEquals("v499", root.node("gen/n499").get("k", null));
+        } finally {
+            factory.close();
+            Files.delete(xmlFile);
+            Files.delete(dir);
+        }
+    }
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.Preferences;
+import static com.addicticks.preferences2go.XmlSupportTest.assertSameTree;
+import static com.addicticks.preferences2go.XmlSupportTest.newRoot;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class FlatSupportTest {
+
+    private static final String TEST_FILE = "src/test/resources/test-pref-values.xml";
+
+    @Test
+    public void testSameAsXml() throws Exception {
+        TemporaryPreferences userRoot = newRoot(TemporaryPreferences.TreeType.USER);
+        TemporaryPreferences systemRoot = newRoot(TemporaryPreferences.TreeType.SYSTEM);
+        try (InputStream is = new FileInputStream(TEST_FILE)) {
+            XmlSupport.importPreferences(is, userRoot, systemRoot);
+        }
+        systemRoot.node("sys/empty");
+        systemRoot.node("sys/a:b/c=d").put("k:=", "v=:\\");
+        StringBuilder flat = new StringBuilder("# Converted from XML\n");
+        writeFlat(userRoot, flat);
+        flat.append("[system]\n");
+        writeFlat(systemRoot, flat);
+
+        for (int chunks : new int[]{1, 3, 50}) {
+            TemporaryPreferences flatUserRoot = newRoot(TemporaryPreferences.TreeType.USER);
+            TemporaryPreferences flatSystemRoot = newRoot(TemporaryPreferences.TreeType.SYSTEM);
+            load(flat.toString(), chunks, flatUserRoot, flatSystemRoot);
+            assertSameTree(userRoot, flatUserRoot);
+            assertSameTree(systemRoot, flatSystemRoot);
+        }
+    }
+
+    @Test
+    public void testSyntax() throws Exception {
+        String flat = "/a:k=v1\r\n"
+                + "\n"
+                + "# /not:a=preference\n"
+                + "/a/b\\:c:k\\=1=x=y\n"
+                + "/a:k=v2\n"
+                + "/a:multi=line\\none\\ttab\\\\\n"
+                + "/a/empty\n"
+                + "/:top=\u00e5\u20ac\n"
+                + "[system]\n"
+                + "/s:k=\n"
+                + "[user]\n"
+                + "/u:k=v";
+        for (int chunks : new int[]{1, 4}) {
+            TemporaryPreferences userRoot = newRoot(TemporaryPreferences.TreeType.USER);
+            TemporaryPreferences systemRoot = newRoot(TemporaryPreferences.TreeType.SYSTEM);
+            load(flat, chunks, userRoot, systemRoot);
+            assertEquals("v2", userRoot.node("a").get("k", null));
+            assertEquals("x=y", userRoot.node("a/b:c").get("k=1", null));
+            assertEquals("line\none\ttab\\", userRoot.node("a").get("multi", null));
+            assertTrue(userRoot.nodeExists("a/empty"));
+            assertEquals("\u00e5\u20ac", userRoot.get("top", null));
+            assertEquals("v", userRoot.node("u").get("k", null));
+            assertArrayEquals(new String[]{"a", "u"}, userRoot.childrenNames());
+            assertEquals("", systemRoot.node("s").get("k", null));
+            assertArrayEquals(new String[]{"s"}, systemRoot.childrenNames());
+        }
+    }
+
+    @Test
+    public void testChunksContinueSection() throws Exception {
+        StringBuilder flat = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            if (i % 300 == 0) {
+                flat.append((i % 600 == 0) ? "[system]\n" : "[user]\n");
+            }
+            flat.append("/n").append(i % 7).append("/m").append(i % 5).append(":k=").append(i).append('\n');
+        }
+        TemporaryPreferences userRoot = newRoot(TemporaryPreferences.TreeType.USER);
+        TemporaryPreferences systemRoot = newRoot(TemporaryPreferences.TreeType.SYSTEM);
+        load(flat.toString(), 1, userRoot, systemRoot);
+        for (int chunks : new int[]{2, 7, 64}) {
+            TemporaryPreferences chunkedUserRoot = newRoot(TemporaryPreferences.TreeType.USER);
+            TemporaryPreferences chunkedSystemRoot = newRoot(TemporaryPreferences.TreeType.SYSTEM);
+            load(flat.toString(), chunks, chunkedUserRoot, chunkedSystemRoot);
+            assertSameTree(userRoot, chunkedUserRoot);
+            assertSameTree(systemRoot, chunkedSystemRoot);
+        }
+        assertEquals("969", userRoot.node("n3/m4").get("k", null));
+        assertEquals("894", systemRoot.node("n5/m4").get("k", null));
+    }
+
+    @Test
+    public void testInvalidLinesAreRejected() throws Exception {
+        assertInvalid("a:k=v");
+        assertInvalid("/a:k");
+        assertInvalid("/a//b:k=v");
+        assertInvalid("/a/:k=v");
+        assertInvalid("[users]");
+    }
+
+    @Test
+    public void testFactory() throws Exception {
+        Path file = Files.createTempFile("pref2go", FlatSupport.EXTENSION);
+        try {
+            Files.write(file, "/com/reuters/rfa/Sessions/S1:connectionList=TREPProd\n[system]\n/x:y=z\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            assertTrue(FlatSupport.isFlatFile(file));
+            assertFalse(FlatSupport.isFlatFile(Paths.get(TEST_FILE)));
+            for (boolean lazyLoad : new boolean[]{false, true}) {
+                Properties properties = new Properties();
+                properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, file.toString());
+                properties.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, Boolean.toString(lazyLoad));
+                TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(properties);
+                assertEquals("TREPProd", factory.userRoot().node("com/reuters/rfa/Sessions/S1").get("connectionList", null));
+                assertEquals("z", factory.systemRoot().node("x").get("y", null));
+                factory.close();
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testSameRulesEagerAndLazy() throws Exception {
+        String name = repeat('n', Preferences.MAX_NAME_LENGTH);
+        String key = repeat('k', Preferences.MAX_KEY_LENGTH);
+        String value = repeat('v', Preferences.MAX_VALUE_LENGTH);
+        String[] invalid = {
+            "/a\\/b:k=v",
+            "/" + name + "n:k=v",
+            "/a:" + key + "k=v",
+            "/a:k=" + value + "v",
+            "/a:k\u0000=v",
+            "/a:k=v\u0000"
+        };
+        for (boolean lazyLoad : new boolean[]{false, true}) {
+            for (String flat : invalid) {
+                try {
+                    loadWithFactory(flat, lazyLoad).close();
+                    fail("Expected InvalidPreferencesFormatException for " + flat + ", lazyLoad=" + lazyLoad);
+                } catch (InvalidPreferencesFormatException ex) {
+                    assertTrue(ex.getCause() instanceof IllegalArgumentException);
+                }
+            }
+            TemporaryPreferencesFactory factory = loadWithFactory("/" + name + ":" + key + "=" + value, lazyLoad);
+            assertEquals(value, factory.userRoot().node(name).get(key, null));
+            factory.close();
+        }
+    }
+
+    private static TemporaryPreferencesFactory loadWithFactory(String flat, boolean lazyLoad) throws Exception {
+        Path file = Files.createTempFile("pref2go", FlatSupport.EXTENSION);
+        try {
+            Files.write(file, flat.getBytes(StandardCharsets.UTF_8));
+            Properties properties = new Properties();
+            properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, file.toString());
+            properties.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, Boolean.toString(lazyLoad));
+            return new TemporaryPreferencesFactory(properties);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void load(String flat, int chunks, TemporaryPreferences userRoot, TemporaryPreferences systemRoot) throws Exception {
+        ByteBuffer bytes = ByteBuffer.wrap(flat.getBytes(StandardCharsets.UTF_8));
+        FlatSupport.importPreferences(bytes, chunks, NodeSink.of(userRoot), NodeSink.of(systemRoot));
+    }
+
+    private static void assertInvalid(String flat) throws Exception {
+        try {
+            load(flat, 1, newRoot(TemporaryPreferences.TreeType.USER), newRoot(TemporaryPreferences.TreeType.SYSTEM));
+            fail("Expected InvalidPreferencesFormatException for " + flat);
+        } catch (InvalidPreferencesFormatException ex) {
+            // Expected
+        }
+    }
+
+    private static void writeFlat(Preferences node, StringBuilder flat) throws Exception {
+        String path = escape(node.absolutePath(), "\\:");
+        String[] keys = node.keys();
+        if (keys.length == 0) {
+            flat.append(path).append('\n');
+        }
+        for (String key : keys) {
+            flat.append(path).append(':').append(escape(key, "\\=")).append('=')
+                    .append(escape(node.get(key, null), "\\")).append('\n');
+        }
+        for (String child : node.childrenNames()) {
+            writeFlat(node.node(child), flat);
+        }
+    }
+
+    private static String escape(String s, String special) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : s.toCharArray()) {
+            if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else {
+                if (special.indexOf(c) >= 0) {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.Properties;
+import java.util.prefs.Preferences;
+import static com.addicticks.preferences2go.XmlSupportTest.assertSameTree;
+import static com.addicticks.preferences2go.XmlSupportTest.newRoot;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class ForkTest {
+
+    private static final String TEST_FILE = "src/test/resources/test-pref-values.xml";
+    private static final String TREP_PROD = "/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd";
+
+    @Test
+    public void testForkIsIndependent() throws Exception {
+        TemporaryPreferences root = newRoot(TemporaryPreferences.TreeType.SYSTEM);
+        root.node("a/b").put("k1", "v1");
+        root.node("a/b/c").put("k2", "v2");
+        root.node("a").put("k3", "v3");
+
+        TemporaryPreferences fork = ((TemporaryPreferences) root.node("a")).fork();
+        assertFalse(fork.isUserNode());
+        assertEquals("", fork.name());
+        assertSameTree(root.node("a"), fork);
+
+        fork.node("b").put("k1", "changed");
+        fork.node("b/c").removeNode();
+        fork.node("d").put("k4", "v4");
+        root.node("a/b").remove("k1");
+        assertEquals("changed", fork.node("b").get("k1", null));
+        assertFalse(fork.nodeExists("b/c"));
+        assertNull(root.node("a/b").get("k1", null));
+        assertEquals("v2", root.node("a/b/c").get("k2", null));
+        assertFalse(root.nodeExists("a/d"));
+
+        // A fork of a fork
+        TemporaryPreferences second = fork.fork();
+        second.put("k3", "changed");
+        assertEquals("v3", fork.get("k3", null));
+        assertEquals("v4", second.node("d").get("k4", null));
+    }
+
+    @Test
+    public void testForksShareUnchangedData() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, TEST_FILE);
+        properties.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, "true");
+        properties.setProperty(TemporaryPreferencesFactory.KEY_SNAPSHOTS, "true");
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(properties);
+        TemporaryPreferences root = (TemporaryPreferences) factory.userRoot();
+        Preferences original = root.node(TREP_PROD);
+        String serverList = original.get("serverList", null);
+
+        TemporaryPreferences[] forks = new TemporaryPreferences[1000];
+        for (int i = 0; i < forks.length; i++) {
+            forks[i] = root.fork();
+            // Only the root has been created
+            assertEquals(1, forks[i].context().nodeIndex(TemporaryPreferences.TreeType.USER).size());
+        }
+        NodeData shared = root.context().snapshots().current().userRoot;
+        for (int i = 0; i < forks.length; i++) {
+            assertEquals(shared.childCount(), forks[i].childrenNames().length);
+        }
+
+        forks[0].node(TREP_PROD).put("serverList", "trep3-ldn");
+        assertEquals("trep3-ldn", forks[0].node(TREP_PROD).get("serverList", null));
+        assertEquals(serverList, forks[1].node(TREP_PROD).get("serverList", null));
+        assertEquals(serverList, original.get("serverList", null));
+        // Nodes on the path were created, the rest is still shared
+        assertEquals(7, forks[0].context().nodeIndex(TemporaryPreferences.TreeType.USER).size());
+
+        assertSameTree(root, forks[999]);
+        assertSameTree(root, factory.userSnapshot().fork());
+        factory.close();
+    }
+}
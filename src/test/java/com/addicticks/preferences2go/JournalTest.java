@@ -0,0 +1,180 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.prefs.Preferences;
+import static com.addicticks.preferences2go.XmlSupportTest.assertSameTree;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class JournalTest {
+
+    private static final String TEST_FILE = "src/test/resources/test-pref-values.xml";
+
+    private Path dir;
+    private Path xmlFile;
+    private Path journalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pref2go");
+        xmlFile = dir.resolve("prefs.xml");
+        journalFile = dir.resolve("prefs.xml.journal");
+        Files.copy(Paths.get(TEST_FILE), xmlFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(xmlFile);
+        Files.deleteIfExists(journalFile);
+        Files.delete(dir);
+    }
+
+    private TemporaryPreferencesFactory newFactory(boolean lazyLoad, String sync, long compactBytes) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, xmlFile.toString());
+        properties.setProperty(TemporaryPreferencesFactory.KEY_JOURNAL, "true");
+        properties.setProperty(TemporaryPreferencesFactory.KEY_JOURNAL_SYNC, sync);
+        properties.setProperty(TemporaryPreferencesFactory.KEY_JOURNAL_COMPACT_BYTES, Long.toString(compactBytes));
+        properties.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, Boolean.toString(lazyLoad));
+        return new TemporaryPreferencesFactory(properties);
+    }
+
+    private void replaceInFile(String target, String replacement) throws Exception {
+        String xml = new String(Files.readAllBytes(xmlFile), StandardCharsets.UTF_8);
+        assertTrue(xml.contains(target));
+        Files.write(xmlFile, xml.replace(target, replacement).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void makeChanges(Preferences userRoot) throws Exception {
+        Preferences node = userRoot.node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+        node.put("serverList", "trep3-ldn");
+        node.putInt("portNumber", 14002);
+        node.remove("connectionType");
+        userRoot.node("com/reuters/rfa/_Default").removeNode();
+        userRoot.node("com/reuters/rfa/_Default/Sessions").put("recreated", "true");
+        userRoot.node("com/reuters/rfa/New/Empty");
+    }
+
+    @Test
+    public void testChangesAreReplayed() throws Exception {
+        TemporaryPreferencesFactory factory = newFactory(false, "always", 1 << 20);
+        makeChanges(factory.userRoot());
+        factory.userRoot().flush();
+        factory.close();
+
+        TemporaryPreferencesFactory restarted = newFactory(false, "always", 1 << 20);
+        try {
+            assertSameTree(factory.userRoot(), restarted.userRoot());
+            assertFalse(restarted.userRoot().nodeExists("com/reuters/rfa/_Default/Sessions/UATConsumer"));
+        } finally {
+            restarted.close();
+        }
+    }
+
+    @Test
+    public void testIncompleteRecordIsDiscarded() throws Exception {
+        TemporaryPreferencesFactory factory = newFactory(false, "flush", 1 << 20);
+        makeChanges(factory.userRoot());
+        factory.close();
+        long length = Files.size(journalFile);
+        // As if the process died while writing a record
+        Files.write(journalFile, new byte[]{0, 0, 0, 40, 1, 0}, StandardOpenOption.APPEND);
+
+        TemporaryPreferencesFactory restarted = newFactory(false, "never", 1 << 20);
+        assertSameTree(factory.userRoot(), restarted.userRoot());
+        assertEquals(length, Files.size(journalFile));
+        restarted.userRoot().put("after", "restart");
+        restarted.close();
+
+        TemporaryPreferencesFactory restartedAgain = newFactory(false, "always", 1 << 20);
+        try {
+            assertSameTree(restarted.userRoot(), restartedAgain.userRoot());
+            assertEquals("restart", restartedAgain.userRoot().get("after", null));
+        } finally {
+            restartedAgain.close();
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        TemporaryPreferencesFactory factory = newFactory(true, "never", 4096);
+        makeChanges(factory.userRoot());
+        Preferences node = factory.userRoot().node("com/reuters/rfa/AddicticksNamespace/Sessions/StdConsumer");
+        for (int i = 0; i < 10_000; i++) {
+            node.putInt("counter", i);
+        }
+        factory.userRoot().flush();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Files.size(journalFile) > 4096 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Files.size(journalFile) <= 4096);
+        factory.close();
+
+        TemporaryPreferencesFactory restarted = newFactory(false, "always", 4096);
+        try {
+            assertSameTree(factory.userRoot(), restarted.userRoot());
+            assertEquals(9_999, restarted.userRoot().node("com/reuters/rfa/AddicticksNamespace/Sessions/StdConsumer").getInt("counter", 0));
+        } finally {
+            restarted.close();
+        }
+    }
+
+    @Test
+    public void testReloadedChangesAreNotReplayed() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, xmlFile.toString());
+        properties.setProperty(TemporaryPreferencesFactory.KEY_JOURNAL, "true");
+        properties.setProperty(TemporaryPreferencesFactory.KEY_WATCH_FILE, "true");
+        properties.setProperty(TemporaryPreferencesFactory.KEY_WATCH_DEBOUNCE_MILLIS, "100");
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(properties);
+        Preferences node = factory.userRoot().node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+        node.put("serverList", "runtime");
+        factory.userRoot().node("app").put("k", "runtime");
+
+        replaceInFile("trep1-ldn, trep2-ldn", "trep3-ldn");
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!"trep3-ldn".equals(node.get("serverList", null)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("trep3-ldn", node.get("serverList", null));
+        factory.close();
+
+        // The file changes again while the application isn't running
+        replaceInFile("trep3-ldn", "trep4-ldn");
+        TemporaryPreferencesFactory restarted = newFactory(false, "always", 1 << 20);
+        try {
+            Preferences restartedNode = restarted.userRoot().node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+            assertEquals("trep4-ldn", restartedNode.get("serverList", null));
+            assertEquals("runtime", restarted.userRoot().node("app").get("k", null));
+        } finally {
+            restarted.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.prefs.Preferences;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class LoadGateTest {
+
+    @Test
+    public void testAccessWaitsOnlyForItsSubtree() throws Exception {
+        TreeContext context = new TreeContext();
+        TemporaryPreferences root = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.USER, context);
+        CountDownLatch firstLoaded = new CountDownLatch(1);
+        CountDownLatch loadRest = new CountDownLatch(1);
+        Thread loader = new Thread(() -> {
+            try {
+                NodeSink sink = context.loadGate().track(NodeSink.of(root), TemporaryPreferences.TreeType.USER);
+                NodeSink first = sink.child("first");
+                first.put("k", "v");
+                first.child("child").end();
+                first.end();
+                firstLoaded.countDown();
+                loadRest.await();
+                NodeSink second = sink.child("second");
+                second.put("k", "v2");
+                second.end();
+                sink.end();
+                context.loadGate().done();
+            } catch (InterruptedException ex) {
+                context.loadGate().failed(ex);
+            }
+        });
+        context.setLoadGate(new LoadGate(loader));
+        loader.start();
+        assertTrue(firstLoaded.await(10, TimeUnit.SECONDS));
+
+        // The loader is now blocked. The completed subtree is available...
+        assertEquals("v", root.node("/first").get("k", null));
+        assertTrue(root.nodeExists("/first/child"));
+        assertFalse(root.nodeExists("/first/missing"));
+        assertEquals("v", root.node("/first/child").parent().get("k", null));
+
+        // ...but the rest of the tree is not
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> second = executor.submit(() -> root.node("/second").get("k", null));
+            Future<Integer> keys = executor.submit(() -> root.keys().length);
+            assertBlocked(second);
+            assertBlocked(keys);
+            loadRest.countDown();
+            assertEquals("v2", second.get(10, TimeUnit.SECONDS));
+            assertEquals(0, (int) keys.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        loader.join();
+    }
+
+    private static void assertBlocked(Future<?> future) throws Exception {
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            fail("Expected access to wait for loading");
+        } catch (TimeoutException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFactoryLoadsInBackground() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, "src/test/resources/test-pref-values.xml");
+        properties.setProperty(TemporaryPreferencesFactory.KEY_ASYNC_LOAD, "true");
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(properties);
+        try {
+            Preferences node = factory.userRoot().node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+            assertEquals("RSSL", node.get("connectionType", null));
+            factory.awaitLoad();
+            assertNull(factory.userRoot().node("com/reuters/rfa").get("missing", null));
+        } finally {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void testJournalIsReplayedBeforeAccess() throws Exception {
+        Path dir = Files.createTempDirectory("pref2go");
+        Path file = dir.resolve("prefs.xml");
+        // A node which is complete early, followed by a lot more to load
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>"
+                + "<!DOCTYPE preferences SYSTEM \"http://java.sun.com/dtd/preferences.dtd\">"
+                + "<preferences EXTERNAL_XML_VERSION=\"1.0\"><root type=\"user\"><map/>"
+                + "<node name=\"a\"><map><entry key=\"k\" value=\"file\"/></map></node><node name=\"filler\"><map/>");
+        for (int i = 0; i < 20000; i++) {
+            xml.append("<node name=\"n").append(i).append("\"><map><entry key=\"k\" value=\"v").append(i).append("\"/></map></node>");
+        }
+        xml.append("</node></root></preferences>");
+        Files.write(file, xml.toString().getBytes(StandardCharsets.UTF_8));
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, file.toString());
+        properties.setProperty(TemporaryPreferencesFactory.KEY_JOURNAL, "true");
+        try {
+            TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(properties);
+            factory.userRoot().node("a").put("k", "journal");
+            factory.close();
+
+            properties.setProperty(TemporaryPreferencesFactory.KEY_ASYNC_LOAD, "true");
+            factory = new TemporaryPreferencesFactory(properties);
+            Preferences node = factory.userRoot().node("a");
+            assertEquals("journal", node.get("k", null));
+            node.put("k", "written while loading");
+            factory.awaitLoad();
+            assertEquals("written while loading", node.get("k", null));
+            factory.close();
+
+            properties.remove(TemporaryPreferencesFactory.KEY_ASYNC_LOAD);
+            factory = new TemporaryPreferencesFactory(properties);
+            assertEquals("written while loading", factory.userRoot().node("a").get("k", null));
+            factory.close();
+        } finally {
+            Files.delete(file);
+            Files.deleteIfExists(dir.resolve("prefs.xml.journal"));
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testLoadFailureIsSurfaced() throws Exception {
+        Path file = Files.createTempFile("pref2go", ".xml");
+        try {
+            Files.write(file, "<preferences>".getBytes(StandardCharsets.UTF_8));
+            Properties properties = new Properties();
+            properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, file.toString());
+            properties.setProperty(TemporaryPreferencesFactory.KEY_ASYNC_LOAD, "true");
+            TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(properties);
+            factory.awaitLoad();
+            for (int i = 0; i < 2; i++) {
+                try {
+                    factory.userRoot().node("com/reuters/rfa").get("k", null);
+                    fail("Expected IllegalStateException");
+                } catch (IllegalStateException ex) {
+                    assertNotNull(ex.getCause());
+                }
+            }
+            factory.close();
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.prefs.Preferences;
+import static com.addicticks.preferences2go.XmlSupportTest.assertSameTree;
+import static com.addicticks.preferences2go.XmlSupportTest.newRoot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class NodeEvictorTest {
+
+    private static final int NODES = 50;
+
+    private Path dir;
+    private Path xmlFile;
+    private Path spillFile;
+    private TemporaryPreferences source;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pref2go");
+        xmlFile = dir.resolve("prefs.xml");
+        spillFile = dir.resolve("prefs.spill");
+        source = newRoot(TemporaryPreferences.TreeType.USER);
+        for (int i = 0; i < NODES; i++) {
+            Preferences node = source.node("app/n" + i);
+            for (int j = 0; j < 5; j++) {
+                node.put("k" + j, "v" + i + "-" + j);
+            }
+            node.node("deep/deeper").put("port", Integer.toString(14000 + i));
+        }
+        try (OutputStream os = Files.newOutputStream(xmlFile)) {
+            source.exportSubtree(os);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(xmlFile);
+        Files.deleteIfExists(spillFile);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testColdNodesAreEvictedAndRestored() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, xmlFile.toString());
+        props.setProperty(TemporaryPreferencesFactory.KEY_MAX_RESIDENT_ENTRIES, "20");
+        props.setProperty(TemporaryPreferencesFactory.KEY_SPILL_FILE, spillFile.toString());
+        props.setProperty(TemporaryPreferencesFactory.KEY_METRICS, "true");
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(props);
+        PreferencesMetrics metrics = factory.metrics();
+        Preferences root = factory.userRoot();
+
+        TemporaryPreferences changed = (TemporaryPreferences) root.node("/app/n0");
+        changed.put("k0", "changed");
+        for (int i = 1; i < NODES; i++) {
+            assertEquals("v" + i + "-1", root.node("/app/n" + i).get("k1", null));
+        }
+        TemporaryPreferences cold = (TemporaryPreferences) root.node("/app/n1");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!cold.isEvicted() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(cold.isEvicted());
+        assertTrue(metrics.getNodesEvictedCount() > 0);
+        assertTrue(Files.size(spillFile) > 0);
+        // Changed nodes are never evicted
+        assertFalse(changed.isEvicted());
+        assertEquals("changed", changed.get("k0", null));
+
+        // Children yet to be created are known while evicted
+        assertTrue(root.nodeExists("/app/n1/deep/deeper"));
+        assertFalse(root.nodeExists("/app/n1/deep/other"));
+        assertArrayEquals(new String[]{"deep"}, cold.childrenNames());
+        assertEquals("v1-4", cold.get("k4", null));
+        assertTrue(metrics.getNodesRestoredCount() > 0);
+
+        changed.put("k0", "v0-0");
+        assertSameTree(source.node("app"), root.node("app"));
+        factory.close();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class PreferencesBatchTest {
+
+    private static PreferenceChangeEvent next(BlockingQueue<PreferenceChangeEvent> events) throws InterruptedException {
+        PreferenceChangeEvent event = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull("No event", event);
+        return event;
+    }
+
+    @Test
+    public void testPutAllDeliversOneEventPerKey() throws Exception {
+        TemporaryPreferences node = (TemporaryPreferences) new TemporaryPreferences(null, "").node("com/acme");
+        node.put("obsolete", "x");
+        BlockingQueue<PreferenceChangeEvent> events = new LinkedBlockingQueue<>();
+        PreferenceChangeListener listener = events::add;
+        node.addPreferenceChangeListener(listener);
+
+        node.batch()
+                .put("", "serverList", "srv1")
+                .put("", "connectionType", "RSSL")
+                .put("", "serverList", "srv2")
+                .remove("", "obsolete")
+                .apply();
+        assertEquals("srv2", node.get("serverList", null));
+        assertEquals("RSSL", node.get("connectionType", null));
+        assertNull(node.get("obsolete", null));
+
+        PreferenceChangeEvent event = next(events);
+        assertEquals("serverList", event.getKey());
+        assertEquals("srv2", event.getNewValue());
+        assertSame(node, event.getNode());
+        assertEquals("connectionType", next(events).getKey());
+        event = next(events);
+        assertEquals("obsolete", event.getKey());
+        assertNull(event.getNewValue());
+
+        // Single changes are delivered as before
+        node.remove("connectionType");
+        event = next(events);
+        assertEquals("connectionType", event.getKey());
+        assertNull(event.getNewValue());
+
+        node.removePreferenceChangeListener(listener);
+        try {
+            node.removePreferenceChangeListener(listener);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        node.put("serverList", "srv3");
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testInvalidEntryChangesNothing() throws Exception {
+        TemporaryPreferences node = new TemporaryPreferences(null, "");
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("a", "1");
+        entries.put("b", null);
+        try {
+            node.putAll(entries);
+            fail("Expected NullPointerException");
+        } catch (NullPointerException ex) {
+            // expected
+        }
+        entries.put("b", new String(new char[Preferences.MAX_VALUE_LENGTH + 1]).replace('\0', 'x'));
+        try {
+            node.putAll(entries);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        assertEquals(0, node.keys().length);
+    }
+
+    @Test
+    public void testInvalidPathCreatesNothing() throws Exception {
+        TemporaryPreferences root = new TemporaryPreferences(null, "");
+        String longName = new String(new char[Preferences.MAX_NAME_LENGTH + 1]).replace('\0', 'x');
+        for (String invalid : new String[]{"a//b", "a/", "/a/", "//", "a/" + longName}) {
+            PreferencesBatch batch = root.batch()
+                    .put("/com/acme/primary", "serverList", "srv1")
+                    .put(invalid, "k", "v");
+            try {
+                batch.apply();
+                fail("Expected IllegalArgumentException for " + invalid);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+            assertEquals(0, root.childrenNames().length);
+        }
+        root.batch()
+                .put("", "k", "v1")
+                .put("/", "k", "v2")
+                .put("/a/b", "k", "v3")
+                .apply();
+        assertEquals("v2", root.get("k", null));
+        assertEquals("v3", root.node("a/b").get("k", null));
+    }
+
+    @Test
+    public void testBatchIsOneSnapshotVersion() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_SNAPSHOTS, "true");
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(properties);
+        TemporaryPreferences userRoot = (TemporaryPreferences) factory.userRoot();
+        long before = factory.userSnapshot().version();
+        userRoot.batch()
+                .put("/com/acme/primary", "serverList", "srv1")
+                .put("com/acme/secondary", "serverList", "srv2")
+                .apply();
+        // Creating the nodes is published separately, the entries at once
+        PreferencesSnapshot after = factory.userSnapshot();
+        assertEquals("srv1", after.node("/com/acme/primary").get("serverList", null));
+        assertEquals("srv2", after.node("/com/acme/secondary").get("serverList", null));
+        ((TemporaryPreferences) userRoot.node("com/acme/primary")).putAll(Collections.singletonMap("port", "14002"));
+        assertEquals(after.version() + 1, factory.userSnapshot().version());
+        assertTrue(after.version() > before);
+        factory.close();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.prefs.Preferences;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class PreferencesMetricsTest {
+
+    @Test
+    public void testMetrics() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, "src/test/resources/test-pref-values.xml");
+        properties.setProperty(TemporaryPreferencesFactory.KEY_METRICS, "true");
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(properties);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(PreferencesMetrics.OBJECT_NAME);
+        try {
+            assertEquals(1L, server.getAttribute(name, "ImportCount"));
+            assertEquals(14L, server.getAttribute(name, "LastImportNodeCount"));
+            assertEquals(6L, server.getAttribute(name, "LastImportEntryCount"));
+            assertTrue((Long) server.getAttribute(name, "LastImportMillis") >= 0);
+            assertEquals(16L, server.getAttribute(name, "NodeCount"));
+            assertEquals(6L, server.getAttribute(name, "EntryCount"));
+
+            // Eager loading puts the imported entries
+            long puts = (Long) server.getAttribute(name, "PutCount");
+            Preferences node = factory.userRoot().node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+            for (int i = 0; i < 100 * PreferencesMetrics.SAMPLE_RATE; i++) {
+                node.get("serverList", null);
+            }
+            node.getInt("portNumber", 14002);
+            node.put("portNumber", "14002");
+            node.put("serverList", "trep3-ldn");
+            node.remove("connectionType");
+            node.remove("missing");
+            factory.userRoot().node("com/reuters/rfa/_Default").removeNode();
+
+            assertEquals(100L * PreferencesMetrics.SAMPLE_RATE + 1, server.getAttribute(name, "GetCount"));
+            assertEquals(puts + 2, server.getAttribute(name, "PutCount"));
+            assertEquals(2L, server.getAttribute(name, "RemoveCount"));
+            assertEquals(4L, server.getAttribute(name, "NodesRemovedCount"));
+            assertEquals(12L, server.getAttribute(name, "NodeCount"));
+            assertEquals(5L, server.getAttribute(name, "EntryCount"));
+            String[] hotKeys = (String[]) server.getAttribute(name, "HotKeys");
+            assertTrue(hotKeys.length > 0);
+            assertTrue(hotKeys[0], hotKeys[0].startsWith("/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd/serverList : "));
+
+            server.invoke(name, "resetHotKeys", null, null);
+            assertEquals(0, ((String[]) server.getAttribute(name, "HotKeys")).length);
+        } finally {
+            factory.close();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testRevisitedNodesAreCountedOnce() throws Exception {
+        // The flat loader visits /a three times, and each chunk again
+        String flat = "/a:k=1\n/a/b:k=2\n/a:k=3\n/a/b/c:k=4\n/a/b:k=5\n/d:k=6\n";
+        for (int chunks : new int[]{1, 3}) {
+            PreferencesMetrics metrics = new PreferencesMetrics();
+            PreferencesMetrics.ImportRecorder recorder = PreferencesMetrics.startImport(metrics);
+            NodeData.Builder userData = new NodeData.Builder("");
+            FlatSupport.importPreferences(ByteBuffer.wrap(flat.getBytes(StandardCharsets.UTF_8)), chunks,
+                    recorder.count(userData), recorder.count(new NodeData.Builder("")));
+            recorder.done();
+            assertEquals(4, metrics.getLastImportNodeCount());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.prefs.Preferences;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class PreferencesQueryTest {
+
+    private static final String TEST_FILE = "src/test/resources/test-pref-values.xml";
+    private static final String NAMESPACE = "/com/reuters/rfa/AddicticksNamespace";
+
+    private static TemporaryPreferencesFactory newFactory(boolean lazyLoad) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, TEST_FILE);
+        properties.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, Boolean.toString(lazyLoad));
+        properties.setProperty(TemporaryPreferencesFactory.KEY_INDEX, "true");
+        return new TemporaryPreferencesFactory(properties);
+    }
+
+    private static List<String> sorted(Stream<String> paths) {
+        return paths.sorted().collect(Collectors.toList());
+    }
+
+    @Test
+    public void testQueries() throws Exception {
+        for (boolean lazyLoad : new boolean[]{false, true}) {
+            TemporaryPreferencesFactory factory = newFactory(lazyLoad);
+            PreferencesQuery query = factory.userQuery();
+            assertEquals(Arrays.asList(NAMESPACE + "/Connections/TREPProd", NAMESPACE + "/Connections/TREPUAT"),
+                    sorted(query.nodesWithValue("connectionType", "RSSL")));
+            assertEquals(sorted(query.nodesWithValue("connectionType", "RSSL")), sorted(query.nodesWithKey("connectionType")));
+            assertEquals(0, query.nodesWithKey("noSuchKey").count());
+            assertEquals(Arrays.asList("/com/reuters/rfa/AddicticksNamespace/Sessions/StdConsumer",
+                    "/com/reuters/rfa/_Default/Sessions/UATConsumer"),
+                    query.nodesMatching("/com/reuters/rfa/*/Sessions/*").collect(Collectors.toList()));
+            assertEquals(Arrays.asList(NAMESPACE + "/Connections", NAMESPACE + "/Connections/TREPProd",
+                    NAMESPACE + "/Connections/TREPUAT"),
+                    query.nodesUnder(NAMESPACE + "/Connections").collect(Collectors.toList()));
+            assertEquals(Arrays.asList(NAMESPACE + "/Connections/TREPProd", NAMESPACE + "/Connections/TREPUAT"),
+                    query.nodesMatching("/**/TREP?*").collect(Collectors.toList()));
+            assertEquals(0, factory.systemQuery().nodesWithKey("connectionType").count());
+            factory.close();
+        }
+    }
+
+    @Test
+    public void testIndexFollowsChanges() throws Exception {
+        TemporaryPreferencesFactory factory = newFactory(true);
+        PreferencesQuery query = factory.userQuery();
+        Preferences root = factory.userRoot();
+
+        root.node(NAMESPACE + "/Connections/TREPProd").put("connectionType", "SSL");
+        root.node(NAMESPACE + "/Connections/TREPDR").put("connectionType", "RSSL");
+        root.node(NAMESPACE + "/Connections-old/TREPProd").put("connectionType", "RSSL");
+        root.node(NAMESPACE + "/Connections/TREPUAT").remove("connectionType");
+        assertEquals(Arrays.asList(NAMESPACE + "/Connections-old/TREPProd", NAMESPACE + "/Connections/TREPDR"),
+                sorted(query.nodesWithValue("connectionType", "RSSL")));
+        assertEquals(Arrays.asList(NAMESPACE + "/Connections", NAMESPACE + "/Connections/TREPDR",
+                NAMESPACE + "/Connections/TREPProd", NAMESPACE + "/Connections/TREPUAT"),
+                query.nodesUnder(NAMESPACE + "/Connections").collect(Collectors.toList()));
+
+        root.node("/com/reuters/rfa").removeNode();
+        assertEquals(Arrays.asList("/", "/com", "/com/reuters"), query.nodesUnder("/").collect(Collectors.toList()));
+        assertEquals(0, query.nodesWithKey("connectionType").count());
+        assertEquals(0, query.nodesWithKey("serverList").count());
+        factory.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testQueriesNotEnabled() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, TEST_FILE);
+        new TemporaryPreferencesFactory(properties).userQuery();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.prefs.Preferences;
+import static com.addicticks.preferences2go.XmlSupportTest.assertSameTree;
+import static com.addicticks.preferences2go.XmlSupportTest.newRoot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class SharedSegmentTest {
+
+    private static final String TEST_FILE = "src/test/resources/test-pref-values.xml";
+
+    private Path dir;
+    private Path xmlFile;
+    private Path sharedFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pref2go");
+        xmlFile = dir.resolve("prefs.xml");
+        sharedFile = dir.resolve("prefs.shm");
+        Files.copy(Paths.get(TEST_FILE), xmlFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(xmlFile);
+        Files.deleteIfExists(sharedFile);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testPublishAndRead() throws Exception {
+        NodeData.Builder userData = new NodeData.Builder("");
+        NodeData.Builder systemData = new NodeData.Builder("");
+        try (InputStream is = new FileInputStream(TEST_FILE)) {
+            XmlSupport.importPreferences(is, userData, systemData);
+        }
+        byte[] hash = BinaryCache.hash(xmlFile);
+        TemporaryPreferences userRoot = newRoot(TemporaryPreferences.TreeType.USER);
+        userData.build().copyTo(NodeSink.of(userRoot));
+
+        try (SharedSegment publisher = new SharedSegment(sharedFile);
+                SharedSegment reader = new SharedSegment(sharedFile)) {
+            assertFalse(reader.read(null, new NodeData.Builder(""), new NodeData.Builder("")));
+            try (SharedSegment.Lock lock = publisher.lock()) {
+                lock.publish(hash, userData.build(), systemData.build());
+            }
+            long sequence = reader.sequence();
+            assertEquals(0, sequence % 2);
+
+            TemporaryPreferences sharedUserRoot = newRoot(TemporaryPreferences.TreeType.USER);
+            assertTrue(reader.read(hash, NodeSink.of(sharedUserRoot), NodeSink.of(newRoot(TemporaryPreferences.TreeType.SYSTEM))));
+            assertSameTree(userRoot, sharedUserRoot);
+
+            byte[] otherHash = hash.clone();
+            otherHash[0]++;
+            assertFalse(reader.read(otherHash, new NodeData.Builder(""), new NodeData.Builder("")));
+
+            // A larger tree makes the segment grow
+            NodeData.Builder bigger = new NodeData.Builder("");
+            for (int i = 0; i < 10000; i++) {
+                bigger.child("node" + i).put("key", "value" + i);
+            }
+            try (SharedSegment.Lock lock = publisher.lock()) {
+                lock.publish(otherHash, bigger.build(), systemData.build());
+            }
+            assertEquals(sequence + 2, reader.sequence());
+            TemporaryPreferences biggerRoot = newRoot(TemporaryPreferences.TreeType.USER);
+            assertTrue(reader.read(otherHash, NodeSink.of(biggerRoot), new NodeData.Builder("")));
+            assertEquals("value9999", biggerRoot.node("node9999").get("key", null));
+
+            // Readers don't wait for a publisher's lock
+            try (SharedSegment.Lock lock = publisher.lock()) {
+                assertTrue(reader.read(otherHash, new NodeData.Builder(""), new NodeData.Builder("")));
+            }
+        }
+
+        // A writer which died half-way leaves an odd sequence number
+        try (RandomAccessFile raf = new RandomAccessFile(sharedFile.toFile(), "rw")) {
+            raf.seek(8);
+            long sequence = raf.readLong();
+            raf.seek(8);
+            raf.writeLong(sequence - 1);
+        }
+        try (SharedSegment reader = new SharedSegment(sharedFile)) {
+            TemporaryPreferences loaded = newRoot(TemporaryPreferences.TreeType.USER);
+            assertFalse(reader.read(null, NodeSink.of(loaded), new NodeData.Builder("")));
+            assertEquals(0, loaded.childrenNames().length);
+        }
+    }
+
+    @Test
+    public void testFactoriesShareTree() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, xmlFile.toString());
+        props.setProperty(TemporaryPreferencesFactory.KEY_SHARED_FILE, sharedFile.toString());
+        props.setProperty(TemporaryPreferencesFactory.KEY_SHARED_POLL_MILLIS, "50");
+
+        TemporaryPreferencesFactory first = new TemporaryPreferencesFactory(props);
+        long sequence;
+        try (SharedSegment segment = new SharedSegment(sharedFile)) {
+            sequence = segment.sequence();
+        }
+        assertTrue(sequence > 0);
+        props.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, "true");
+        TemporaryPreferencesFactory second = new TemporaryPreferencesFactory(props);
+        assertSameTree(first.userRoot(), second.userRoot());
+        try (SharedSegment segment = new SharedSegment(sharedFile)) {
+            // Read, not published again
+            assertEquals(sequence, segment.sequence());
+
+            // Another process publishes a new version
+            NodeData.Builder userData = new NodeData.Builder("");
+            userData.child("com").child("acme").put("serverList", "srv1");
+            try (SharedSegment.Lock lock = segment.lock()) {
+                lock.publish(BinaryCache.hash(xmlFile), userData.build(), new NodeData.Builder("").build());
+            }
+        }
+        for (TemporaryPreferencesFactory factory : new TemporaryPreferencesFactory[]{first, second}) {
+            Preferences node = factory.userRoot().node("com/acme");
+            long deadline = System.currentTimeMillis() + 10000;
+            // The reload puts the new key before it removes the old nodes
+            while ((node.get("serverList", null) == null || factory.userRoot().nodeExists("com/reuters"))
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals("srv1", node.get("serverList", null));
+            assertFalse(factory.userRoot().nodeExists("com/reuters"));
+        }
+        first.close();
+        second.close();
+    }
+}
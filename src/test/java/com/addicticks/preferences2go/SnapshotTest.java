@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.util.Properties;
+import java.util.prefs.Preferences;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class SnapshotTest {
+
+    private static final String TEST_FILE = "src/test/resources/test-pref-values.xml";
+    private static final String TREP_PROD = "/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd";
+
+    private static TemporaryPreferencesFactory newFactory(boolean lazyLoad) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, TEST_FILE);
+        properties.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, Boolean.toString(lazyLoad));
+        properties.setProperty(TemporaryPreferencesFactory.KEY_SNAPSHOTS, "true");
+        return new TemporaryPreferencesFactory(properties);
+    }
+
+    @Test
+    public void testSnapshotIsImmutable() throws Exception {
+        for (boolean lazyLoad : new boolean[]{false, true}) {
+            TemporaryPreferencesFactory factory = newFactory(lazyLoad);
+            Preferences node = factory.userRoot().node(TREP_PROD);
+            String serverList = node.get("serverList", null);
+            PreferencesSnapshot before = factory.userSnapshot();
+            assertEquals(serverList, before.node(TREP_PROD).get("serverList", null));
+            assertEquals(node.get("connectionType", null), before.node(TREP_PROD).get("connectionType", null));
+
+            node.put("serverList", "trep3-ldn");
+            node.node("New").putInt("port", 14002);
+            factory.userRoot().node("/com/reuters/rfa/_Default").removeNode();
+
+            PreferencesSnapshot after = factory.userSnapshot();
+            assertTrue(after.version() > before.version());
+            assertEquals(serverList, before.node(TREP_PROD).get("serverList", null));
+            assertEquals("trep3-ldn", after.node(TREP_PROD).get("serverList", null));
+            assertEquals(14002, after.node(TREP_PROD + "/New").getInt("port", 0));
+            assertTrue(before.nodeExists("com/reuters/rfa/_Default"));
+            assertFalse(after.nodeExists("com/reuters/rfa/_Default"));
+            assertEquals(after.version(), ((TemporaryPreferences) node).snapshot().version());
+            factory.close();
+        }
+    }
+
+    @Test
+    public void testTypedGetters() throws Exception {
+        TemporaryPreferencesFactory factory = newFactory(false);
+        try {
+            Preferences node = factory.userRoot().node(TREP_PROD);
+            node.putFloat("float", 0.5f);
+            node.putDouble("double", 1e-3);
+            node.put("padded", " 2.5 ");
+            node.put("text", "fast");
+            PreferencesSnapshot snapshot = factory.userSnapshot().node(TREP_PROD);
+            for (String key : new String[]{"float", "double", "padded", "text", "missing"}) {
+                assertEquals(node.getFloat(key, -1f), snapshot.getFloat(key, -1f), 0f);
+                assertEquals(node.getDouble(key, -1d), snapshot.getDouble(key, -1d), 0d);
+            }
+            assertEquals(0.5f, snapshot.getFloat("float", -1f), 0f);
+            assertEquals(1e-3, snapshot.getDouble("double", -1d), 0d);
+            assertEquals(-1d, snapshot.getDouble("text", -1d), 0d);
+        } finally {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void testUnchangedSubtreesAreShared() throws Exception {
+        TemporaryPreferencesFactory factory = newFactory(true);
+        SnapshotPublisher publisher = ((TemporaryPreferences) factory.userRoot()).context().snapshots();
+        NodeData before = publisher.current().userRoot.child("com").child("reuters").child("rfa");
+        factory.userRoot().node(TREP_PROD).put("serverList", "trep3-ldn");
+        NodeData after = publisher.current().userRoot.child("com").child("reuters").child("rfa");
+        assertNotSame(before, after);
+        assertSame(before.child("_Default"), after.child("_Default"));
+        assertNotSame(before.child("AddicticksNamespace"), after.child("AddicticksNamespace"));
+        factory.close();
+    }
+
+    @Test
+    public void testGroupIsPublishedAtOnce() throws Exception {
+        TemporaryPreferencesFactory factory = newFactory(false);
+        SnapshotPublisher publisher = ((TemporaryPreferences) factory.userRoot()).context().snapshots();
+        Preferences node = factory.userRoot().node(TREP_PROD);
+        publisher.beginGroup();
+        node.put("serverList", "trep3-ldn");
+        node.put("connectionType", "SSL");
+        PreferencesSnapshot during = factory.userSnapshot();
+        assertEquals("RSSL", during.node(TREP_PROD).get("connectionType", null));
+        assertNotEquals("trep3-ldn", during.node(TREP_PROD).get("serverList", null));
+        publisher.endGroup();
+        PreferencesSnapshot after = factory.userSnapshot();
+        assertEquals(during.version() + 1, after.version());
+        assertEquals("SSL", after.node(TREP_PROD).get("connectionType", null));
+        assertEquals("trep3-ldn", after.node(TREP_PROD).get("serverList", null));
+        factory.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSnapshotsMustBeEnabled() throws Exception {
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(new Properties());
+        try {
+            factory.userSnapshot();
+        } finally {
+            factory.close();
+        }
+    }
+}
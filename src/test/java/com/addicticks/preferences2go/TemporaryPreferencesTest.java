@@ -0,0 +1,314 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import com.sun.management.ThreadMXBean;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.Preferences;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class TemporaryPreferencesTest {
+
+    /**
+     * Node which blocks inside {@code putSpi()}, i.e. while holding
+     * the node's lock, until released.
+     */
+    private static class BlockingWriterPreferences extends TemporaryPreferences {
+
+        private final CountDownLatch writerInside = new CountDownLatch(1);
+        private final CountDownLatch releaseWriter = new CountDownLatch(1);
+        private volatile boolean block = false;
+
+        BlockingWriterPreferences() {
+            super(null, "");
+        }
+
+        @Override
+        protected void putSpi(String key, String value) {
+            super.putSpi(key, value);
+            if (block) {
+                writerInside.countDown();
+                try {
+                    releaseWriter.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReadsDoNotContendWithWriter() throws Exception {
+        final BlockingWriterPreferences prefs = new BlockingWriterPreferences();
+        prefs.put("serverList", "trep1-ldn, trep2-ldn");
+        prefs.putInt("port", 14002);
+        prefs.putBoolean("enabled", true);
+        prefs.block = true;
+
+        Thread writer = new Thread(() -> prefs.put("connectionType", "RSSL"));
+        writer.start();
+        assertTrue(prefs.writerInside.await(10, TimeUnit.SECONDS));
+
+        // The writer now holds the node's lock. Readers on all cores must
+        // still be able to make progress.
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(() -> {
+                    int reads = 0;
+                    for (int i = 0; i < 100_000; i++) {
+                        assertEquals("trep1-ldn, trep2-ldn", prefs.get("serverList", null));
+                        assertEquals(14002, prefs.getInt("port", 0));
+                        assertTrue(prefs.getBoolean("enabled", false));
+                        reads += 3;
+                    }
+                    return reads;
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(300_000, (int) result.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+            prefs.releaseWriter.countDown();
+            writer.join();
+        }
+        assertEquals("RSSL", prefs.get("connectionType", null));
+    }
+
+    @Test
+    public void testGetSemantics() throws BackingStoreException {
+        TemporaryPreferences root = new TemporaryPreferences(null, "");
+        TemporaryPreferences node = (TemporaryPreferences) root.node("a/b");
+        assertEquals("def", node.get("missing", "def"));
+        assertEquals(42, node.getInt("missing", 42));
+        node.put("x", "not-a-number");
+        assertEquals(7, node.getInt("x", 7));
+        try {
+            node.get(null, "def");
+            fail("Expected NullPointerException");
+        } catch (NullPointerException ex) {
+            // expected
+        }
+        root.node("a").removeNode();
+        try {
+            node.get("x", null);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLazyNodesBehaveLikeEagerNodes() throws Exception {
+        TemporaryPreferences eager = new TemporaryPreferences(null, "");
+        NodeData.Builder data = new NodeData.Builder("");
+        try (InputStream is = new FileInputStream("src/test/resources/test-pref-values.xml")) {
+            XmlSupport.importPreferences(is, NodeSink.of(eager), new NodeData.Builder(""));
+        }
+        try (InputStream is = new FileInputStream("src/test/resources/test-pref-values.xml")) {
+            XmlSupport.importPreferences(is, data, new NodeData.Builder(""));
+        }
+        TemporaryPreferences lazy = new TemporaryPreferences(null, "");
+        lazy.attach(data.build());
+
+        assertTrue(lazy.nodeExists("/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd"));
+        assertTrue(lazy.node("com/reuters").nodeExists("rfa/_System"));
+        assertFalse(lazy.nodeExists("/com/reuters/rfa/AddicticksNamespace/Connections/TREPDev"));
+        assertArrayEquals(new String[]{"AddicticksNamespace", "_Default", "_System"}, lazy.node("com/reuters/rfa").childrenNames());
+        XmlSupportTest.assertSameTree(eager, lazy);
+        assertSame(lazy.node("/com/reuters/rfa"), lazy.node("com").node("reuters/rfa"));
+
+        lazy.node("com/reuters/rfa/_Default").removeNode();
+        assertFalse(lazy.nodeExists("/com/reuters/rfa/_Default/Sessions/UATConsumer"));
+        assertArrayEquals(new String[]{"AddicticksNamespace", "_System"}, lazy.node("com/reuters/rfa").childrenNames());
+    }
+
+    @Test
+    public void testNoNodeEventsForLazyNodes() throws Exception {
+        NodeData.Builder data = new NodeData.Builder("");
+        data.child("loaded").put("k", "v");
+        TemporaryPreferences lazy = new TemporaryPreferences(null, "");
+        lazy.attach(data.build());
+        BlockingQueue<NodeChangeEvent> events = new LinkedBlockingQueue<>();
+        lazy.addNodeChangeListener(new NodeChangeListener() {
+            @Override
+            public void childAdded(NodeChangeEvent evt) {
+                events.add(evt);
+            }
+
+            @Override
+            public void childRemoved(NodeChangeEvent evt) {
+            }
+        });
+        assertEquals("v", lazy.node("loaded").get("k", null));
+        lazy.node("created");
+        NodeChangeEvent event = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals("created", event.getChild().name());
+    }
+
+    @Test
+    public void testAbsolutePathIndex() throws Exception {
+        TemporaryPreferences root = new TemporaryPreferences(null, "");
+        Preferences prod = root.node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+        assertSame(prod, root.node("/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd"));
+        assertSame(prod, root.node("com").node("/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd"));
+        assertSame(root, root.node("/"));
+        assertTrue(root.nodeExists("/com/reuters/rfa/AddicticksNamespace/Connections"));
+        assertFalse(root.nodeExists("/com/reuters/rfa/AddicticksNamespace/Connections/TREPDev"));
+        assertInvalidPath(root, "/com/reuters/");
+        assertInvalidPath(root, "/com//reuters");
+
+        // Separate index for each tree type
+        TemporaryPreferences systemRoot = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.SYSTEM, 
+                root.context());
+        assertFalse(systemRoot.nodeExists("/com/reuters"));
+        assertNotSame(root.node("/com"), systemRoot.node("/com"));
+
+        root.node("com/reuters/rfa/AddicticksNamespace").removeNode();
+        assertFalse(root.nodeExists("/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd"));
+        assertFalse(root.nodeExists("/com/reuters/rfa/AddicticksNamespace"));
+        assertTrue(root.nodeExists("/com/reuters/rfa"));
+        try {
+            prod.node("/com");
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        Preferences recreated = root.node("/com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+        assertNotSame(prod, recreated);
+        assertSame(recreated, root.node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd"));
+
+        // Lazily created nodes are found too
+        NodeData.Builder data = new NodeData.Builder("");
+        data.child("a").child("b").put("k", "v");
+        TemporaryPreferences lazy = new TemporaryPreferences(null, "");
+        lazy.attach(data.build());
+        assertTrue(lazy.nodeExists("/a/b"));
+        assertFalse(lazy.nodeExists("/a/c"));
+        assertEquals("v", lazy.node("/a/b").get("k", null));
+        assertSame(lazy.node("a/b"), lazy.node("/a/b"));
+    }
+
+    private static void assertInvalidPath(Preferences node, String path) throws BackingStoreException {
+        try {
+            node.nodeExists(path);
+            fail("Expected IllegalArgumentException for " + path);
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCompactStorage() throws Exception {
+        TemporaryPreferences root = new TemporaryPreferences(null, "", TemporaryPreferences.TreeType.USER, new TreeContext(true));
+        Preferences a = root.node("a");
+        Preferences b = root.node("b");
+        int count = Entries.Compact.MAX_ARRAY_ENTRIES * 2;
+        for (int i = 0; i < count; i++) {
+            a.put(new String("key" + i), new String("value" + i));
+            b.put(new String("key" + i), new String("value" + i));
+            assertEquals(i + 1, a.keys().length);
+        }
+        for (int i = 0; i < count; i += 2) {
+            a.remove("key" + i);
+        }
+        assertEquals(count / 2, a.keys().length);
+        for (int i = 0; i < count; i++) {
+            assertEquals((i % 2 == 0) ? null : "value" + i, a.get("key" + i, null));
+            assertEquals("value" + i, b.get("key" + i, null));
+        }
+        b.put("key1", "changed");
+        assertEquals("changed", b.get("key1", null));
+        assertEquals("value1", a.get("key1", null));
+        b.clear();
+        assertEquals(0, b.keys().length);
+    }
+
+    @Test
+    public void testTypedGetters() throws Exception {
+        TemporaryPreferences node = new TemporaryPreferences(null, "");
+        node.put("int", "14002");
+        node.put("long", "12345678901");
+        node.put("double", "0.25");
+        node.put("bool", "TRUE");
+        node.put("bad", "RSSL");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(14002, node.getInt("int", 0));
+            assertEquals(14002L, node.getLong("int", 0));
+            assertEquals(12345678901L, node.getLong("long", 0));
+            assertEquals(-1, node.getInt("long", -1));
+            assertEquals(0.25, node.getDouble("double", 0), 0);
+            assertEquals(0.25f, node.getFloat("double", 0), 0);
+            assertTrue(node.getBoolean("bool", false));
+            assertEquals(i, node.getInt("bad", i));
+            assertEquals(i == 1, node.getBoolean("bad", i == 1));
+            assertEquals(i, node.getInt("missing", i));
+        }
+        node.putInt("int", 14003);
+        assertEquals(14003, node.getInt("int", 0));
+        node.put("bad", "7");
+        assertEquals(7, node.getInt("bad", 0));
+        node.remove("int");
+        assertEquals(42, node.getInt("int", 42));
+        node.putBoolean("bool", false);
+        assertFalse(node.getBoolean("bool", true));
+    }
+
+    @Test
+    public void testTypedGettersDoNotAllocate() throws Exception {
+        Object threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof ThreadMXBean);
+        ThreadMXBean allocations = (ThreadMXBean) threads;
+        TemporaryPreferences node = new TemporaryPreferences(null, "");
+        node.put("port", "14002");
+        node.put("ratio", "0.75");
+        long sum = 0;
+        for (int i = 0; i < 20_000; i++) {
+            sum += node.getInt("port", 0) + (long) node.getDouble("ratio", 0);
+        }
+        long before = allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 100_000; i++) {
+            sum += node.getInt("port", 0) + (long) node.getDouble("ratio", 0);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertEquals(120_000L * 14002, sum);
+        assertTrue("Allocated " + allocated + " bytes", allocated < 100_000);
+    }
+}
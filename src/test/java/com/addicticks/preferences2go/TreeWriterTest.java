@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import static com.addicticks.preferences2go.XmlSupportTest.assertSameTree;
+import static com.addicticks.preferences2go.XmlSupportTest.newRoot;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class TreeWriterTest {
+
+    private static final String TEST_FILE = "src/test/resources/test-pref-values.xml";
+    private static final String NL = System.lineSeparator();
+
+    @Test
+    public void testExportWithoutCreatingNodes() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, TEST_FILE);
+        properties.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, "true");
+        TemporaryPreferencesFactory factory = new TemporaryPreferencesFactory(properties);
+        TemporaryPreferences root = (TemporaryPreferences) factory.userRoot();
+        int created = root.context().nodeIndex(TemporaryPreferences.TreeType.USER).size();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        root.exportSubtree(bytes);
+        assertEquals(created, root.context().nodeIndex(TemporaryPreferences.TreeType.USER).size());
+
+        TemporaryPreferences imported = newRoot(TemporaryPreferences.TreeType.USER);
+        XmlSupport.importPreferences(new ByteArrayInputStream(bytes.toByteArray()), imported, newRoot(TemporaryPreferences.TreeType.SYSTEM));
+        assertSameTree(root, imported);
+        factory.close();
+    }
+
+    @Test
+    public void testExportNodeAndPrefix() throws Exception {
+        TemporaryPreferences root = newRoot(TemporaryPreferences.TreeType.USER);
+        root.put("top", "1");
+        root.node("a").put("k", "<&\"quoted\">");
+        root.node("a/b").put("k", "b");
+        root.node("a/b/c").put("k", "c");
+        root.node("ab").put("k", "ab");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ((TemporaryPreferences) root.node("a/b")).exportNode(bytes);
+        TemporaryPreferences imported = newRoot(TemporaryPreferences.TreeType.USER);
+        XmlSupport.importPreferences(new ByteArrayInputStream(bytes.toByteArray()), imported, newRoot(TemporaryPreferences.TreeType.SYSTEM));
+        assertArrayEquals(new String[0], imported.keys());
+        assertArrayEquals(new String[0], imported.node("a").keys());
+        assertEquals("b", imported.node("a/b").get("k", null));
+        assertFalse(imported.nodeExists("a/b/c"));
+
+        bytes.reset();
+        root.exportSubtree(bytes, "/a");
+        imported = newRoot(TemporaryPreferences.TreeType.USER);
+        XmlSupport.importPreferences(new ByteArrayInputStream(bytes.toByteArray()), imported, newRoot(TemporaryPreferences.TreeType.SYSTEM));
+        assertNull(imported.get("top", null));
+        assertSameTree(root.node("a"), imported.node("a"));
+        // A prefix matches on characters, not on whole names
+        assertEquals("ab", imported.node("ab").get("k", null));
+
+        bytes.reset();
+        root.exportSubtree(bytes, "/a/b/");
+        imported = newRoot(TemporaryPreferences.TreeType.USER);
+        XmlSupport.importPreferences(new ByteArrayInputStream(bytes.toByteArray()), imported, newRoot(TemporaryPreferences.TreeType.SYSTEM));
+        assertNull(imported.node("a/b").get("k", null));
+        assertEquals("c", imported.node("a/b/c").get("k", null));
+        assertFalse(imported.nodeExists("ab"));
+    }
+
+    @Test
+    public void testPrintSubtree() throws Exception {
+        TemporaryPreferences root = newRoot(TemporaryPreferences.TreeType.SYSTEM);
+        StringBuilder sb = new StringBuilder();
+        assertFalse(root.printSubtree(sb, null));
+        assertEquals("", sb.toString());
+
+        root.node("a").put("k", "v");
+        root.node("a/empty");
+        root.node("b/c").put("k", "v2");
+        assertTrue(root.printSubtree(sb, null));
+        assertEquals("    Preferences type : SYSTEM" + NL
+                + "        /a/k : v" + NL
+                + "        /a/empty" + NL
+                + "        /b/c/k : v2" + NL, sb.toString());
+
+        sb.setLength(0);
+        assertTrue(root.printSubtree(sb, "/b"));
+        assertEquals("    Preferences type : SYSTEM" + NL
+                + "        /b/c/k : v2" + NL, sb.toString());
+        sb.setLength(0);
+        assertFalse(root.printSubtree(sb, "/x"));
+    }
+
+    @Test
+    public void testLogWriterSplitsRecords() throws Exception {
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setUseParentHandlers(false);
+        List<String> messages = new ArrayList<>();
+        logger.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                messages.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        StringBuilder expected = new StringBuilder();
+        try (TreeWriter.LogWriter out = new TreeWriter.LogWriter(logger, Level.INFO)) {
+            for (int i = 0; i < 20000; i++) {
+                String line = "        /node" + i + "/key : value" + i + "\n";
+                out.write(line);
+                expected.append(line);
+            }
+        }
+        assertTrue(messages.size() > 1);
+        StringBuilder actual = new StringBuilder();
+        for (String message : messages) {
+            assertTrue(message.endsWith("\n"));
+            actual.append(message);
+        }
+        assertEquals(expected.toString(), actual.toString());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.prefs.Preferences;
+import static com.addicticks.preferences2go.XmlSupportTest.assertSameTree;
+import static com.addicticks.preferences2go.XmlSupportTest.newRoot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class WriteBehindWriterTest {
+
+    private static final String TEST_FILE = "src/test/resources/test-pref-values.xml";
+
+    private Path dir;
+    private Path persistFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pref2go");
+        persistFile = dir.resolve("persisted.xml");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(persistFile);
+        Files.delete(dir);
+    }
+
+    private TemporaryPreferencesFactory newFactory(boolean lazyLoad, String delayMillis) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, TEST_FILE);
+        properties.setProperty(TemporaryPreferencesFactory.KEY_PERSIST_FILE, persistFile.toString());
+        properties.setProperty(TemporaryPreferencesFactory.KEY_PERSIST_DELAY_MILLIS, delayMillis);
+        properties.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, Boolean.toString(lazyLoad));
+        properties.setProperty(TemporaryPreferencesFactory.KEY_METRICS, "true");
+        return new TemporaryPreferencesFactory(properties);
+    }
+
+    private TemporaryPreferences readPersisted() throws Exception {
+        TemporaryPreferences root = newRoot(TemporaryPreferences.TreeType.USER);
+        try (InputStream is = Files.newInputStream(persistFile)) {
+            XmlSupport.importPreferences(is, root, newRoot(TemporaryPreferences.TreeType.SYSTEM));
+        }
+        return root;
+    }
+
+    @Test
+    public void testChangesAreWritten() throws Exception {
+        TemporaryPreferencesFactory factory = newFactory(false, "10");
+        try {
+            Preferences userRoot = factory.userRoot();
+            Preferences node = userRoot.node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+            node.put("serverList", "trep3-ldn");
+            node.put("escaped", "<a href=\"x\">&amp;</a>\n\ttab");
+            node.remove("connectionType");
+            userRoot.node("com/reuters/rfa/_Default").removeNode();
+            userRoot.node("com/reuters/rfa/New/Empty");
+            userRoot.flush();
+            assertSameTree(userRoot, readPersisted());
+
+            // Unchanged nodes are written from the previous write
+            userRoot.node("com/reuters/rfa/AddicticksNamespace/Sessions/StdConsumer").put("k", "v");
+            userRoot.flush();
+            assertSameTree(userRoot, readPersisted());
+        } finally {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void testWritesAreDelayedUntilFlush() throws Exception {
+        TemporaryPreferencesFactory factory = newFactory(false, "600000");
+        try {
+            Preferences node = factory.userRoot().node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd");
+            for (int i = 0; i < 100; i++) {
+                node.putInt("counter", i);
+            }
+            Thread.sleep(100);
+            assertFalse(Files.exists(persistFile));
+            node.flush();
+            assertEquals(99, readPersisted().node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd").getInt("counter", 0));
+
+            // close() writes pending changes
+            node.putInt("counter", 100);
+        } finally {
+            factory.close();
+        }
+        assertEquals(100, readPersisted().node("com/reuters/rfa/AddicticksNamespace/Connections/TREPProd").getInt("counter", 0));
+    }
+
+    @Test
+    public void testLazyNodesAreWrittenWithoutBeingCreated() throws Exception {
+        TemporaryPreferencesFactory factory = newFactory(true, "10");
+        try {
+            Preferences userRoot = factory.userRoot();
+            userRoot.node("com").put("k", "v");
+            long nodeCount = factory.metrics().getNodeCount();
+            userRoot.flush();
+            assertEquals(nodeCount, factory.metrics().getNodeCount());
+
+            TemporaryPreferences expected = newRoot(TemporaryPreferences.TreeType.USER);
+            try (InputStream is = Files.newInputStream(Paths.get(TEST_FILE))) {
+                XmlSupport.importPreferences(is, expected, newRoot(TemporaryPreferences.TreeType.SYSTEM));
+            }
+            expected.node("com").put("k", "v");
+            assertSameTree(expected, readPersisted());
+        } finally {
+            factory.close();
+        }
+    }
+}
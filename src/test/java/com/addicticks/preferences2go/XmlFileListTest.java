@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.prefs.Preferences;
+import static com.addicticks.preferences2go.XmlSupportTest.assertSameTree;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class XmlFileListTest {
+
+    private static final String HEADER
+            = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>"
+            + "<!DOCTYPE preferences SYSTEM \"http://java.sun.com/dtd/preferences.dtd\">"
+            + "<preferences EXTERNAL_XML_VERSION=\"1.0\">";
+
+    private Path dir;
+    private Path base;
+    private Path override;
+    private Path system;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("pref2go");
+        base = write("10-base.xml", "user", "<map><entry key=\"a\" value=\"base\"/><entry key=\"b\" value=\"base\"/></map>"
+                + "<node name=\"app\"><map><entry key=\"host\" value=\"prod\"/></map></node>");
+        override = write("20-override.xml", "user", "<map><entry key=\"b\" value=\"override\"/></map>"
+                + "<node name=\"app\"><map><entry key=\"port\" value=\"8080\"/></map></node>");
+        system = write("30-system.xml", "system", "<map><entry key=\"s\" value=\"system\"/></map>");
+        Files.write(dir.resolve("notes.txt"), "not preferences".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (String name : new String[]{"10-base.xml", "20-override.xml", "30-system.xml", "notes.txt", "cache.bin"}) {
+            Files.deleteIfExists(dir.resolve(name));
+        }
+        Files.delete(dir);
+    }
+
+    private Path write(String name, String type, String content) throws Exception {
+        Path file = dir.resolve(name);
+        String xml = HEADER + "<root type=\"" + type + "\">" + content + "</root></preferences>";
+        Files.write(file, xml.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static TemporaryPreferencesFactory newFactory(String xmlFile, boolean lazyLoad, Path cacheFile) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(TemporaryPreferencesFactory.KEY_XML_FILE, xmlFile);
+        properties.setProperty(TemporaryPreferencesFactory.KEY_LAZY_LOAD, Boolean.toString(lazyLoad));
+        if (cacheFile != null) {
+            properties.setProperty(TemporaryPreferencesFactory.KEY_CACHE_FILE, cacheFile.toString());
+        }
+        return new TemporaryPreferencesFactory(properties);
+    }
+
+    @Test
+    public void testPatternIsResolvedInNameOrder() throws Exception {
+        XmlFileList list = new XmlFileList(dir.resolve("*.xml").toString());
+        assertFalse(list.isSingleFile());
+        assertEquals(Arrays.asList(base, override, system), list.resolve());
+        assertTrue(list.matches(dir.resolve("40-new.xml")));
+        assertFalse(list.matches(dir.resolve("notes.txt")));
+
+        XmlFileList single = new XmlFileList(base.toString());
+        assertTrue(single.isSingleFile());
+        assertEquals(Paths.get(base + ".journal"), single.journalFile());
+    }
+
+    @Test
+    public void testLaterFilesTakePrecedence() throws Exception {
+        TemporaryPreferencesFactory factory = newFactory(dir.resolve("*.xml").toString(), false, null);
+        Preferences userRoot = factory.userRoot();
+        assertEquals("base", userRoot.get("a", null));
+        assertEquals("override", userRoot.get("b", null));
+        assertEquals("prod", userRoot.node("app").get("host", null));
+        assertEquals("8080", userRoot.node("app").get("port", null));
+        assertEquals("system", factory.systemRoot().get("s", null));
+        factory.close();
+
+        TemporaryPreferencesFactory reversed = newFactory(override + File.pathSeparator + base, false, null);
+        assertEquals("base", reversed.userRoot().get("b", null));
+        reversed.close();
+    }
+
+    @Test
+    public void testLazyLoadAndCacheGiveSameResult() throws Exception {
+        String files = base + File.pathSeparator + dir.resolve("[23]*.xml");
+        TemporaryPreferencesFactory eager = newFactory(files, false, null);
+        TemporaryPreferencesFactory lazy = newFactory(files, true, null);
+        Path cacheFile = dir.resolve("cache.bin");
+        TemporaryPreferencesFactory cached = newFactory(files, false, cacheFile);
+        assertTrue(Files.exists(cacheFile));
+        TemporaryPreferencesFactory fromCache = newFactory(files, false, cacheFile);
+        for (TemporaryPreferencesFactory factory : new TemporaryPreferencesFactory[]{lazy, cached, fromCache}) {
+            assertSameTree(eager.userRoot(), factory.userRoot());
+            assertSameTree(eager.systemRoot(), factory.systemRoot());
+            factory.close();
+        }
+        eager.close();
+    }
+}
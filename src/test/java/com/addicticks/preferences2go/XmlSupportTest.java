@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Addicticks.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addicticks.preferences2go;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.Preferences;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Addicticks
+ */
+public class XmlSupportTest {
+
+    private static final String TEST_FILE = "src/test/resources/test-pref-values.xml";
+
+    private static final String HEADER
+            = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>"
+            + "<!DOCTYPE preferences SYSTEM \"http://java.sun.com/dtd/preferences.dtd\">";
+
+    @Test
+    public void testStreamingImportEqualsDomImport() throws Exception {
+        TemporaryPreferences userRoot = newRoot(TemporaryPreferences.TreeType.USER);
+        TemporaryPreferences systemRoot = newRoot(TemporaryPreferences.TreeType.SYSTEM);
+        try (InputStream is = new FileInputStream(TEST_FILE)) {
+            XmlSupport.importPreferences(is, userRoot, systemRoot);
+        }
+
+        TemporaryPreferences domUserRoot = newRoot(TemporaryPreferences.TreeType.USER);
+        TemporaryPreferences domSystemRoot = newRoot(TemporaryPreferences.TreeType.SYSTEM);
+        DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        db.setEntityResolver(new XmlSupport.Resolver());
+        Element xmlRoot = (Element) db.parse(new File(TEST_FILE)).getElementsByTagName("root").item(0);
+        importDom(xmlRoot.getAttribute("type").equals("user") ? domUserRoot : domSystemRoot, xmlRoot);
+
+        assertSameTree(domUserRoot, userRoot);
+        assertSameTree(domSystemRoot, systemRoot);
+        assertEquals("RSSL", userRoot.node("com/reuters/rfa/AddicticksNamespace/Connections/TREPUAT").get("connectionType", null));
+        assertEquals(0, systemRoot.childrenNames().length);
+    }
+
+    @Test
+    public void testInvalidStructureIsRejected() throws Exception {
+        // 'node' without a 'map'
+        assertInvalid(HEADER + "<preferences EXTERNAL_XML_VERSION=\"1.0\"><root type=\"user\"><map/>"
+                + "<node name=\"a\"></node></root></preferences>");
+        // 'entry' without a value
+        assertInvalid(HEADER + "<preferences EXTERNAL_XML_VERSION=\"1.0\"><root type=\"user\"><map>"
+                + "<entry key=\"k\"/></map></root></preferences>");
+        // Unknown element
+        assertInvalid(HEADER + "<preferences EXTERNAL_XML_VERSION=\"1.0\"><root type=\"user\"><map/>"
+                + "<foo/></root></preferences>");
+        // Unsupported version
+        assertInvalid(HEADER + "<preferences EXTERNAL_XML_VERSION=\"2.0\"><root type=\"user\"><map/>"
+                + "</root></preferences>");
+        // Missing DOCTYPE
+        assertInvalid("<preferences EXTERNAL_XML_VERSION=\"1.0\"><root type=\"user\"><map/>"
+                + "</root></preferences>");
+    }
+
+    @Test
+    public void testInvalidNamesAreRejected() throws Exception {
+        for (String name : new String[]{"a/b", "", new String(new char[Preferences.MAX_NAME_LENGTH + 1]).replace('\0', 'x')}) {
+            String xml = HEADER + "<preferences EXTERNAL_XML_VERSION=\"1.0\"><root type=\"user\"><map/>"
+                    + "<node name=\"" + name + "\"><map/></node></root></preferences>";
+            assertInvalid(xml);
+            // As when loading lazily
+            try {
+                XmlSupport.importPreferences(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)),
+                        new NodeData.Builder(""), new NodeData.Builder(""));
+                fail("Expected InvalidPreferencesFormatException for " + xml);
+            } catch (InvalidPreferencesFormatException ex) {
+                assertTrue(ex.getCause() instanceof IllegalArgumentException);
+            }
+        }
+    }
+
+    private static void assertInvalid(String xml) throws IOException {
+        try {
+            XmlSupport.importPreferences(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)),
+                    newRoot(TemporaryPreferences.TreeType.USER), newRoot(TemporaryPreferences.TreeType.SYSTEM));
+            fail("Expected InvalidPreferencesFormatException for " + xml);
+        } catch (InvalidPreferencesFormatException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Reference import: walks the DOM of a 'root' or 'node' element.
+     */
+    private static void importDom(Preferences node, Element xmlNode) {
+        for (Node kid = xmlNode.getFirstChild(); kid != null; kid = kid.getNextSibling()) {
+            if (!(kid instanceof Element)) {
+                continue;
+            }
+            Element element = (Element) kid;
+            if (element.getTagName().equals("node")) {
+                importDom(node.node(element.getAttribute("name")), element);
+            } else {
+                NodeList entries = element.getElementsByTagName("entry");
+                for (int i = 0; i < entries.getLength(); i++) {
+                    Element entry = (Element) entries.item(i);
+                    node.put(entry.getAttribute("key"), entry.getAttribute("value"));
+                }
+            }
+        }
+    }
+
+    static TemporaryPreferences newRoot(TemporaryPreferences.TreeType treeType) {
+        return new TemporaryPreferences(null, "", treeType);
+    }
+
+    static void assertSameTree(Preferences expected, Preferences actual) throws BackingStoreException {
+        String[] expectedKeys = expected.keys();
+        String[] actualKeys = actual.keys();
+        Arrays.sort(expectedKeys);
+        Arrays.sort(actualKeys);
+        assertArrayEquals(expected.absolutePath(), expectedKeys, actualKeys);
+        for (String key : expectedKeys) {
+            assertEquals(expected.absolutePath() + "/" + key, expected.get(key, null), actual.get(key, null));
+        }
+        String[] expectedKids = expected.childrenNames();
+        String[] actualKids = actual.childrenNames();
+        Arrays.sort(expectedKids);
+        Arrays.sort(actualKids);
+        assertArrayEquals(expected.absolutePath(), expectedKids, actualKids);
+        for (String kid : expectedKids) {
+            assertSameTree(expected.node(kid), actual.node(kid));
+        }
+    }
+}